@@ -23,6 +23,7 @@ import com.google.android.media.tv.companionlibrary.ads.EpgSyncWithAdsJobService
 import com.google.android.media.tv.companionlibrary.model.Advertisement;
 import com.google.android.media.tv.companionlibrary.model.Channel;
 import com.google.android.media.tv.companionlibrary.model.InternalProviderData;
+import com.google.android.media.tv.companionlibrary.model.InternalProviderDataView;
 import com.google.android.media.tv.companionlibrary.model.Program;
 import com.google.android.media.tv.companionlibrary.xmltv.XmlTvParser;
 import java.util.ArrayList;
@@ -99,6 +100,11 @@ public class SampleJobService extends EpgSyncWithAdsJobService {
         if (!channel.getDisplayName().equals(MPEG_DASH_CHANNEL_NAME)) {
             // Is an XMLTV Channel
             XmlTvParser.TvListing listings = RichFeedUtil.getRichTvListings(getApplicationContext());
+            InternalProviderDataView channelData = channel.getInternalProviderDataView();
+            if (channelData != null && !channelData.isRepeatable()) {
+                return listings.getPrograms(channel, startMs, endMs);
+            }
+            // Repeated programs are looped over the whole range, so all of them are needed.
             return listings.getPrograms(channel);
         } else {
             // Build Advertisement list for the program.
@@ -18,15 +18,17 @@ package com.example.android.sampletvinput.rich;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.util.Log;
 import com.example.android.sampletvinput.R;
+import com.google.android.media.tv.companionlibrary.utils.HttpFeedCache;
+import com.google.android.media.tv.companionlibrary.xmltv.TvListingSnapshot;
 import com.google.android.media.tv.companionlibrary.xmltv.XmlTvParser;
 import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URL;
-import java.net.URLConnection;
 
 /**
  * Static helper methods for fetching the channel feed.
@@ -37,7 +39,10 @@ public class RichFeedUtil {
     // A key for the channel display number used in the app link intent from the xmltv_feed.
     public static final String EXTRA_DISPLAY_NUMBER = "display-number";
 
-    private static XmlTvParser.TvListing sSampleTvListing;
+    private static TvListingCache sTvListingCache;
+    // The validator of the feed the cached listing was loaded from.
+    private static volatile String sTvListingValidator;
+    private static HttpFeedCache sFeedCache;
 
     // For this sample we will use the local XML TV feed. In your real app, you will want to use a
     // remote feed to provide your users with up to date channel listings.
@@ -45,6 +50,12 @@ public class RichFeedUtil {
 
     private static final int URLCONNECTION_CONNECTION_TIMEOUT_MS = 3000;  // 3 sec
     private static final int URLCONNECTION_READ_TIMEOUT_MS = 10000;  // 10 sec
+    // How long a listing is used before its feed is checked for changes.
+    private static final long LISTING_TIME_TO_LIVE_MS = 1000 * 60 * 5;  // 5 min
+    // The maximum total number of channels and programs held in memory.
+    private static final int LISTING_CACHE_MAX_SIZE = 100000;
+    private static final String FEED_CACHE_DIRECTORY = "feeds";
+    private static final String LISTING_SNAPSHOT_FILE = "rich_tv_listing.snapshot";
 
     private RichFeedUtil() {
     }
@@ -56,13 +67,74 @@ public class RichFeedUtil {
                 + R.raw.rich_tv_input_xmltv_feed)
                 : Uri.parse(context.getResources().getString(R.string.rich_input_feed_url))
                 .normalizeScheme();
-        if (sSampleTvListing != null) {
-            return sSampleTvListing;
+        return getTvListingCache(context).get(catalogUri.toString());
+    }
+
+    private static synchronized TvListingCache getTvListingCache(Context context) {
+        if (sTvListingCache == null) {
+            final Context appContext = context.getApplicationContext();
+            sTvListingCache = new TvListingCache(new TvListingCache.Loader() {
+                @Override
+                public XmlTvParser.TvListing load(String key, XmlTvParser.TvListing previous) {
+                    return loadTvListing(appContext, Uri.parse(key), previous);
+                }
+            }, LISTING_TIME_TO_LIVE_MS, LISTING_CACHE_MAX_SIZE);
         }
+        return sTvListingCache;
+    }
+
+    /**
+     * Loads the listing of a feed. This is only called by {@link TvListingCache}, which makes sure
+     * that a feed is never loaded by two threads at once.
+     *
+     * @param previous The listing last loaded from the feed, or {@code null}.
+     * @return The listing, or {@code null} if it could not be loaded.
+     */
+    private static XmlTvParser.TvListing loadTvListing(Context context, Uri catalogUri,
+            XmlTvParser.TvListing previous) {
+        boolean remote = !isLocal(catalogUri);
+        XmlTvParser.TvListing listing = null;
         InputStream inputStream = null;
         try {
-             inputStream = getInputStream(context, catalogUri);
-            sSampleTvListing = XmlTvParser.parse(inputStream);
+            HttpFeedCache.Entry entry = null;
+            // Identifies the version of the feed, so that a snapshot of the listing parsed from
+            // it can be used instead of parsing it again.
+            String validator;
+            if (remote) {
+                entry = getFeedCache(context).fetch(catalogUri.toString());
+                if (entry.isUnchanged() && previous != null) {
+                    // Neither downloaded nor changed, so the listing parsed last time is current.
+                    return previous;
+                }
+                validator = entry.getValidator() == null
+                        ? null : catalogUri + " " + entry.getValidator();
+            } else {
+                // The local feed only changes when the app is updated.
+                validator = catalogUri + " " + context.getPackageManager()
+                        .getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+                if (previous != null && validator.equals(sTvListingValidator)) {
+                    return previous;
+                }
+            }
+            File snapshotFile = new File(context.getCacheDir(), LISTING_SNAPSHOT_FILE);
+            if (validator != null) {
+                listing = TvListingSnapshot.read(snapshotFile, validator);
+            }
+            if (listing == null) {
+                inputStream = remote
+                        ? entry.openInputStream() : getInputStream(context, catalogUri);
+                listing = XmlTvParser.parse(inputStream);
+                if (validator != null) {
+                    try {
+                        TvListingSnapshot.write(listing, validator, snapshotFile);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Error in writing a snapshot of " + catalogUri, e);
+                    }
+                }
+            }
+            sTvListingValidator = validator;
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.e(TAG, "Error in finding the version of " + catalogUri, e);
         } catch (IOException e) {
             Log.e(TAG, "Error in fetching " + catalogUri, e);
         } catch (XmlTvParser.XmlTvParseException e) {
@@ -76,23 +148,31 @@ public class RichFeedUtil {
                 }
             }
         }
-        return sSampleTvListing;
+        return listing;
     }
 
-    @SuppressWarnings("IdentityBinaryExpression")
     public static InputStream getInputStream(Context context, Uri uri) throws IOException {
-        InputStream inputStream;
-        if (ContentResolver.SCHEME_ANDROID_RESOURCE.equals(uri.getScheme())
-                || ContentResolver.SCHEME_ANDROID_RESOURCE.equals(uri.getScheme())
-                || ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
-            inputStream = context.getContentResolver().openInputStream(uri);
-        } else {
-            URLConnection urlConnection = new URL(uri.toString()).openConnection();
-            urlConnection.setConnectTimeout(URLCONNECTION_CONNECTION_TIMEOUT_MS);
-            urlConnection.setReadTimeout(URLCONNECTION_READ_TIMEOUT_MS);
-            inputStream = urlConnection.getInputStream();
+        if (!isLocal(uri)) {
+            // Remote feeds are only downloaded again if they changed.
+            return getFeedCache(context).fetch(uri.toString()).openInputStream();
         }
-
+        InputStream inputStream = context.getContentResolver().openInputStream(uri);
         return inputStream == null ? null : new BufferedInputStream(inputStream);
     }
+
+    @SuppressWarnings("IdentityBinaryExpression")
+    private static boolean isLocal(Uri uri) {
+        return ContentResolver.SCHEME_ANDROID_RESOURCE.equals(uri.getScheme())
+                || ContentResolver.SCHEME_ANDROID_RESOURCE.equals(uri.getScheme())
+                || ContentResolver.SCHEME_FILE.equals(uri.getScheme());
+    }
+
+    private static synchronized HttpFeedCache getFeedCache(Context context) {
+        if (sFeedCache == null) {
+            sFeedCache = new HttpFeedCache(
+                    new File(context.getApplicationContext().getCacheDir(), FEED_CACHE_DIRECTORY),
+                    URLCONNECTION_CONNECTION_TIMEOUT_MS, URLCONNECTION_READ_TIMEOUT_MS);
+        }
+        return sFeedCache;
+    }
 }
@@ -49,11 +49,13 @@ import com.google.android.media.tv.companionlibrary.TvPlayer;
 import com.google.android.media.tv.companionlibrary.model.Advertisement;
 import com.google.android.media.tv.companionlibrary.model.Channel;
 import com.google.android.media.tv.companionlibrary.model.InternalProviderData;
+import com.google.android.media.tv.companionlibrary.model.InternalProviderDataView;
 import com.google.android.media.tv.companionlibrary.model.Program;
 import com.google.android.media.tv.companionlibrary.model.RecordedProgram;
 import com.google.android.media.tv.companionlibrary.sync.EpgSyncJobService;
 import com.google.android.media.tv.companionlibrary.utils.TvContractUtils;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -201,8 +203,8 @@ public class RichTvInputService extends BaseTvInputService {
                 notifyVideoUnavailable(TvInputManager.VIDEO_UNAVAILABLE_REASON_TUNING);
                 return false;
             }
-            createPlayer(program.getInternalProviderData().getVideoType(),
-                    Uri.parse(program.getInternalProviderData().getVideoUrl()));
+            InternalProviderDataView data = program.getInternalProviderDataView();
+            createPlayer(data.getVideoType(), Uri.parse(data.getVideoUrl()));
             if (startPosMs > 0) {
                 mPlayer.seekTo(startPosMs);
             }
@@ -215,11 +217,10 @@ public class RichTvInputService extends BaseTvInputService {
 
         @RequiresApi(api = Build.VERSION_CODES.N)
         public boolean onPlayRecordedProgram(RecordedProgram recordedProgram) {
-            createPlayer(recordedProgram.getInternalProviderData().getVideoType(),
-                    Uri.parse(recordedProgram.getInternalProviderData().getVideoUrl()));
+            InternalProviderDataView data = recordedProgram.getInternalProviderDataView();
+            createPlayer(data.getVideoType(), Uri.parse(data.getVideoUrl()));
 
-            long recordingStartTime = recordedProgram.getInternalProviderData()
-                    .getRecordedProgramStartTime();
+            long recordingStartTime = data.getRecordedProgramStartTime();
             mPlayer.seekTo(recordingStartTime - recordedProgram.getStartTimeUtcMillis());
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
                 notifyTimeShiftStatusChanged(TvInputManager.TIME_SHIFT_STATUS_AVAILABLE);
@@ -368,7 +369,9 @@ public class RichTvInputService extends BaseTvInputService {
         }
 
         public void requestEpgSync(final Uri channelUri) {
-            EpgSyncJobService.requestImmediateSync(RichTvInputService.this, mInputId,
+            // Only the tuned channel is missing programs, so there is no need to sync the others.
+            EpgSyncJobService.requestChannelSync(RichTvInputService.this, mInputId,
+                    Collections.singletonList(channelUri),
                     new ComponentName(RichTvInputService.this, SampleJobService.class));
             new Handler(Looper.getMainLooper()).postDelayed(new Runnable() {
                 @Override
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput.rich;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.LruCache;
+import com.google.android.media.tv.companionlibrary.xmltv.XmlTvParser;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A thread-safe cache of parsed listings, keyed by the URI of their feed.
+ *
+ * <ul>
+ *   <li>Each listing is loaded by a single caller at a time. Concurrent callers of the same feed
+ *       wait for that load instead of parsing the feed again.
+ *   <li>Once a listing is older than the time to live, the next caller triggers a refresh in the
+ *       background and gets the stale listing until the refresh is done. If the refresh fails, the
+ *       stale listing is served for another time to live before it is refreshed again.
+ *   <li>Listings are evicted in least recently used order once the total number of channels and
+ *       programs they hold exceeds the maximum size. A listing which is larger than the maximum
+ *       size on its own is still kept, but evicts all others.
+ * </ul>
+ */
+public class TvListingCache {
+    private static final String TAG = "TvListingCache";
+
+    /** Loads the listing of a feed. */
+    public interface Loader {
+        /**
+         * Loads the listing of a feed. Called on the thread of the first caller, or on a
+         * background thread to refresh a stale listing.
+         *
+         * @param key The URI of the feed.
+         * @param previous The stale listing being refreshed, or {@code null}. It can be returned
+         *     if the feed has not changed.
+         * @return The listing, or {@code null} if it could not be loaded.
+         */
+        XmlTvParser.TvListing load(String key, XmlTvParser.TvListing previous);
+    }
+
+    private final Loader mLoader;
+    private final long mTimeToLiveMs;
+    private final LruCache<String, Entry> mEntries;
+    private final HashMap<String, FutureTask<XmlTvParser.TvListing>> mLoadTasks = new HashMap<>();
+    private final ExecutorService mRefreshExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * @param loader Loads the listings which are not cached or stale.
+     * @param timeToLiveMs How long a listing is served before it is refreshed.
+     * @param maxSize The maximum total number of channels and programs of the cached listings.
+     */
+    public TvListingCache(Loader loader, long timeToLiveMs, final int maxSize) {
+        mLoader = loader;
+        mTimeToLiveMs = timeToLiveMs;
+        mEntries = new LruCache<String, Entry>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Entry entry) {
+                // Otherwise LruCache would evict an oversized listing right after it is put.
+                return Math.min(entry.mSize, maxSize);
+            }
+        };
+    }
+
+    /**
+     * Returns the listing of a feed, loading it if it is not cached.
+     *
+     * @param key The URI of the feed.
+     * @return The listing, which may be stale while it is refreshed, or {@code null} if it is
+     *     not cached and could not be loaded.
+     */
+    public XmlTvParser.TvListing get(String key) {
+        FutureTask<XmlTvParser.TvListing> task;
+        boolean runTask = false;
+        synchronized (this) {
+            Entry entry = mEntries.get(key);
+            if (entry != null && SystemClock.elapsedRealtime() - entry.mLoadTimeMs
+                    < mTimeToLiveMs) {
+                return entry.mListing;
+            }
+            task = mLoadTasks.get(key);
+            if (task == null) {
+                task = createLoadTask(key, entry == null ? null : entry.mListing);
+                mLoadTasks.put(key, task);
+                if (entry != null) {
+                    mRefreshExecutor.execute(task);
+                } else {
+                    runTask = true;
+                }
+            }
+            if (entry != null) {
+                // Serve the stale listing while it is refreshed.
+                return entry.mListing;
+            }
+        }
+        if (runTask) {
+            task.run();
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Error in loading " + key, e.getCause());
+            return null;
+        }
+    }
+
+    private FutureTask<XmlTvParser.TvListing> createLoadTask(
+            final String key, final XmlTvParser.TvListing previous) {
+        return new FutureTask<>(new Callable<XmlTvParser.TvListing>() {
+            @Override
+            public XmlTvParser.TvListing call() {
+                XmlTvParser.TvListing listing = null;
+                try {
+                    listing = mLoader.load(key, previous);
+                    return listing;
+                } finally {
+                    synchronized (TvListingCache.this) {
+                        mLoadTasks.remove(key);
+                        // If refreshing failed, keep serving the stale listing, but don't retry
+                        // before it expires again, rather than on every call.
+                        if (listing != null) {
+                            mEntries.put(key, new Entry(listing));
+                        } else if (previous != null && mEntries.get(key) != null) {
+                            mEntries.put(key, new Entry(previous));
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    private static class Entry {
+        private final XmlTvParser.TvListing mListing;
+        private final long mLoadTimeMs = SystemClock.elapsedRealtime();
+        private final int mSize;
+
+        private Entry(XmlTvParser.TvListing listing) {
+            mListing = listing;
+            mSize = Math.max(1, listing.getChannels().size() + listing.getProgramCount());
+        }
+    }
+}
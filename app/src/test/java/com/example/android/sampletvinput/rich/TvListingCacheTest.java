@@ -0,0 +1,157 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput.rich;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.os.SystemClock;
+import com.example.android.sampletvinput.BuildConfig;
+import com.google.android.media.tv.companionlibrary.model.Channel;
+import com.google.android.media.tv.companionlibrary.xmltv.XmlTvParser;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** Tests that {@link TvListingCache} refreshes stale listings and evicts the least recent ones. */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class TvListingCacheTest {
+    private static final long TIME_TO_LIVE_MS = 60000;
+
+    private final AtomicInteger mLoadCount = new AtomicInteger();
+
+    @Test
+    public void testServesStaleListingWhileRefreshing() throws InterruptedException {
+        XmlTvParser.TvListing first = createListing(1);
+        XmlTvParser.TvListing second = createListing(1);
+        final ArrayDeque<XmlTvParser.TvListing> listings = new ArrayDeque<>();
+        listings.add(first);
+        listings.add(second);
+        TvListingCache cache =
+                new TvListingCache(
+                        new TvListingCache.Loader() {
+                            @Override
+                            public XmlTvParser.TvListing load(
+                                    String key, XmlTvParser.TvListing previous) {
+                                mLoadCount.incrementAndGet();
+                                synchronized (listings) {
+                                    return listings.poll();
+                                }
+                            }
+                        },
+                        TIME_TO_LIVE_MS,
+                        100);
+        assertSame(first, cache.get("feed"));
+        assertSame(first, cache.get("feed"));
+        assertEquals(1, mLoadCount.get());
+
+        SystemClock.sleep(TIME_TO_LIVE_MS);
+        // The stale listing is served while it is refreshed in the background.
+        assertSame(first, cache.get("feed"));
+        for (int i = 0; i < 100 && cache.get("feed") != second; i++) {
+            Thread.sleep(10);
+        }
+        assertSame(second, cache.get("feed"));
+        assertEquals(2, mLoadCount.get());
+    }
+
+    @Test
+    public void testFailedRefreshIsNotRetriedBeforeExpiry() throws InterruptedException {
+        final XmlTvParser.TvListing listing = createListing(1);
+        TvListingCache cache =
+                new TvListingCache(
+                        new TvListingCache.Loader() {
+                            @Override
+                            public XmlTvParser.TvListing load(
+                                    String key, XmlTvParser.TvListing previous) {
+                                // Only the first load succeeds.
+                                return mLoadCount.incrementAndGet() == 1 ? listing : null;
+                            }
+                        },
+                        TIME_TO_LIVE_MS,
+                        100);
+        assertSame(listing, cache.get("feed"));
+
+        SystemClock.sleep(TIME_TO_LIVE_MS);
+        assertSame(listing, cache.get("feed"));
+        for (int i = 0; i < 100 && mLoadCount.get() < 2; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, mLoadCount.get());
+        // The stale listing is served without another refresh until it expires again.
+        for (int i = 0; i < 10; i++) {
+            assertSame(listing, cache.get("feed"));
+        }
+        Thread.sleep(50);
+        assertEquals(2, mLoadCount.get());
+
+        SystemClock.sleep(TIME_TO_LIVE_MS);
+        assertSame(listing, cache.get("feed"));
+        for (int i = 0; i < 100 && mLoadCount.get() < 3; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(3, mLoadCount.get());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        final Map<String, XmlTvParser.TvListing> listings = new HashMap<>();
+        listings.put("small1", createListing(4));
+        listings.put("small2", createListing(4));
+        listings.put("large", createListing(20));
+        TvListingCache cache =
+                new TvListingCache(
+                        new TvListingCache.Loader() {
+                            @Override
+                            public XmlTvParser.TvListing load(
+                                    String key, XmlTvParser.TvListing previous) {
+                                mLoadCount.incrementAndGet();
+                                return listings.get(key);
+                            }
+                        },
+                        TIME_TO_LIVE_MS,
+                        10);
+        cache.get("small1");
+        cache.get("small2");
+        cache.get("small1");
+        assertEquals(2, mLoadCount.get());
+
+        // A listing larger than the cache is kept, but evicts the others.
+        cache.get("large");
+        cache.get("large");
+        assertEquals(3, mLoadCount.get());
+        cache.get("small2");
+        assertEquals(4, mLoadCount.get());
+    }
+
+    /** Returns a listing with the given number of channels and no programs. */
+    private static XmlTvParser.TvListing createListing(int channelCount) {
+        XmlTvParser.TvListing listing = mock(XmlTvParser.TvListing.class);
+        when(listing.getChannels()).thenReturn(Collections.<Channel>nCopies(channelCount, null));
+        when(listing.getProgramCount()).thenReturn(0);
+        return listing;
+    }
+}
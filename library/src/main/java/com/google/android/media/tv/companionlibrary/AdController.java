@@ -17,7 +17,12 @@
 package com.google.android.media.tv.companionlibrary;
 
 import android.content.Context;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Handler;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 import android.view.ViewGroup;
 import android.widget.FrameLayout;
@@ -31,6 +36,8 @@ import com.google.ads.interactivemedia.v3.api.AdsRequest;
 import com.google.ads.interactivemedia.v3.api.ImaSdkFactory;
 import com.google.ads.interactivemedia.v3.api.player.VideoAdPlayer;
 import com.google.ads.interactivemedia.v3.api.player.VideoProgressUpdate;
+import com.google.android.media.tv.companionlibrary.ads.AdCache;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -41,6 +48,9 @@ import java.util.List;
  * href="http://www.iab.com/guidelines/digital-video-ad-serving-template-vast-3-0/">VAST</a> video
  * ads, handle ad error and track the progress of ad playback.
  *
+ * <p>A controller can be {@link #reset()} and used again for another ad, which saves creating a
+ * new {@link AdsLoader}. Call {@link #release()} once it is no longer used.
+ *
  * @hide
  */
 public class AdController
@@ -78,6 +88,9 @@ public class AdController
     // Container with references to video player and ad UI ViewGroup.
     private AdDisplayContainer mAdDisplayContainer;
 
+    // The video player of the current ads, which listens to the TvPlayer once they play.
+    private VideoAdPlayerImpl mVideoAdPlayer;
+
     // The AdsLoader instance exposes the requestAds method.
     private AdsLoader mAdsLoader;
 
@@ -91,12 +104,30 @@ public class AdController
     // component.
     private ViewGroup mStubViewGroup;
 
-    // Callback used to define behavior of the ad.
+    // Callback used to define behavior of the ad. Null until the ads are played.
     private AdControllerCallback mAdControllerCallback;
 
+    // Whether the ads are loaded and can start playing right away.
+    private boolean mAdsLoaded;
+
+    // Whether the ads failed to load before they were played.
+    private boolean mFailed;
+
+    // Identifies the current ads request, so that events of requests made before the controller
+    // was reset are ignored.
+    private Object mRequestContext;
+
+    // Delivers the responses read from the ad cache on the thread the controller was created on.
+    private final Handler mHandler = new Handler();
+
     public AdController(Context context) {
+        this(context, ImaSdkFactory.getInstance());
+    }
+
+    @VisibleForTesting
+    AdController(Context context, ImaSdkFactory sdkFactory) {
         // Create an AdsLoader.
-        mSdkFactory = ImaSdkFactory.getInstance();
+        mSdkFactory = sdkFactory;
         mAdsLoader = mSdkFactory.createAdsLoader(context);
         mAdsLoader.addAdErrorListener(this);
         mAdsLoader.addAdsLoadedListener(this);
@@ -105,49 +136,170 @@ public class AdController
     }
 
     /**
-     * Requests video ads from the given VAST ad tag.
+     * Requests video ads from the given VAST ad tag and plays them as soon as they are loaded.
      *
      * @param adRequestUrl URL of the ad's VAST XML.
      */
     public void requestAds(
             @NonNull String adRequestUrl, @NonNull AdControllerCallback adControllerCallback) {
-        mAdControllerCallback = adControllerCallback;
+        prefetchAds(adRequestUrl);
+        playAds(adControllerCallback);
+    }
+
+    /**
+     * Requests and loads video ads from the given VAST ad tag ahead of time, without playing them.
+     * Call {@link #playAds(AdControllerCallback)} when the ads are due.
+     *
+     * @param adRequestUrl URL of the ad's VAST XML.
+     */
+    public void prefetchAds(@NonNull String adRequestUrl) {
+        prefetchAds(adRequestUrl, null);
+    }
 
+    /**
+     * Requests and loads video ads from the given VAST ad tag ahead of time, without playing them.
+     * The VAST XML and progressive ad videos are served from the given cache when possible.
+     *
+     * @param adRequestUrl URL of the ad's VAST XML.
+     * @param adCache The cache of ad responses and videos, or {@code null} to not use a cache.
+     */
+    public void prefetchAds(@NonNull final String adRequestUrl, @Nullable final AdCache adCache) {
+        final Object requestContext = new Object();
+        mRequestContext = requestContext;
+        if (adCache == null) {
+            requestAds(adRequestUrl, null, null, requestContext);
+            return;
+        }
+        String response = adCache.peekVastResponse(adRequestUrl);
+        if (response != null) {
+            requestAds(adRequestUrl, response, adCache, requestContext);
+            return;
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        final String response = adCache.getVastResponse(adRequestUrl);
+                        mHandler.post(
+                                new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        // Drop the response if the controller was reset meanwhile.
+                                        if (mRequestContext == requestContext) {
+                                            requestAds(
+                                                    adRequestUrl,
+                                                    response,
+                                                    adCache,
+                                                    requestContext);
+                                        }
+                                    }
+                                });
+                    }
+                });
+    }
+
+    private void requestAds(
+            String adRequestUrl, String response, AdCache adCache, Object requestContext) {
         mAdDisplayContainer = mSdkFactory.createAdDisplayContainer();
-        mAdDisplayContainer.setPlayer(new VideoAdPlayerImpl());
+        mVideoAdPlayer = new VideoAdPlayerImpl(adCache);
+        mAdDisplayContainer.setPlayer(mVideoAdPlayer);
         mAdDisplayContainer.setAdContainer(mStubViewGroup);
 
-        // Create the ads request.
+        // Create the ads request. If the response could not be read from the cache, the IMA SDK
+        // requests it.
         AdsRequest request = mSdkFactory.createAdsRequest();
-        request.setAdTagUrl(adRequestUrl);
+        if (response != null) {
+            request.setAdsResponse(response);
+        } else {
+            request.setAdTagUrl(adRequestUrl);
+        }
         request.setAdDisplayContainer(mAdDisplayContainer);
+        request.setUserRequestContext(requestContext);
 
         // Request the ad. After the ad is loaded, onAdsManagerLoaded() will be called.
         mAdsLoader.requestAds(request);
     }
 
-    /** Releases related resources. */
-    public void release() {
-        if (mAdsManager != null) {
-            mAdsManager.destroy();
-            mAdsManager = null;
+    /**
+     * Plays the ads requested by {@link #prefetchAds(String)}. They start right away if they are
+     * already loaded, or as soon as they are.
+     *
+     * @param adControllerCallback The callback notified of the ad playback.
+     */
+    public void playAds(@NonNull AdControllerCallback adControllerCallback) {
+        mAdControllerCallback = adControllerCallback;
+        if (mFailed) {
+            mAdControllerCallback.onAdError();
+        } else if (mAdsLoaded) {
+            mAdsManager.start();
         }
+    }
+
+    /** @return Whether the ads failed to load before they were played. */
+    public boolean hasFailed() {
+        return mFailed;
+    }
+
+    /**
+     * Stops and drops the current ads, so that the controller can request other ads. The callback
+     * of the current ads is not notified anymore.
+     */
+    public void reset() {
+        destroyAdsManager();
+        if (mVideoAdPlayer != null) {
+            mVideoAdPlayer.unregisterFromTvPlayer();
+            mVideoAdPlayer = null;
+        }
+        mAdDisplayContainer = null;
+        mAdControllerCallback = null;
+        mAdsLoaded = false;
+        mFailed = false;
+        mRequestContext = null;
+    }
+
+    /** Releases related resources. The controller cannot be used anymore. */
+    public void release() {
+        reset();
         if (mAdsLoader != null) {
             mAdsLoader.removeAdsLoadedListener(this);
             mAdsLoader.removeAdErrorListener(this);
+            mAdsLoader = null;
+        }
+    }
+
+    private void destroyAdsManager() {
+        if (mAdsManager != null) {
+            mAdsManager.removeAdErrorListener(this);
+            mAdsManager.removeAdEventListener(this);
+            mAdsManager.destroy();
+            mAdsManager = null;
         }
     }
 
     @Override
     public void onAdError(AdErrorEvent adErrorEvent) {
+        Object requestContext = adErrorEvent.getUserRequestContext();
+        if (requestContext != null && requestContext != mRequestContext) {
+            // An error of ads requested before the controller was reset.
+            return;
+        }
         Log.e(TAG, adErrorEvent.getError().getMessage());
-        mAdControllerCallback.onAdError();
-        release();
+        destroyAdsManager();
+        if (mAdControllerCallback != null) {
+            mAdControllerCallback.onAdError();
+        } else {
+            mFailed = true;
+        }
     }
 
     /** An event raised when ads are successfully loaded from the ad server via an AdsLoader. */
     @Override
     public void onAdsManagerLoaded(AdsManagerLoadedEvent adsManagerLoadedEvent) {
+        if (adsManagerLoadedEvent.getUserRequestContext() != mRequestContext) {
+            // Ads requested before the controller was reset.
+            adsManagerLoadedEvent.getAdsManager().destroy();
+            return;
+        }
         // Ads were successfully loaded, so get the AdsManager instance. AdsManager has
         // events for ad playback and errors.
         mAdsManager = adsManagerLoadedEvent.getAdsManager();
@@ -171,37 +323,74 @@ public class AdController
                 // AdEventType.LOADED will be fired when ads are ready to be played.
                 // AdsManager.start() begins ad playback. This method is ignored for VMAP or ad
                 // rules playlists, as the SDK will automatically start executing the playlist.
-                mAdsManager.start();
+                // Prefetched ads wait until they are played.
+                mAdsLoaded = true;
+                if (mAdControllerCallback != null) {
+                    mAdsManager.start();
+                }
                 break;
             case COMPLETED:
                 // AdEventType.COMPLETED is fire when ad is completed, but before the fire of
                 // AdEventType.CONTENT_RESUME_REQUESTED.
+                destroyAdsManager();
                 mAdControllerCallback.onAdCompleted();
-                release();
                 break;
             default:
                 break;
         }
     }
 
+    /** @return Whether the video is a single file, as opposed to an adaptive stream. */
+    private static boolean isProgressive(String videoUrl) {
+        String path = Uri.parse(videoUrl).getPath();
+        if (path == null) {
+            return false;
+        }
+        path = path.toLowerCase();
+        return !path.endsWith(".m3u8") && !path.endsWith(".mpd") && !path.endsWith(".ism");
+    }
+
     private class VideoAdPlayerImpl extends TvPlayer.Callback implements VideoAdPlayer {
         String mAdVideoUrl;
         TvPlayer mTvPlayer;
         List<VideoAdPlayerCallback> mAdCallbacks;
+        final AdCache mAdCache;
 
-        VideoAdPlayerImpl() {
+        VideoAdPlayerImpl(AdCache adCache) {
             mAdCallbacks = new ArrayList<>(1);
+            mAdCache = adCache;
         }
 
         @Override
-        public void loadAd(String adVideoUrl) {
+        public void loadAd(final String adVideoUrl) {
             mAdVideoUrl = adVideoUrl;
+            if (mAdCache != null && isProgressive(adVideoUrl)) {
+                // Download the video while the ad waits to be played, or for the next time.
+                AsyncTask.THREAD_POOL_EXECUTOR.execute(
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                mAdCache.downloadCreative(adVideoUrl);
+                            }
+                        });
+            }
         }
 
         @Override
         public void playAd() {
-            mTvPlayer = mAdControllerCallback.onAdReadyToPlay(mAdVideoUrl);
-            mTvPlayer.registerCallback(this);
+            String adVideoUrl = mAdVideoUrl;
+            if (mAdCache != null && isProgressive(adVideoUrl)) {
+                File file = mAdCache.getCreative(adVideoUrl);
+                if (file != null) {
+                    adVideoUrl = Uri.fromFile(file).toString();
+                }
+            }
+            TvPlayer tvPlayer = mAdControllerCallback.onAdReadyToPlay(adVideoUrl);
+            if (tvPlayer != mTvPlayer) {
+                unregisterFromTvPlayer();
+                mTvPlayer = tvPlayer;
+                mTvPlayer.registerCallback(this);
+            }
             mTvPlayer.play();
         }
 
@@ -210,6 +399,14 @@ public class AdController
             // Do nothing.
         }
 
+        /** Stops listening to the TvPlayer, which outlives the ads it played. */
+        void unregisterFromTvPlayer() {
+            if (mTvPlayer != null) {
+                mTvPlayer.unregisterCallback(this);
+                mTvPlayer = null;
+            }
+        }
+
         @Override
         public void pauseAd() {
             // Do nothing.
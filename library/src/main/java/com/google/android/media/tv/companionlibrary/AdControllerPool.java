@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary;
+
+import android.content.Context;
+import android.support.annotation.VisibleForTesting;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of {@link AdController}s, so that ad breaks reuse the controllers and their ads loaders
+ * instead of creating new ones.
+ *
+ * <p>A controller returned by {@link #acquire()} is owned by the caller until it is handed back
+ * with {@link #recycle(AdController)}. The pool owns the idle controllers and releases them in
+ * {@link #release()}. It must only be used on a single thread.
+ */
+final class AdControllerPool {
+    /** Creates the controllers of a pool. */
+    interface Factory {
+        /** @return A new controller. */
+        AdController create();
+    }
+
+    private final Factory mFactory;
+    private final int mMaxIdleCount;
+    private final ArrayDeque<AdController> mIdleControllers = new ArrayDeque<>();
+
+    /**
+     * @param context The context to create the controllers with.
+     * @param maxIdleCount The maximum number of idle controllers kept for reuse.
+     */
+    AdControllerPool(final Context context, int maxIdleCount) {
+        this(
+                new Factory() {
+                    @Override
+                    public AdController create() {
+                        return new AdController(context);
+                    }
+                },
+                maxIdleCount);
+    }
+
+    /**
+     * @param factory Creates the controllers when there is no idle one.
+     * @param maxIdleCount The maximum number of idle controllers kept for reuse.
+     */
+    @VisibleForTesting
+    AdControllerPool(Factory factory, int maxIdleCount) {
+        mFactory = factory;
+        mMaxIdleCount = maxIdleCount;
+    }
+
+    /** @return An idle controller, or a new one if there is none. */
+    AdController acquire() {
+        AdController controller = mIdleControllers.pollFirst();
+        return controller != null ? controller : mFactory.create();
+    }
+
+    /**
+     * Resets a controller and keeps it for reuse, or releases it if enough controllers are idle.
+     *
+     * @param controller A controller returned by {@link #acquire()}.
+     */
+    void recycle(AdController controller) {
+        if (mIdleControllers.size() < mMaxIdleCount) {
+            controller.reset();
+            mIdleControllers.addFirst(controller);
+        } else {
+            controller.release();
+        }
+    }
+
+    /** Releases the idle controllers. Controllers which are still acquired are not affected. */
+    void release() {
+        for (AdController controller : mIdleControllers) {
+            controller.release();
+        }
+        mIdleControllers.clear();
+    }
+}
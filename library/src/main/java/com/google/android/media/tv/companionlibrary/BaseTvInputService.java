@@ -37,20 +37,23 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
 import android.support.annotation.RequiresApi;
+import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 import android.util.LongSparseArray;
 import android.view.Surface;
+import com.google.android.media.tv.companionlibrary.ads.AdCache;
 import com.google.android.media.tv.companionlibrary.model.Advertisement;
 import com.google.android.media.tv.companionlibrary.model.Channel;
+import com.google.android.media.tv.companionlibrary.model.InternalProviderDataView;
 import com.google.android.media.tv.companionlibrary.model.ModelUtils;
 import com.google.android.media.tv.companionlibrary.model.Program;
 import com.google.android.media.tv.companionlibrary.model.RecordedProgram;
 import com.google.android.media.tv.companionlibrary.utils.Constants;
+import com.google.android.media.tv.companionlibrary.utils.RecentChannels;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -151,9 +154,10 @@ public abstract class BaseTvInputService extends TvInputService {
      */
     public abstract static class Session extends TvInputService.Session
             implements Handler.Callback {
-        private static final int MSG_PLAY_CONTENT = 1000;
+        @VisibleForTesting static final int MSG_PLAY_CONTENT = 1000;
         private static final int MSG_PLAY_AD = 1001;
         private static final int MSG_PLAY_RECORDED_CONTENT = 1002;
+        private static final int MSG_PREFETCH_AD = 1003;
 
         /**
          * Minimum difference between playback time and system time in order for playback to be
@@ -165,8 +169,11 @@ public abstract class BaseTvInputService extends TvInputService {
          * time relative to the current time, it is considered past and will not load.
          */
         private static final long PAST_AD_BUFFER_MILLIS = 2000L;
+        /** The number of idle ad controllers kept for reuse, to play ads and to prefetch them. */
+        private static final int MAX_IDLE_AD_CONTROLLERS = 2;
 
         private final Context mContext;
+        private final String mInputId;
         private final TvInputManager mTvInputManager;
         private Channel mCurrentChannel;
         private Program mCurrentProgram;
@@ -190,18 +197,32 @@ public abstract class BaseTvInputService extends TvInputService {
         private GetCurrentProgramRunnable mGetCurrentProgramRunnable;
 
         private long mMinimumOnTuneAdInterval = TimeUnit.MINUTES.toMillis(5);
+        private long mAdPrefetchLeadTime = TimeUnit.SECONDS.toMillis(10);
+        private final AdControllerPool mAdControllerPool;
+        private AdCache mAdCache;
         private AdController mAdController;
+        // The controller which loads the next scheduled ad ahead of time, and that ad.
+        private AdController mPrefetchAdController;
+        private Advertisement mPrefetchAd;
         private Uri mChannelUri;
         private Surface mSurface;
         private float mVolume = 1.0f;
 
         public Session(Context context, String inputId) {
+            this(context, inputId, new AdControllerPool(context, MAX_IDLE_AD_CONTROLLERS));
+        }
+
+        @VisibleForTesting
+        Session(Context context, String inputId, AdControllerPool adControllerPool) {
             super(context);
             this.mContext = context;
+            mInputId = inputId;
             mTvInputManager = (TvInputManager) context.getSystemService(Context.TV_INPUT_SERVICE);
             mLastBlockedRating = null;
             mDbHandler = new Handler(mDbHandlerThread.getLooper());
             mHandler = new Handler(this);
+            mAdControllerPool = adControllerPool;
+            mAdCache = AdCache.getDefault(context);
         }
 
         @Override
@@ -209,6 +230,8 @@ public abstract class BaseTvInputService extends TvInputService {
             mDbHandler.removeCallbacksAndMessages(null);
             mHandler.removeCallbacksAndMessages(null);
             releaseAdController();
+            releasePrefetchAdController();
+            mAdControllerPool.release();
             mSessions.remove(this);
         }
 
@@ -221,6 +244,9 @@ public abstract class BaseTvInputService extends TvInputService {
                     return true;
                 case MSG_PLAY_AD:
                     return insertAd((Advertisement) msg.obj);
+                case MSG_PREFETCH_AD:
+                    prefetchAd((Advertisement) msg.obj);
+                    return true;
                 case MSG_PLAY_RECORDED_CONTENT:
                     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
                         mPlayingRecordedProgram = true;
@@ -264,14 +290,23 @@ public abstract class BaseTvInputService extends TvInputService {
             notifyVideoUnavailable(TvInputManager.VIDEO_UNAVAILABLE_REASON_TUNING);
 
             mChannelUri = channelUri;
-            long channelId = ContentUris.parseId(channelUri);
+            final long channelId = ContentUris.parseId(channelUri);
             mCurrentChannel = mChannelMap.get(channelId);
+            // Reading and writing the preferences can block, so keep it off the main thread.
+            mDbHandler.post(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            RecentChannels.add(mContext, mInputId, channelId);
+                        }
+                    });
 
             mTimeShiftedPlaybackPosition = TvInputManager.TIME_SHIFT_INVALID_TIME;
 
             // Release Ads assets
             releaseAdController();
-            mHandler.removeMessages(MSG_PLAY_AD);
+            releasePrefetchAdController();
+            removeAdMessages();
 
             if (mDbHandler != null) {
                 mUnblockedRatingSet.clear();
@@ -284,7 +319,7 @@ public abstract class BaseTvInputService extends TvInputService {
 
         @Override
         public void onTimeShiftPause() {
-            mHandler.removeMessages(MSG_PLAY_AD);
+            removeAdMessages();
             mDbHandler.removeCallbacks(mGetCurrentProgramRunnable);
             mTimeShiftIsPaused = true;
             if (getTvPlayer() != null) {
@@ -307,21 +342,23 @@ public abstract class BaseTvInputService extends TvInputService {
                 mElapsedProgramTime = getTvPlayer().getCurrentPosition();
                 long elapsedProgramTimeAdjusted =
                         mElapsedProgramTime + mCurrentProgram.getStartTimeUtcMillis();
-                if (mCurrentProgram.getInternalProviderData() != null) {
-                    List<Advertisement> ads = mCurrentProgram.getInternalProviderData().getAds();
-                    // First, sort the ads in time order.
-                    TreeMap<Long, Long> scheduledAds = new TreeMap<>();
-                    for (Advertisement ad : ads) {
-                        scheduledAds.put(ad.getStartTimeUtcMillis(), ad.getStopTimeUtcMillis());
-                    }
-                    // Second, add up all ad times which should have played before the elapsed
-                    // program time.
+                InternalProviderDataView data = mCurrentProgram.getInternalProviderDataView();
+                if (data != null) {
+                    // The ads are already sorted in time order. Add up all ad times which should
+                    // have played before the elapsed program time.
+                    List<Advertisement> ads = data.getAds();
                     long programDurationPlayed = 0;
                     long totalDurationPlayed = 0;
-                    for (Long adStartTime : scheduledAds.keySet()) {
+                    for (int i = 0; i < ads.size(); i++) {
+                        long adStartTime = ads.get(i).getStartTimeUtcMillis();
+                        if (i + 1 < ads.size()
+                                && ads.get(i + 1).getStartTimeUtcMillis() == adStartTime) {
+                            // Only count one of the ads starting at the same time.
+                            continue;
+                        }
                         programDurationPlayed += adStartTime - totalDurationPlayed;
                         if (programDurationPlayed < elapsedProgramTimeAdjusted) {
-                            long adDuration = scheduledAds.get(adStartTime) - adStartTime;
+                            long adDuration = ads.get(i).getStopTimeUtcMillis() - adStartTime;
                             mElapsedAdsTime += adDuration;
                             totalDurationPlayed = programDurationPlayed + adDuration;
                         } else {
@@ -360,14 +397,16 @@ public abstract class BaseTvInputService extends TvInputService {
                 return;
             }
 
-            mHandler.removeMessages(MSG_PLAY_AD);
+            removeAdMessages();
             mDbHandler.removeCallbacks(mGetCurrentProgramRunnable);
 
             // Update our handler because we have changed the playback time.
             if (getTvPlayer() != null) {
                 if (mPlayingRecordedProgram) {
                     long recordingStartTime =
-                            mCurrentProgram.getInternalProviderData().getRecordedProgramStartTime();
+                            mCurrentProgram
+                                    .getInternalProviderDataView()
+                                    .getRecordedProgramStartTime();
                     getTvPlayer()
                             .seekTo(
                                     (timeMs - mRecordedPlaybackStartTime)
@@ -412,7 +451,9 @@ public abstract class BaseTvInputService extends TvInputService {
             if (getTvPlayer() != null && mCurrentProgram != null) {
                 if (mPlayingRecordedProgram) {
                     long recordingStartTime =
-                            mCurrentProgram.getInternalProviderData().getRecordedProgramStartTime();
+                            mCurrentProgram
+                                    .getInternalProviderDataView()
+                                    .getRecordedProgramStartTime();
                     // If time shifting somehow shifted past (before) recording start time,
                     // seek player back up to recording start time.
                     if (getTvPlayer().getCurrentPosition()
@@ -458,7 +499,7 @@ public abstract class BaseTvInputService extends TvInputService {
         @Override
         public void onTimeShiftSetPlaybackParams(PlaybackParams params) {
             if (params.getSpeed() != 1.0f) {
-                mHandler.removeMessages(MSG_PLAY_AD);
+                removeAdMessages();
                 mDbHandler.removeCallbacks(mGetCurrentProgramRunnable);
             }
 
@@ -573,9 +614,11 @@ public abstract class BaseTvInputService extends TvInputService {
             long currentTimeMs = getCurrentTime();
             mElapsedAdsTime = 0;
             mElapsedProgramTime = currentTimeMs - mCurrentProgram.getStartTimeUtcMillis();
-            if (mCurrentProgram.getInternalProviderData() != null) {
-                List<Advertisement> ads = mCurrentProgram.getInternalProviderData().getAds();
-                for (Advertisement ad : ads) {
+            InternalProviderDataView data = mCurrentProgram.getInternalProviderDataView();
+            if (data != null) {
+                List<Advertisement> ads = data.getAds();
+                for (int i = 0; i < ads.size(); i++) {
+                    Advertisement ad = ads.get(i);
                     if (ad.getStopTimeUtcMillis() < (currentTimeMs + PAST_AD_BUFFER_MILLIS)) {
                         // Subtract past ad playback time to seek to
                         // the correct content playback position.
@@ -611,16 +654,18 @@ public abstract class BaseTvInputService extends TvInputService {
         }
 
         private boolean scheduleNextAd() {
-            mHandler.removeMessages(MSG_PLAY_AD);
+            removeAdMessages();
             if (mPlayingRecordedProgram) {
                 return false;
             }
             long currentTimeMs = getCurrentTime();
-            if (mCurrentProgram.getInternalProviderData() != null) {
-                List<Advertisement> ads = mCurrentProgram.getInternalProviderData().getAds();
+            InternalProviderDataView data = mCurrentProgram.getInternalProviderDataView();
+            if (data != null) {
+                List<Advertisement> ads = data.getAds();
                 Advertisement adToPlay = null;
                 long timeTilAdToPlay = 0;
-                for (Advertisement ad : ads) {
+                for (int i = 0; i < ads.size(); i++) {
+                    Advertisement ad = ads.get(i);
                     if (ad.getStopTimeUtcMillis() > currentTimeMs + PAST_AD_BUFFER_MILLIS) {
                         long timeTilAd = ad.getStartTimeUtcMillis() - currentTimeMs;
                         if (timeTilAd < 0) {
@@ -628,16 +673,23 @@ public abstract class BaseTvInputService extends TvInputService {
                             // of the ad will be skipped by the AdControllerCallback.
                             mHandler.sendMessage(mHandler.obtainMessage(MSG_PLAY_AD, ad));
                             return false;
-                        } else if (adToPlay == null || timeTilAd < timeTilAdToPlay) {
-                            adToPlay = ad;
-                            timeTilAdToPlay = timeTilAd;
                         }
+                        // The ads are sorted by start time, so this is the next one to play.
+                        adToPlay = ad;
+                        timeTilAdToPlay = timeTilAd;
+                        break;
                     }
                 }
 
                 if (adToPlay != null) {
                     Message pauseContentPlayAdMsg = mHandler.obtainMessage(MSG_PLAY_AD, adToPlay);
                     mHandler.sendMessageDelayed(pauseContentPlayAdMsg, timeTilAdToPlay);
+                    if (mAdPrefetchLeadTime > 0) {
+                        // Load the ad ahead of time, so that it starts right when it is due.
+                        Message prefetchAdMsg = mHandler.obtainMessage(MSG_PREFETCH_AD, adToPlay);
+                        mHandler.sendMessageDelayed(
+                                prefetchAdMsg, Math.max(0, timeTilAdToPlay - mAdPrefetchLeadTime));
+                    }
                 }
             } else {
                 Log.w(
@@ -651,7 +703,8 @@ public abstract class BaseTvInputService extends TvInputService {
 
         private void playCurrentChannel() {
             Message playAd = null;
-            if (mCurrentChannel.getInternalProviderData() != null) {
+            InternalProviderDataView data = mCurrentChannel.getInternalProviderDataView();
+            if (data != null) {
                 // Get the last played ad time for this channel.
                 long mostRecentOnTuneAdWatchedTime =
                         mContext.getSharedPreferences(
@@ -660,7 +713,7 @@ public abstract class BaseTvInputService extends TvInputService {
                                         Constants.SHARED_PREFERENCES_KEY_LAST_CHANNEL_AD_PLAY
                                                 + mCurrentChannel.getId(),
                                         0);
-                List<Advertisement> ads = mCurrentChannel.getInternalProviderData().getAds();
+                List<Advertisement> ads = data.getAds();
                 if (!ads.isEmpty()
                         && System.currentTimeMillis() - mostRecentOnTuneAdWatchedTime
                                 > mMinimumOnTuneAdInterval) {
@@ -685,10 +738,7 @@ public abstract class BaseTvInputService extends TvInputService {
 
             // If timeshifting, do not play the ad.
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-                long timeShiftedDifference =
-                        System.currentTimeMillis() - mTimeShiftedPlaybackPosition;
-                if (mTimeShiftedPlaybackPosition != TvInputManager.TIME_SHIFT_INVALID_TIME
-                        && timeShiftedDifference > TIME_SHIFTED_MINIMUM_DIFFERENCE_MILLIS) {
+                if (isTimeShifted()) {
                     mElapsedAdsTime += ad.getStopTimeUtcMillis() - ad.getStartTimeUtcMillis();
                     mTimeShiftedPlaybackPosition =
                             mElapsedProgramTime
@@ -708,18 +758,65 @@ public abstract class BaseTvInputService extends TvInputService {
             }
 
             releaseAdController();
-            mAdController = new AdController(mContext);
-            mAdController.requestAds(ad.getRequestUrl(), new AdControllerCallbackImpl(ad));
+            if (mPrefetchAdController != null
+                    && ad.equals(mPrefetchAd)
+                    && !mPrefetchAdController.hasFailed()) {
+                mAdController = mPrefetchAdController;
+                mPrefetchAdController = null;
+                mPrefetchAd = null;
+            } else {
+                // The ad was not prefetched, or prefetching it failed. Request it now.
+                releasePrefetchAdController();
+                mAdController = mAdControllerPool.acquire();
+                mAdController.prefetchAds(ad.getRequestUrl(), mAdCache);
+            }
+            mAdController.playAds(new AdControllerCallbackImpl(ad));
             return true;
         }
 
+        private void prefetchAd(Advertisement ad) {
+            if (ad.equals(mPrefetchAd)) {
+                return;
+            }
+            releasePrefetchAdController();
+            // If timeshifting, the ad will be skipped.
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && isTimeShifted()) {
+                return;
+            }
+            if (DEBUG) {
+                Log.d(TAG, "Prefetch an ad");
+            }
+            mPrefetchAd = ad;
+            mPrefetchAdController = mAdControllerPool.acquire();
+            mPrefetchAdController.prefetchAds(ad.getRequestUrl(), mAdCache);
+        }
+
+        private boolean isTimeShifted() {
+            long timeShiftedDifference = System.currentTimeMillis() - mTimeShiftedPlaybackPosition;
+            return mTimeShiftedPlaybackPosition != TvInputManager.TIME_SHIFT_INVALID_TIME
+                    && timeShiftedDifference > TIME_SHIFTED_MINIMUM_DIFFERENCE_MILLIS;
+        }
+
+        private void removeAdMessages() {
+            mHandler.removeMessages(MSG_PLAY_AD);
+            mHandler.removeMessages(MSG_PREFETCH_AD);
+        }
+
         private void releaseAdController() {
             if (mAdController != null) {
-                mAdController.release();
+                mAdControllerPool.recycle(mAdController);
                 mAdController = null;
             }
         }
 
+        private void releasePrefetchAdController() {
+            if (mPrefetchAdController != null) {
+                mAdControllerPool.recycle(mPrefetchAdController);
+                mPrefetchAdController = null;
+            }
+            mPrefetchAd = null;
+        }
+
         /** Return the current {@link TvPlayer}. */
         public abstract TvPlayer getTvPlayer();
 
@@ -780,6 +877,29 @@ public abstract class BaseTvInputService extends TvInputService {
             mMinimumOnTuneAdInterval = minimumOnTuneAdInterval;
         }
 
+        /**
+         * Set how long before a scheduled ad starts to request and load it, so that it starts
+         * playing without delay. The default value is 10 seconds.
+         *
+         * @param adPrefetchLeadTime The lead time in milliseconds, or 0 to only request ads when
+         *     they are due to play.
+         */
+        public void setAdPrefetchLeadTime(long adPrefetchLeadTime) {
+            mAdPrefetchLeadTime = adPrefetchLeadTime;
+        }
+
+        /**
+         * Set the cache which serves the VAST responses and progressive videos of ads which play
+         * repeatedly. By default, the cache shared within the process is used, which keeps them
+         * for an hour.
+         *
+         * @param adCache The cache, or {@code null} to always request ads from the ad server.
+         * @see AdCache#getDefault(Context)
+         */
+        public void setAdCache(AdCache adCache) {
+            mAdCache = adCache;
+        }
+
         public Uri getCurrentChannelUri() {
             return mChannelUri;
         }
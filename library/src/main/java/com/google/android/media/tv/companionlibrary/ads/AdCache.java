@@ -0,0 +1,424 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary.ads;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.LruCache;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * A cache of VAST ad responses and progressive ad creatives, so that ads which play again and
+ * again, e.g. the ads of a channel or of a repeated program, are served locally.
+ *
+ * <ul>
+ *   <li>Responses and creatives are served for the time to live after they were downloaded, and
+ *       downloaded again afterwards.
+ *   <li>Both are stored on disk, which is bounded by a number of bytes. The least recently used
+ *       entries are evicted first.
+ *   <li>Responses are also kept in memory, which is bounded by a number of bytes as well.
+ *   <li>Responses without any ads are not cached, so that an ad tag which had no ads to serve
+ *       is requested again next time.
+ * </ul>
+ *
+ * <p>The methods which download block, so they must not be called on the main thread. Only use
+ * the cache for ad tags whose responses may be served more than once, since ad servers cannot
+ * count the requests which are served from it.
+ */
+public class AdCache {
+    private static final String TAG = "AdCache";
+    private static final boolean DEBUG = false;
+
+    private static final long DEFAULT_TIME_TO_LIVE_MS = TimeUnit.HOURS.toMillis(1);
+    private static final long DEFAULT_MAX_DISK_BYTES = 50 * 1024 * 1024;
+    private static final int DEFAULT_MAX_MEMORY_BYTES = 512 * 1024;
+    private static final String DEFAULT_DIRECTORY = "ads";
+
+    private static final int CONNECT_TIMEOUT_MS = 3000; // 3 sec
+    private static final int READ_TIMEOUT_MS = 10000; // 10 sec
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final String RESPONSE_SUFFIX = ".vast";
+    private static final String CREATIVE_SUFFIX = ".creative";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // The start tag of an <Ad> element, but not of e.g. <AdSystem>.
+    private static final Pattern AD_START_TAG = Pattern.compile("<Ad[\\s/>]");
+
+    private static AdCache sDefaultCache;
+
+    private final File mDirectory;
+    private final long mTimeToLiveMs;
+    private final long mMaxDiskBytes;
+    private final LruCache<String, Response> mResponses;
+    // The sizes of the files on disk by name, in least recently used order. The sizes are kept
+    // so that the total stays right even if a file is deleted by someone else.
+    private final LinkedHashMap<String, Long> mFileSizes = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> mDownloads = new HashSet<>();
+    private long mDiskBytes;
+    private boolean mFilesLoaded;
+
+    /**
+     * @param directory The directory to store the responses and creatives in, e.g. a
+     *     subdirectory of {@link Context#getCacheDir()}. It is created if it does not exist.
+     * @param timeToLiveMs How long a response or creative is served after it was downloaded.
+     * @param maxDiskBytes The maximum total size of the files on disk.
+     * @param maxMemoryBytes The maximum total size of the responses kept in memory. It must be
+     *     positive.
+     */
+    public AdCache(File directory, long timeToLiveMs, long maxDiskBytes, int maxMemoryBytes) {
+        mDirectory = directory;
+        mTimeToLiveMs = timeToLiveMs;
+        mMaxDiskBytes = maxDiskBytes;
+        mResponses =
+                new LruCache<String, Response>(maxMemoryBytes) {
+                    @Override
+                    protected int sizeOf(String key, Response response) {
+                        return response.mBody.length() * 2;
+                    }
+                };
+    }
+
+    /**
+     * Returns the cache shared within the process, which keeps responses and creatives for an
+     * hour in the cache directory of the app.
+     *
+     * @param context The context to get the cache directory from.
+     * @return The shared cache.
+     */
+    public static synchronized AdCache getDefault(Context context) {
+        if (sDefaultCache == null) {
+            sDefaultCache =
+                    new AdCache(
+                            new File(context.getCacheDir(), DEFAULT_DIRECTORY),
+                            DEFAULT_TIME_TO_LIVE_MS,
+                            DEFAULT_MAX_DISK_BYTES,
+                            DEFAULT_MAX_MEMORY_BYTES);
+        }
+        return sDefaultCache;
+    }
+
+    /**
+     * Returns the VAST response of an ad tag if it is cached in memory. It does not access the
+     * disk or the network, so it can be called on the main thread.
+     *
+     * @param adTagUrl The URL of the ad tag.
+     * @return The response, or {@code null} if it is not in memory or has expired.
+     */
+    public String peekVastResponse(String adTagUrl) {
+        Response response = mResponses.get(adTagUrl);
+        if (response == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - response.mDownloadTimeMs >= mTimeToLiveMs) {
+            mResponses.remove(adTagUrl);
+            return null;
+        }
+        return response.mBody;
+    }
+
+    /**
+     * Returns the VAST response of an ad tag, downloading it if it is not cached.
+     *
+     * @param adTagUrl The URL of the ad tag.
+     * @return The response, or {@code null} if it is not cached and could not be downloaded.
+     */
+    public String getVastResponse(String adTagUrl) {
+        String body = peekVastResponse(adTagUrl);
+        if (body != null) {
+            return body;
+        }
+        String name = getFileName(adTagUrl, RESPONSE_SUFFIX);
+        File file;
+        synchronized (this) {
+            // Wait for another caller which downloads the same response, as both would write the
+            // same temporary file.
+            while (mDownloads.contains(name)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            file = getFile(name);
+            if (file == null) {
+                mDownloads.add(name);
+            }
+        }
+        boolean download = file == null;
+        HttpURLConnection connection = null;
+        try {
+            if (!download) {
+                body = new String(read(new FileInputStream(file)), StandardCharsets.UTF_8);
+            } else {
+                connection = openConnection(adTagUrl);
+                byte[] bytes = read(connection.getInputStream());
+                body = new String(bytes, StandardCharsets.UTF_8);
+                if (!AD_START_TAG.matcher(body).find()) {
+                    // No ads to serve this time, so don't keep serving none.
+                    return body;
+                }
+                File temp = new File(mDirectory, name + TEMP_SUFFIX);
+                try (OutputStream out = new FileOutputStream(createDirectory(temp))) {
+                    out.write(bytes);
+                }
+                file = putFile(name, temp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to get the response of " + adTagUrl, e);
+            return null;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            if (download) {
+                synchronized (this) {
+                    mDownloads.remove(name);
+                    notifyAll();
+                }
+            }
+        }
+        // The downloaded response expires along with the file it was stored in.
+        mResponses.put(adTagUrl, new Response(body, file.lastModified()));
+        return body;
+    }
+
+    /**
+     * Returns a creative if it is cached on disk. It does not download anything.
+     *
+     * @param creativeUrl The URL of the creative.
+     * @return The file the creative is stored in, or {@code null} if it is not cached or has
+     *     expired.
+     */
+    public File getCreative(String creativeUrl) {
+        return getFile(getFileName(creativeUrl, CREATIVE_SUFFIX));
+    }
+
+    /**
+     * Downloads a creative unless it is already cached or being downloaded.
+     *
+     * @param creativeUrl The URL of the creative.
+     * @return The file the creative is stored in, or {@code null} if it is being downloaded by
+     *     another caller or could not be downloaded.
+     */
+    public File downloadCreative(String creativeUrl) {
+        String name = getFileName(creativeUrl, CREATIVE_SUFFIX);
+        synchronized (this) {
+            File file = getFile(name);
+            if (file != null || !mDownloads.add(name)) {
+                return file;
+            }
+        }
+        File temp = new File(mDirectory, name + TEMP_SUFFIX);
+        HttpURLConnection connection = null;
+        try {
+            connection = openConnection(creativeUrl);
+            if (connection.getContentLength() > mMaxDiskBytes) {
+                // It would be evicted right away.
+                return null;
+            }
+            try (InputStream in = connection.getInputStream();
+                    OutputStream out = new FileOutputStream(createDirectory(temp))) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+            }
+            File file = putFile(name, temp);
+            if (DEBUG) {
+                Log.d(TAG, "Downloaded " + creativeUrl + " to " + file);
+            }
+            return file;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to download " + creativeUrl, e);
+            temp.delete();
+            return null;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            synchronized (this) {
+                mDownloads.remove(name);
+            }
+        }
+    }
+
+    /** Removes all responses and creatives from memory and disk. */
+    public synchronized void clear() {
+        mResponses.evictAll();
+        loadFiles();
+        for (String name : mFileSizes.keySet()) {
+            new File(mDirectory, name).delete();
+        }
+        mFileSizes.clear();
+        mDiskBytes = 0;
+    }
+
+    private synchronized File getFile(String name) {
+        loadFiles();
+        if (!mFileSizes.containsKey(name)) {
+            return null;
+        }
+        File file = new File(mDirectory, name);
+        if (!file.exists()
+                || System.currentTimeMillis() - file.lastModified() >= mTimeToLiveMs) {
+            removeFile(name);
+            return null;
+        }
+        return file;
+    }
+
+    private synchronized File putFile(String name, File temp) throws IOException {
+        loadFiles();
+        if (mFileSizes.containsKey(name)) {
+            removeFile(name);
+        }
+        File file = new File(mDirectory, name);
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Failed to store " + file);
+        }
+        // The time to live starts when the download is done.
+        file.setLastModified(System.currentTimeMillis());
+        long size = file.length();
+        mFileSizes.put(name, size);
+        mDiskBytes += size;
+        // Evict the least recently used files, possibly including this one if it is too large.
+        Iterator<Map.Entry<String, Long>> iterator = mFileSizes.entrySet().iterator();
+        while (mDiskBytes > mMaxDiskBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> evicted = iterator.next();
+            mDiskBytes -= evicted.getValue();
+            new File(mDirectory, evicted.getKey()).delete();
+            iterator.remove();
+        }
+        return file;
+    }
+
+    private void removeFile(String name) {
+        mDiskBytes -= mFileSizes.remove(name);
+        new File(mDirectory, name).delete();
+    }
+
+    /** Reads the files which are already on disk, the least recently downloaded first. */
+    private void loadFiles() {
+        if (mFilesLoaded) {
+            return;
+        }
+        mFilesLoaded = true;
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(
+                files,
+                new Comparator<File>() {
+                    @Override
+                    public int compare(File file1, File file2) {
+                        return Long.compare(file1.lastModified(), file2.lastModified());
+                    }
+                });
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                // Left behind by an interrupted download.
+                file.delete();
+            } else {
+                long size = file.length();
+                mFileSizes.put(file.getName(), size);
+                mDiskBytes += size;
+            }
+        }
+    }
+
+    private File createDirectory(File file) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Failed to create " + mDirectory);
+        }
+        return file;
+    }
+
+    private static HttpURLConnection openConnection(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        int responseCode = connection.getResponseCode();
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            connection.disconnect();
+            throw new IOException("Unexpected response " + responseCode + " for " + url);
+        }
+        return connection;
+    }
+
+    private static byte[] read(InputStream stream) throws IOException {
+        try (InputStream in = stream) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /** Returns a file name which is unique for the URL. */
+    private static String getFileName(String url, String suffix) {
+        try {
+            byte[] digest =
+                    MessageDigest.getInstance("SHA-1").digest(url.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(digest.length * 2 + suffix.length());
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16));
+                name.append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.append(suffix).toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every platform provides SHA-1.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Response {
+        private final String mBody;
+        private final long mDownloadTimeMs;
+
+        private Response(String body, long downloadTimeMs) {
+            mBody = body;
+            mDownloadTimeMs = downloadTimeMs;
+        }
+    }
+}
@@ -18,9 +18,8 @@ package com.google.android.media.tv.companionlibrary.ads;
 
 import android.net.Uri;
 import android.support.annotation.VisibleForTesting;
-import com.google.android.media.tv.companionlibrary.model.Advertisement;
 import com.google.android.media.tv.companionlibrary.model.Channel;
-import com.google.android.media.tv.companionlibrary.model.InternalProviderData;
+import com.google.android.media.tv.companionlibrary.model.InternalProviderDataView;
 import com.google.android.media.tv.companionlibrary.model.Program;
 import com.google.android.media.tv.companionlibrary.sync.EpgSyncJobService;
 import java.util.ArrayList;
@@ -49,6 +48,11 @@ public abstract class EpgSyncWithAdsJobService extends EpgSyncJobService {
     /**
      * Repeats and ads ads to programs as needed.
      *
+     * <p>If the channel doesn't repeat its programs, only the programs overlapping the range are
+     * returned. A program ending exactly at the start of the range is left out, as in {@link
+     * com.google.android.media.tv.companionlibrary.xmltv.XmlTvParser.TvListing#getPrograms(Channel,
+     * long, long)}, which is the cheaper way to fetch them for such channels.
+     *
      * @param channel The {@link Channel} for the programs to return.
      * @param programs The original fetched from cloud.
      * @param startTimeMs The start time of the range requested.
@@ -66,11 +70,11 @@ public abstract class EpgSyncWithAdsJobService extends EpgSyncJobService {
             return programs;
         }
         List<Program> programForGivenTime = new ArrayList<>();
-        if (channel.getInternalProviderData() != null
-                && !channel.getInternalProviderData().isRepeatable()) {
+        InternalProviderDataView channelData = channel.getInternalProviderDataView();
+        if (channelData != null && !channelData.isRepeatable()) {
             for (Program program : programs) {
                 if (program.getStartTimeUtcMillis() <= endTimeMs
-                        && program.getEndTimeUtcMillis() >= startTimeMs) {
+                        && program.getEndTimeUtcMillis() > startTimeMs) {
                     programForGivenTime.add(
                             new Program.Builder(program).setChannelId(channel.getId()).build());
                 }
@@ -78,77 +82,8 @@ public abstract class EpgSyncWithAdsJobService extends EpgSyncJobService {
             return programForGivenTime;
         }
 
-        // If repeat-programs is on, schedule the programs sequentially in a loop. To make every
-        // device play the same program in a given channel and time, we assumes the loop started
-        // from the epoch time.
-        long totalDurationMs = 0;
-        for (Program program : programs) {
-            totalDurationMs += (program.getEndTimeUtcMillis() - program.getStartTimeUtcMillis());
-        }
-        if (totalDurationMs <= 0) {
-            throw new IllegalArgumentException(
-                    "The duration of all programs must be greater " + "than 0ms.");
-        }
-
-        long programStartTimeMs = startTimeMs - startTimeMs % totalDurationMs;
-        int i = 0;
-        final int programCount = programs.size();
-        while (programStartTimeMs < endTimeMs) {
-            Program programInfo = programs.get(i++ % programCount);
-            long programEndTimeMs = programStartTimeMs + totalDurationMs;
-            if (programInfo.getEndTimeUtcMillis() > -1
-                    && programInfo.getStartTimeUtcMillis() > -1) {
-                programEndTimeMs =
-                        programStartTimeMs
-                                + (programInfo.getEndTimeUtcMillis()
-                                        - programInfo.getStartTimeUtcMillis());
-            }
-            if (programEndTimeMs < startTimeMs) {
-                programStartTimeMs = programEndTimeMs;
-                continue;
-            }
-            // Shift advertisement time to match current program time.
-            InternalProviderData updateInternalProviderData = programInfo.getInternalProviderData();
-            shiftAdsTimeWithProgram(
-                    updateInternalProviderData,
-                    programInfo.getStartTimeUtcMillis(),
-                    programStartTimeMs);
-            programForGivenTime.add(
-                    new Program.Builder(programInfo)
-                            .setChannelId(channel.getId())
-                            .setStartTimeUtcMillis(programStartTimeMs)
-                            .setEndTimeUtcMillis(programEndTimeMs)
-                            .setInternalProviderData(updateInternalProviderData)
-                            .build());
-            programStartTimeMs = programEndTimeMs;
-        }
-        return programForGivenTime;
-    }
-
-    /**
-     * Shift advertisement time to match program playback time. For channels with repeated program,
-     * the time for current program may vary from what it was defined previously.
-     *
-     * @param oldProgramStartTimeMs Outdated program start time.
-     * @param newProgramStartTimeMs Updated program start time.
-     */
-    private static void shiftAdsTimeWithProgram(
-            InternalProviderData internalProviderData,
-            long oldProgramStartTimeMs,
-            long newProgramStartTimeMs) {
-        if (internalProviderData == null) {
-            return;
-        }
-        long timeShift = newProgramStartTimeMs - oldProgramStartTimeMs;
-        List<Advertisement> oldAds = internalProviderData.getAds();
-        List<Advertisement> newAds = new ArrayList<>();
-        for (Advertisement oldAd : oldAds) {
-            newAds.add(
-                    new Advertisement.Builder(oldAd)
-                            .setStartTimeUtcMillis(oldAd.getStartTimeUtcMillis() + timeShift)
-                            .setStopTimeUtcMillis(oldAd.getStopTimeUtcMillis() + timeShift)
-                            .build());
-        }
-        internalProviderData.setAds(newAds);
+        // If repeat-programs is on, schedule the programs sequentially in a loop. Only the
+        // programs which are read from the returned list are built.
+        return new RepeatSchedule(channel, programs).getPrograms(startTimeMs, endTimeMs);
     }
 }
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary.ads;
+
+import com.google.android.media.tv.companionlibrary.model.Channel;
+import com.google.android.media.tv.companionlibrary.model.InternalProviderData;
+import com.google.android.media.tv.companionlibrary.model.InternalProviderDataView;
+import com.google.android.media.tv.companionlibrary.model.Program;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * The schedule of a channel which plays its programs in a loop. To make every device play the
+ * same program in a given channel and time, the loop is aligned to the epoch.
+ *
+ * <p>The start of each program within the loop is computed once, so that the program playing at
+ * any time is found with a binary search. {@link #getPrograms(long, long)} returns a list which
+ * only builds the programs which are actually read from it.
+ */
+final class RepeatSchedule {
+    private final Channel mChannel;
+    private final List<Program> mPrograms;
+    // The start of each program within the loop, followed by the duration of the loop.
+    private final long[] mOffsets;
+    // The sum of the durations of the programs, which the loop is aligned to.
+    private final long mAlignmentMs;
+    // The data of the programs with ads, with the ads relative to the start of the program, so
+    // that all repetitions of a program share it.
+    private final byte[][] mSharedData;
+
+    /**
+     * @param channel The channel the programs are played on.
+     * @param programs The programs to play in a loop, in order.
+     * @throws IllegalArgumentException If the total duration of the programs is not positive.
+     */
+    RepeatSchedule(Channel channel, List<Program> programs) {
+        mChannel = channel;
+        mPrograms = programs;
+        long totalDurationMs = 0;
+        for (Program program : programs) {
+            totalDurationMs += program.getEndTimeUtcMillis() - program.getStartTimeUtcMillis();
+        }
+        if (totalDurationMs <= 0) {
+            throw new IllegalArgumentException(
+                    "The duration of all programs must be greater than 0ms.");
+        }
+        mAlignmentMs = totalDurationMs;
+        int programCount = programs.size();
+        mOffsets = new long[programCount + 1];
+        for (int i = 0; i < programCount; i++) {
+            mOffsets[i + 1] = mOffsets[i] + getDurationMs(programs.get(i));
+        }
+        mSharedData = new byte[programCount][];
+    }
+
+    /**
+     * Returns the programs which play between the given times. A program which ends at {@code
+     * startMs} is included, while one which starts at {@code endMs} is not.
+     *
+     * @param startMs The start of the range in milliseconds since the epoch.
+     * @param endMs The end of the range in milliseconds since the epoch.
+     * @return An unmodifiable list which builds each program the first time it is read.
+     */
+    List<Program> getPrograms(long startMs, long endMs) {
+        long loopStartMs = startMs - startMs % mAlignmentMs;
+        // The program before the first one which starts at or after startMs ends at or after it.
+        long firstSlot = Math.max(0, getFirstSlotStartingAt(loopStartMs, startMs) - 1);
+        long endSlot = getFirstSlotStartingAt(loopStartMs, endMs);
+        return new ProgramList(loopStartMs, firstSlot, (int) Math.max(0, endSlot - firstSlot));
+    }
+
+    /**
+     * Returns the first slot of the loop starting at {@code loopStartMs} which starts at or after
+     * {@code timeMs}. Slot {@code n} plays program {@code n % programCount} of repetition {@code
+     * n / programCount}.
+     */
+    private long getFirstSlotStartingAt(long loopStartMs, long timeMs) {
+        int programCount = mPrograms.size();
+        long loopDurationMs = mOffsets[programCount];
+        long offsetMs = Math.max(0, timeMs - loopStartMs);
+        long repetition = offsetMs / loopDurationMs;
+        long remainderMs = offsetMs % loopDurationMs;
+        // Find the first offset which is at least the remainder.
+        int low = 0;
+        int high = programCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mOffsets[middle] < remainderMs) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return repetition * programCount + low;
+    }
+
+    private Program buildProgram(long loopStartMs, long slot) {
+        int programCount = mPrograms.size();
+        int index = (int) (slot % programCount);
+        Program program = mPrograms.get(index);
+        long startMs =
+                loopStartMs + slot / programCount * mOffsets[programCount] + mOffsets[index];
+        Program.Builder builder =
+                new Program.Builder(program)
+                        .setChannelId(mChannel.getId())
+                        .setStartTimeUtcMillis(startMs)
+                        .setEndTimeUtcMillis(startMs + mOffsets[index + 1] - mOffsets[index]);
+        if (mSharedData[index] == null) {
+            mSharedData[index] = getSharedData(program);
+        }
+        return builder.setInternalProviderData(mSharedData[index]).build();
+    }
+
+    /**
+     * Returns the data of a program with its ads stored relative to the start of the program, so
+     * that the ads move along with each repetition of the program.
+     */
+    private static byte[] getSharedData(Program program) {
+        InternalProviderDataView view = program.getInternalProviderDataView();
+        if (view == null || view.getAds().isEmpty()) {
+            return program.getInternalProviderDataByteArray();
+        }
+        InternalProviderData data = program.getInternalProviderData();
+        if (data.hasRelativeAds()) {
+            return program.getInternalProviderDataByteArray();
+        }
+        data.setAdsRelativeTo(view.getAds(), program.getStartTimeUtcMillis());
+        return data.toString().getBytes();
+    }
+
+    /**
+     * Returns how long a program plays in the loop. A program without start and end times plays
+     * as long as the whole loop.
+     */
+    private long getDurationMs(Program program) {
+        if (program.getEndTimeUtcMillis() > -1 && program.getStartTimeUtcMillis() > -1) {
+            return program.getEndTimeUtcMillis() - program.getStartTimeUtcMillis();
+        }
+        return mAlignmentMs;
+    }
+
+    /** The programs of a range of slots, built when they are first read. */
+    private class ProgramList extends AbstractList<Program> implements RandomAccess {
+        private final long mLoopStartMs;
+        private final long mFirstSlot;
+        private final Program[] mBuiltPrograms;
+
+        ProgramList(long loopStartMs, long firstSlot, int size) {
+            mLoopStartMs = loopStartMs;
+            mFirstSlot = firstSlot;
+            mBuiltPrograms = new Program[size];
+        }
+
+        @Override
+        public Program get(int location) {
+            if (location < 0 || location >= mBuiltPrograms.length) {
+                throw new IndexOutOfBoundsException("Invalid index " + location);
+            }
+            if (mBuiltPrograms[location] == null) {
+                mBuiltPrograms[location] = buildProgram(mLoopStartMs, mFirstSlot + location);
+            }
+            return mBuiltPrograms[location];
+        }
+
+        @Override
+        public int size() {
+            return mBuiltPrograms.length;
+        }
+    }
+}
@@ -51,6 +51,7 @@ public final class Channel {
     private String mAppLinkPosterArtUri;
     private String mAppLinkIntentUri;
     private byte[] mInternalProviderData;
+    private volatile InternalProviderDataView mInternalProviderDataView;
     private String mNetworkAffiliation;
     private int mSearchable;
     private String mServiceType;
@@ -169,6 +170,18 @@ public final class Channel {
         return mSearchable == IS_SEARCHABLE;
     }
 
+    /**
+     * @return A cached, immutable view of {@link TvContract.Channels#COLUMN_INTERNAL_PROVIDER_DATA}
+     *     for the channel, or {@code null} if there is no data or it cannot be parsed. Prefer this
+     *     over {@link #getInternalProviderData()} when only reading the data.
+     */
+    public InternalProviderDataView getInternalProviderDataView() {
+        InternalProviderDataView view =
+                InternalProviderDataView.of(mInternalProviderDataView, mInternalProviderData);
+        mInternalProviderDataView = view;
+        return view.orNull();
+    }
+
     /**
      * @return The value of {@link TvContract.Channels#COLUMN_INTERNAL_PROVIDER_DATA} for the
      *     channel.
@@ -43,6 +43,7 @@ public class InternalProviderData {
     private static final String KEY_REPEATABLE = "repeatable";
     private static final String KEY_CUSTOM_DATA = "custom";
     private static final String KEY_ADVERTISEMENTS = "advertisements";
+    private static final String KEY_ADVERTISEMENTS_START_TIME = "advertisementsStartTime";
     private static final String KEY_ADVERTISEMENT_START = "start";
     private static final String KEY_ADVERTISEMENT_STOP = "stop";
     private static final String KEY_ADVERTISEMENT_TYPE = "type";
@@ -204,9 +205,54 @@ public class InternalProviderData {
     /**
      * Gets a list of all advertisements. If no ads have been assigned, the list will be empty.
      *
+     * <p>If the ads were set with {@link #setAdsRelativeTo(List, long)}, their times are those of
+     * the program they were set for. The data returned by {@link Program#getInternalProviderData()}
+     * and {@link RecordedProgram#getInternalProviderData()} has already been moved to the start
+     * time of that program. When reading the stored data of a program directly, which may be
+     * shared with other programs, use {@link #getAds(long)} with the program's start time instead.
+     *
      * @return A list of all advertisements for this channel or program.
      */
     public List<Advertisement> getAds() {
+        return parseAds(mJsonObject.optLong(KEY_ADVERTISEMENTS_START_TIME));
+    }
+
+    /**
+     * Gets a list of all advertisements with their actual times. If no ads have been assigned, the
+     * list will be empty.
+     *
+     * @param startTimeUtcMillis The start time of the program which this data belongs to.
+     * @return A list of all advertisements for this channel or program.
+     */
+    public List<Advertisement> getAds(long startTimeUtcMillis) {
+        return parseAds(hasRelativeAds() ? startTimeUtcMillis : 0);
+    }
+
+    /**
+     * Checks whether the times of the advertisements are stored relative to the start of the
+     * program.
+     *
+     * @return Whether the ads were set with {@link #setAdsRelativeTo(List, long)}.
+     */
+    public boolean hasRelativeAds() {
+        return mJsonObject.has(KEY_ADVERTISEMENTS_START_TIME);
+    }
+
+    /**
+     * Moves the ads set with {@link #setAdsRelativeTo(List, long)} to the program which starts at
+     * the given time, so that {@link #getAds()} returns their times in that program. Other ads are
+     * left as they are.
+     */
+    void moveRelativeAdsTo(long startTimeUtcMillis) {
+        if (hasRelativeAds()) {
+            try {
+                mJsonObject.put(KEY_ADVERTISEMENTS_START_TIME, startTimeUtcMillis);
+            } catch (JSONException ignored) {
+            }
+        }
+    }
+
+    private List<Advertisement> parseAds(long timeShiftMs) {
         List<Advertisement> ads = new ArrayList<>();
         try {
             if (mJsonObject.has(KEY_ADVERTISEMENTS)) {
@@ -214,8 +260,8 @@ public class InternalProviderData {
                         new JSONArray(mJsonObject.get(KEY_ADVERTISEMENTS).toString());
                 for (int i = 0; i < adsJsonArray.length(); i++) {
                     JSONObject ad = adsJsonArray.getJSONObject(i);
-                    long start = ad.getLong(KEY_ADVERTISEMENT_START);
-                    long stop = ad.getLong(KEY_ADVERTISEMENT_STOP);
+                    long start = ad.getLong(KEY_ADVERTISEMENT_START) + timeShiftMs;
+                    long stop = ad.getLong(KEY_ADVERTISEMENT_STOP) + timeShiftMs;
                     int type = ad.getInt(KEY_ADVERTISEMENT_TYPE);
                     String requestUrl = ad.getString(KEY_ADVERTISEMENT_REQUEST_URL);
                     ads.add(
@@ -290,21 +336,53 @@ public class InternalProviderData {
      * Sets a list of advertisements for this channel or program. If setting for a channel, list
      * size should be <= 1. Channels cannot have more than one advertisement.
      *
-     * @param ads A list of advertisements that should be shown.
+     * @param ads A list of advertisements that should be shown. If it is {@code null} or empty,
+     *     the ads are removed.
      */
     public void setAds(List<Advertisement> ads) {
+        putAds(ads, 0, false);
+    }
+
+    /**
+     * Sets a list of advertisements for this program, storing their times relative to the start
+     * of the program. Programs which play the same content at different times, e.g. the
+     * repetitions of a repeated program, can then share the same data.
+     *
+     * <p>The data is stored with the offsets of the ads and the start time they are relative to.
+     * Apps which read {@link android.media.tv.TvContract.Programs#COLUMN_INTERNAL_PROVIDER_DATA}
+     * without {@link Program} must add the start time of the program they read it for to the
+     * offsets, e.g. with {@link #getAds(long)}.
+     *
+     * @param ads A list of advertisements that should be shown, with their actual times. If it is
+     *     {@code null} or empty, the ads are removed.
+     * @param startTimeUtcMillis The start time of the program which this data belongs to.
+     */
+    public void setAdsRelativeTo(List<Advertisement> ads, long startTimeUtcMillis) {
+        putAds(ads, startTimeUtcMillis, true);
+    }
+
+    private void putAds(List<Advertisement> ads, long startTimeUtcMillis, boolean relative) {
+        if (ads == null || ads.isEmpty()) {
+            mJsonObject.remove(KEY_ADVERTISEMENTS);
+            mJsonObject.remove(KEY_ADVERTISEMENTS_START_TIME);
+            return;
+        }
         try {
-            if (ads != null && !ads.isEmpty()) {
-                JSONArray adsJsonArray = new JSONArray();
-                for (Advertisement ad : ads) {
-                    JSONObject adJson = new JSONObject();
-                    adJson.put(KEY_ADVERTISEMENT_START, ad.getStartTimeUtcMillis());
-                    adJson.put(KEY_ADVERTISEMENT_STOP, ad.getStopTimeUtcMillis());
-                    adJson.put(KEY_ADVERTISEMENT_TYPE, ad.getType());
-                    adJson.put(KEY_ADVERTISEMENT_REQUEST_URL, ad.getRequestUrl());
-                    adsJsonArray.put(adJson);
-                }
-                mJsonObject.put(KEY_ADVERTISEMENTS, adsJsonArray);
+            JSONArray adsJsonArray = new JSONArray();
+            for (Advertisement ad : ads) {
+                JSONObject adJson = new JSONObject();
+                adJson.put(
+                        KEY_ADVERTISEMENT_START, ad.getStartTimeUtcMillis() - startTimeUtcMillis);
+                adJson.put(KEY_ADVERTISEMENT_STOP, ad.getStopTimeUtcMillis() - startTimeUtcMillis);
+                adJson.put(KEY_ADVERTISEMENT_TYPE, ad.getType());
+                adJson.put(KEY_ADVERTISEMENT_REQUEST_URL, ad.getRequestUrl());
+                adsJsonArray.put(adJson);
+            }
+            mJsonObject.put(KEY_ADVERTISEMENTS, adsJsonArray);
+            if (relative) {
+                mJsonObject.put(KEY_ADVERTISEMENTS_START_TIME, startTimeUtcMillis);
+            } else {
+                mJsonObject.remove(KEY_ADVERTISEMENTS_START_TIME);
             }
         } catch (JSONException ignored) {
         }
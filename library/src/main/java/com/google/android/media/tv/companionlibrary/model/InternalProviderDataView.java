@@ -0,0 +1,157 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary.model;
+
+import com.google.android.media.tv.companionlibrary.utils.TvContractUtils;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable, parsed view of the predefined values of an {@link InternalProviderData}.
+ *
+ * <p>Unlike {@link InternalProviderData}, whose getters read the JSON data on every call, all
+ * values are parsed once when the view is created. {@link Program}, {@link Channel} and {@link
+ * RecordedProgram} cache their view, so it can be used freely on the playback thread, e.g. to
+ * schedule ads, without parsing or allocating anything.
+ */
+public final class InternalProviderDataView {
+    private static final InternalProviderDataView EMPTY =
+            new InternalProviderDataView(null, null, 0);
+
+    private final byte[] mSource;
+    private final long mStartTimeUtcMillis;
+    private final boolean mValid;
+    private final int mVideoType;
+    private final String mVideoUrl;
+    private final boolean mRepeatable;
+    private final long mRecordedProgramStartTime;
+    private final List<Advertisement> mAds;
+
+    private InternalProviderDataView(
+            byte[] source, InternalProviderData data, long startTimeUtcMillis) {
+        mSource = source;
+        mStartTimeUtcMillis = startTimeUtcMillis;
+        mValid = data != null;
+        if (data != null) {
+            mVideoType = data.getVideoType();
+            mVideoUrl = data.getVideoUrl();
+            mRepeatable = data.isRepeatable();
+            mRecordedProgramStartTime = data.getRecordedProgramStartTime();
+            List<Advertisement> ads = data.getAds(startTimeUtcMillis);
+            Collections.sort(ads);
+            mAds = Collections.unmodifiableList(ads);
+        } else {
+            mVideoType = TvContractUtils.SOURCE_TYPE_INVALID;
+            mVideoUrl = null;
+            mRepeatable = false;
+            mRecordedProgramStartTime = 0;
+            mAds = Collections.emptyList();
+        }
+    }
+
+    /** @see InternalProviderData#getVideoType() */
+    public int getVideoType() {
+        return mVideoType;
+    }
+
+    /** @see InternalProviderData#getVideoUrl() */
+    public String getVideoUrl() {
+        return mVideoUrl;
+    }
+
+    /** @see InternalProviderData#isRepeatable() */
+    public boolean isRepeatable() {
+        return mRepeatable;
+    }
+
+    /** @see InternalProviderData#getRecordedProgramStartTime() */
+    public long getRecordedProgramStartTime() {
+        return mRecordedProgramStartTime;
+    }
+
+    /**
+     * Gets all advertisements with their actual times, sorted by start time and then stop time.
+     * If no ads have been assigned, the list will be empty.
+     *
+     * @return An unmodifiable list of all advertisements for this channel or program. It supports
+     *     fast random access, so it can be iterated by index without allocating.
+     */
+    public List<Advertisement> getAds() {
+        return mAds;
+    }
+
+    @Override
+    public String toString() {
+        return "InternalProviderDataView{"
+                + "videoType="
+                + mVideoType
+                + ", videoUrl="
+                + mVideoUrl
+                + ", repeatable="
+                + mRepeatable
+                + ", recordedProgramStartTime="
+                + mRecordedProgramStartTime
+                + ", ads="
+                + mAds
+                + "}";
+    }
+
+    /**
+     * Returns the cached view if it was created from the given data, or creates a new one.
+     *
+     * @param cached The view cached by the model object, or {@code null}.
+     * @param data The current internal provider data of the model object.
+     * @return A view of {@code data}. Use {@link #orNull()} to get what to return to callers.
+     */
+    static InternalProviderDataView of(InternalProviderDataView cached, byte[] data) {
+        return of(cached, data, 0);
+    }
+
+    /**
+     * Returns the cached view if it was created from the given data, or creates a new one.
+     *
+     * @param cached The view cached by the model object, or {@code null}.
+     * @param data The current internal provider data of the model object.
+     * @param startTimeUtcMillis The start time of the program, which the times of ads set with
+     *     {@link InternalProviderData#setAdsRelativeTo(List, long)} are relative to.
+     * @return A view of {@code data}. Use {@link #orNull()} to get what to return to callers.
+     */
+    static InternalProviderDataView of(
+            InternalProviderDataView cached, byte[] data, long startTimeUtcMillis) {
+        // The model builders may replace the data after the view was created, but never change
+        // the contents of the array, so comparing the reference is enough.
+        if (cached != null
+                && cached.mSource == data
+                && cached.mStartTimeUtcMillis == startTimeUtcMillis) {
+            return cached;
+        }
+        if (data == null) {
+            return EMPTY;
+        }
+        try {
+            return new InternalProviderDataView(
+                    data, new InternalProviderData(data), startTimeUtcMillis);
+        } catch (InternalProviderData.ParseException e) {
+            return new InternalProviderDataView(data, null, startTimeUtcMillis);
+        }
+    }
+
+    /** @return This view, or {@code null} if there was no data or it could not be parsed. */
+    InternalProviderDataView orNull() {
+        return mValid ? this : null;
+    }
+}
@@ -16,6 +16,8 @@
 
 package com.google.android.media.tv.companionlibrary.model;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
@@ -24,10 +26,12 @@ import android.media.tv.TvContract;
 import android.media.tv.TvContract.Channels;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Build;
 import android.support.annotation.NonNull;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.LongSparseArray;
+import com.google.android.media.tv.companionlibrary.utils.OperationBatcher;
 import com.google.android.media.tv.companionlibrary.utils.TvContractUtils.InsertLogosTask;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -40,6 +44,18 @@ public final class ModelUtils {
     private static final String TAG = "ModelUtils";
     private static final boolean DEBUG = false;
 
+    // SQLite limits the number of bound arguments of a single statement to 999.
+    private static final int MAX_IDS_PER_QUERY = 500;
+    // Deletes are batched with other operations by their estimated size, which doesn't count the
+    // selection arguments, so keep them to a few kilobytes.
+    private static final int MAX_IDS_PER_DELETE = 100;
+    private static final String PROGRAMS_BY_CHANNEL_SORT_ORDER =
+            TvContract.Programs.COLUMN_CHANNEL_ID
+                    + ", "
+                    + TvContract.Programs.COLUMN_START_TIME_UTC_MILLIS;
+    private static final long FNV_64_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_64_PRIME = 0x100000001b3L;
+
     /**
      * Called when {@link #updateChannels(Context, String, List, OnChannelDeletedCallback)} deletes
      * a channel.
@@ -51,6 +67,11 @@ public final class ModelUtils {
     /**
      * Updates the list of available channels.
      *
+     * <p>The channels are written with a few batched transactions. From API 23, each channel is
+     * stored with a fingerprint of its values, so channels which have not changed since the last
+     * update are skipped entirely. The fingerprint of a channel with a logo is only stored once
+     * the logo has been inserted, so that a logo which failed to download is retried.
+     *
      * @param context The application's context.
      * @param inputId The ID of the TV input service that provides this TV channel.
      * @param channels The updated list of channels.
@@ -61,20 +82,34 @@ public final class ModelUtils {
             String inputId,
             List<Channel> channels,
             OnChannelDeletedCallback onChannelDeletedCallback) {
-        // Create a map from original network ID to channel row ID for existing channels.
+        boolean supportsFingerprint = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+        // Create a map from original network ID to channel row ID and fingerprint for existing
+        // channels.
         LongSparseArray<Long> channelMap = new LongSparseArray<>();
+        LongSparseArray<Long> fingerprintMap = new LongSparseArray<>();
         Uri channelsUri = TvContract.buildChannelsUriForInput(inputId);
-        String[] projection = {Channels._ID, Channels.COLUMN_ORIGINAL_NETWORK_ID};
-        ContentResolver resolver = context.getContentResolver();
+        String[] projection =
+                supportsFingerprint
+                        ? new String[] {
+                            Channels._ID,
+                            Channels.COLUMN_ORIGINAL_NETWORK_ID,
+                            Channels.COLUMN_INTERNAL_PROVIDER_FLAG4
+                        }
+                        : new String[] {Channels._ID, Channels.COLUMN_ORIGINAL_NETWORK_ID};
+        final ContentResolver resolver = context.getContentResolver();
         Cursor cursor = null;
         int updateCount = 0;
         int addCount = 0;
+        int unchangedCount = 0;
         try {
             cursor = resolver.query(channelsUri, projection, null, null, null);
             while (cursor != null && cursor.moveToNext()) {
                 long rowId = cursor.getLong(0);
                 long originalNetworkId = cursor.getLong(1);
                 channelMap.put(originalNetworkId, rowId);
+                if (supportsFingerprint && !cursor.isNull(2)) {
+                    fingerprintMap.put(originalNetworkId, cursor.getLong(2));
+                }
             }
         } finally {
             if (cursor != null) {
@@ -83,7 +118,38 @@ public final class ModelUtils {
         }
 
         // If a channel exists, update it. If not, insert a new one.
-        Map<Uri, String> logos = new HashMap<>();
+        final Map<Uri, String> logos = new HashMap<>();
+        // The channels whose fingerprint is stored once their logo is inserted, by logo URI.
+        final Map<Uri, ChannelWrite> logoWrites = new HashMap<>();
+        final OnChannelDeletedCallback deletedCallback = onChannelDeletedCallback;
+        OperationBatcher<ChannelWrite> batcher =
+                new OperationBatcher<>(
+                        resolver,
+                        TvContract.AUTHORITY,
+                        OperationBatcher.DEFAULT_MAX_BATCH_SIZE_BYTES,
+                        new OperationBatcher.Callback<ChannelWrite>() {
+                            @Override
+                            public void onApplied(
+                                    ChannelWrite write, ContentProviderResult result) {
+                                // Inserted channels only get their URI once they are applied.
+                                Uri uri = write.uri != null ? write.uri : result.uri;
+                                if (write.logo != null && uri != null) {
+                                    Uri logoUri = TvContract.buildChannelLogoUri(uri);
+                                    logos.put(logoUri, write.logo);
+                                    ChannelWrite logoWrite = new ChannelWrite(uri, write.logo);
+                                    logoWrite.fingerprint = write.fingerprint;
+                                    logoWrites.put(logoUri, logoWrite);
+                                }
+                                if (write.deletedRowId != null && deletedCallback != null) {
+                                    deletedCallback.onChannelDeleted(write.deletedRowId);
+                                }
+                            }
+
+                            @Override
+                            public void onFailed(ChannelWrite write, Exception e) {
+                                Log.e(TAG, "Failed to update channel " + write.uri, e);
+                            }
+                        });
         for (Channel channel : channels) {
             ContentValues values = new ContentValues();
             values.put(Channels.COLUMN_INPUT_ID, inputId);
@@ -101,32 +167,47 @@ public final class ModelUtils {
                 // If channel does not include type it will be added
                 values.put(Channels.COLUMN_TYPE, Channels.TYPE_OTHER);
             }
+            values.remove(Channels._ID);
+            String logo =
+                    TextUtils.isEmpty(channel.getChannelLogo()) ? null : channel.getChannelLogo();
+            long fingerprint = fnv(getFingerprint(values), logo != null ? logo : "");
+            if (supportsFingerprint && logo == null) {
+                values.put(Channels.COLUMN_INTERNAL_PROVIDER_FLAG4, fingerprint);
+            } else if (supportsFingerprint) {
+                values.putNull(Channels.COLUMN_INTERNAL_PROVIDER_FLAG4);
+            }
 
             Long rowId = channelMap.get(channel.getOriginalNetworkId());
-            Uri uri;
             if (rowId == null) {
-                uri = resolver.insert(Channels.CONTENT_URI, values);
-                addCount++;
                 if (DEBUG) {
-                    Log.d(TAG, "Adding channel " + channel.getDisplayName() + " at " + uri);
+                    Log.d(TAG, "Adding channel " + channel.getDisplayName());
                 }
+                batcher.add(
+                        ContentProviderOperation.newInsert(Channels.CONTENT_URI)
+                                .withValues(values)
+                                .build(),
+                        values,
+                        createChannelWrite(null, logo, supportsFingerprint, fingerprint));
+                addCount++;
             } else {
+                channelMap.remove(channel.getOriginalNetworkId());
+                Long storedFingerprint = fingerprintMap.get(channel.getOriginalNetworkId());
+                if (storedFingerprint != null && storedFingerprint == fingerprint) {
+                    unchangedCount++;
+                    continue;
+                }
                 values.put(Channels._ID, rowId);
-                uri = TvContract.buildChannelUri(rowId);
+                Uri uri = TvContract.buildChannelUri(rowId);
                 if (DEBUG) {
                     Log.d(TAG, "Updating channel " + channel.getDisplayName() + " at " + uri);
                 }
-                resolver.update(uri, values, null, null);
+                batcher.add(
+                        ContentProviderOperation.newUpdate(uri).withValues(values).build(),
+                        values,
+                        createChannelWrite(uri, logo, supportsFingerprint, fingerprint));
                 updateCount++;
-                channelMap.remove(channel.getOriginalNetworkId());
-            }
-            if (channel.getChannelLogo() != null && !TextUtils.isEmpty(channel.getChannelLogo())) {
-                logos.put(TvContract.buildChannelLogoUri(uri), channel.getChannelLogo());
             }
         }
-        if (!logos.isEmpty()) {
-            new InsertLogosTask(context).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, logos);
-        }
 
         // Deletes channels which don't exist in the new feed.
         int size = channelMap.size();
@@ -135,10 +216,26 @@ public final class ModelUtils {
             if (DEBUG) {
                 Log.d(TAG, "Deleting channel " + rowId);
             }
-            resolver.delete(TvContract.buildChannelUri(rowId), null, null);
-            if (onChannelDeletedCallback != null) {
-                onChannelDeletedCallback.onChannelDeleted(rowId);
-            }
+            Uri uri = TvContract.buildChannelUri(rowId);
+            ChannelWrite write = new ChannelWrite(uri, null);
+            write.deletedRowId = rowId;
+            batcher.add(ContentProviderOperation.newDelete(uri).build(), null, write);
+        }
+        batcher.flush();
+
+        if (!logos.isEmpty()) {
+            new InsertLogosTask(context) {
+                @Override
+                protected void onLogoInserted(Uri logoUri) {
+                    ChannelWrite write = logoWrites.get(logoUri);
+                    if (write == null || write.fingerprint == null) {
+                        return;
+                    }
+                    ContentValues values = new ContentValues();
+                    values.put(Channels.COLUMN_INTERNAL_PROVIDER_FLAG4, write.fingerprint);
+                    resolver.update(write.uri, values, null, null);
+                }
+            }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, logos);
         }
         Log.i(
                 TAG,
@@ -150,7 +247,35 @@ public final class ModelUtils {
                         + " updated "
                         + updateCount
                         + " added "
-                        + addCount);
+                        + addCount
+                        + " unchanged "
+                        + unchangedCount
+                        + " in "
+                        + batcher.getTransactionCount()
+                        + " transactions");
+    }
+
+    /** Struct to hold what to do once a channel has been written */
+    private static class ChannelWrite {
+        final Uri uri;
+        final String logo;
+        Long deletedRowId;
+        // The fingerprint to store once the logo has been inserted.
+        Long fingerprint;
+
+        ChannelWrite(Uri uri, String logo) {
+            this.uri = uri;
+            this.logo = logo;
+        }
+    }
+
+    private static ChannelWrite createChannelWrite(
+            Uri uri, String logo, boolean supportsFingerprint, long fingerprint) {
+        ChannelWrite write = new ChannelWrite(uri, logo);
+        if (supportsFingerprint && logo != null) {
+            write.fingerprint = fingerprint;
+        }
+        return write;
     }
 
     /**
@@ -280,6 +405,297 @@ public final class ModelUtils {
         return programs;
     }
 
+    /**
+     * Returns the current programs of several channels at once. Instead of querying each channel
+     * separately, the programs are read with one query for every few hundred channels, which saves
+     * a round-trip to TvProvider per channel.
+     *
+     * @param resolver Application's ContentResolver.
+     * @param channelIds The row IDs of the channels to read programs for.
+     * @return LongSparseArray mapping each channel's {@link Channels#_ID} to its programs in
+     *     chronological order. Channels without any program are not in the map.
+     * @hide
+     */
+    public static LongSparseArray<List<Program>> getPrograms(
+            ContentResolver resolver, long[] channelIds) {
+        LongSparseArray<List<Program>> programMap = new LongSparseArray<>();
+        for (int start = 0; start < channelIds.length; start += MAX_IDS_PER_QUERY) {
+            int end = Math.min(start + MAX_IDS_PER_QUERY, channelIds.length);
+            String[] selectionArgs = new String[end - start];
+            String selection =
+                    buildInSelection(
+                            TvContract.Programs.COLUMN_CHANNEL_ID,
+                            channelIds,
+                            start,
+                            selectionArgs);
+            Cursor cursor = null;
+            try {
+                cursor =
+                        resolver.query(
+                                TvContract.Programs.CONTENT_URI,
+                                Program.PROJECTION,
+                                selection,
+                                selectionArgs,
+                                PROGRAMS_BY_CHANNEL_SORT_ORDER);
+                if (cursor == null || cursor.getCount() == 0) {
+                    continue;
+                }
+                List<Program> programs = null;
+                while (cursor.moveToNext()) {
+                    Program program = Program.fromCursor(cursor);
+                    if (programs == null
+                            || programs.get(0).getChannelId() != program.getChannelId()) {
+                        programs = new ArrayList<>();
+                        programMap.put(program.getChannelId(), programs);
+                    }
+                    programs.add(program);
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "Unable to get programs for " + (end - start) + " channels", e);
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+        return programMap;
+    }
+
+    /**
+     * Returns summaries of the current programs of several channels, which are enough to tell
+     * whether a program needs to be updated without reading all of its columns. The full programs
+     * can be read later with {@link #getProgramsById(ContentResolver, long[])} for the ones which
+     * turn out to differ.
+     *
+     * <p>Fingerprints can only be stored from API 23. On older devices the full programs are read
+     * right away and can be found with {@link ProgramSummary#getProgram()}.
+     *
+     * @param resolver Application's ContentResolver.
+     * @param channelIds The row IDs of the channels to read programs for.
+     * @return LongSparseArray mapping each channel's {@link Channels#_ID} to the summaries of its
+     *     programs in chronological order. Channels without any program are not in the map.
+     * @hide
+     */
+    public static LongSparseArray<List<ProgramSummary>> getProgramSummaries(
+            ContentResolver resolver, long[] channelIds) {
+        LongSparseArray<List<ProgramSummary>> summaryMap = new LongSparseArray<>();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            LongSparseArray<List<Program>> programMap = getPrograms(resolver, channelIds);
+            for (int i = 0; i < programMap.size(); i++) {
+                List<Program> programs = programMap.valueAt(i);
+                List<ProgramSummary> summaries = new ArrayList<>(programs.size());
+                for (Program program : programs) {
+                    summaries.add(ProgramSummary.fromProgram(program));
+                }
+                summaryMap.put(programMap.keyAt(i), summaries);
+            }
+            return summaryMap;
+        }
+        for (int start = 0; start < channelIds.length; start += MAX_IDS_PER_QUERY) {
+            int end = Math.min(start + MAX_IDS_PER_QUERY, channelIds.length);
+            String[] selectionArgs = new String[end - start];
+            String selection =
+                    buildInSelection(
+                            TvContract.Programs.COLUMN_CHANNEL_ID,
+                            channelIds,
+                            start,
+                            selectionArgs);
+            Cursor cursor = null;
+            try {
+                cursor =
+                        resolver.query(
+                                TvContract.Programs.CONTENT_URI,
+                                ProgramSummary.PROJECTION,
+                                selection,
+                                selectionArgs,
+                                PROGRAMS_BY_CHANNEL_SORT_ORDER);
+                if (cursor == null || cursor.getCount() == 0) {
+                    continue;
+                }
+                List<ProgramSummary> summaries = null;
+                while (cursor.moveToNext()) {
+                    ProgramSummary summary = ProgramSummary.fromCursor(cursor);
+                    if (summaries == null
+                            || summaries.get(0).getChannelId() != summary.getChannelId()) {
+                        summaries = new ArrayList<>();
+                        summaryMap.put(summary.getChannelId(), summaries);
+                    }
+                    summaries.add(summary);
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "Unable to get program summaries for " + (end - start) + " channels", e);
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+        return summaryMap;
+    }
+
+    /**
+     * Returns how many queries the methods of this class which read rows by their IDs, such as
+     * {@link #getProgramSummaries(ContentResolver, long[])}, make for the given number of IDs.
+     *
+     * @hide
+     */
+    public static int getQueryCount(int idCount) {
+        return (idCount + MAX_IDS_PER_QUERY - 1) / MAX_IDS_PER_QUERY;
+    }
+
+    /**
+     * Returns the programs with the given row IDs.
+     *
+     * @param resolver Application's ContentResolver.
+     * @param programIds The row IDs of the programs.
+     * @return LongSparseArray mapping each program's {@link TvContract.Programs#_ID} to the
+     *     program. Programs which could not be found are not in the map.
+     * @hide
+     */
+    public static LongSparseArray<Program> getProgramsById(
+            ContentResolver resolver, long[] programIds) {
+        LongSparseArray<Program> programMap = new LongSparseArray<>();
+        for (int start = 0; start < programIds.length; start += MAX_IDS_PER_QUERY) {
+            int end = Math.min(start + MAX_IDS_PER_QUERY, programIds.length);
+            String[] selectionArgs = new String[end - start];
+            String selection =
+                    buildInSelection(TvContract.Programs._ID, programIds, start, selectionArgs);
+            Cursor cursor = null;
+            try {
+                cursor =
+                        resolver.query(
+                                TvContract.Programs.CONTENT_URI,
+                                Program.PROJECTION,
+                                selection,
+                                selectionArgs,
+                                null);
+                while (cursor != null && cursor.moveToNext()) {
+                    Program program = Program.fromCursor(cursor);
+                    programMap.put(program.getId(), program);
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "Unable to get " + (end - start) + " programs", e);
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+        return programMap;
+    }
+
+    /**
+     * Returns a fingerprint of the values a program is written to the database with, apart from
+     * its row ID. Two programs with the same fingerprint are written the same way, so a program
+     * in the database doesn't need to be updated if its stored fingerprint, see {@link
+     * ProgramSummary#getFingerprint()}, matches the one of the new program.
+     *
+     * @param program The program to get the fingerprint of.
+     * @return A 64-bit FNV-1a hash over the column names and values of the program.
+     * @hide
+     */
+    public static long getFingerprint(Program program) {
+        ContentValues values = program.toContentValues();
+        values.remove(TvContract.Programs._ID);
+        return getFingerprint(values);
+    }
+
+    private static long getFingerprint(ContentValues values) {
+        // ContentValues is not ordered, so hash the columns in a fixed order.
+        String[] keys = values.keySet().toArray(new String[values.size()]);
+        Arrays.sort(keys);
+        long hash = FNV_64_OFFSET_BASIS;
+        for (String key : keys) {
+            hash = fnv(hash, key);
+            Object value = values.get(key);
+            if (value == null) {
+                hash = fnv(hash, (byte) 'n');
+            } else if (value instanceof byte[]) {
+                hash = fnv(hash, (byte) 'b');
+                for (byte b : (byte[]) value) {
+                    hash = fnv(hash, b);
+                }
+            } else {
+                hash = fnv(hash, (byte) 'v');
+                hash = fnv(hash, value.toString());
+            }
+        }
+        return hash;
+    }
+
+    private static long fnv(long hash, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            hash = fnv(hash, (byte) (c >>> 8));
+            hash = fnv(hash, (byte) c);
+        }
+        // Separate the values so that e.g. "ab" + "c" and "a" + "bc" differ.
+        return fnv(hash, (byte) 0);
+    }
+
+    private static long fnv(long hash, byte value) {
+        return (hash ^ (value & 0xff)) * FNV_64_PRIME;
+    }
+
+    /**
+     * Builds operations which delete the programs with the given row IDs. Instead of one operation
+     * per program, each operation deletes up to a hundred programs with a selection on their IDs.
+     *
+     * @param programIds The row IDs of the programs to delete.
+     * @param count The number of IDs to use from the start of {@code programIds}.
+     * @return The operations to apply.
+     * @hide
+     */
+    public static List<ContentProviderOperation> buildDeleteProgramsOperations(
+            long[] programIds, int count) {
+        List<ContentProviderOperation> ops = new ArrayList<>();
+        for (int start = 0; start < count; start += MAX_IDS_PER_DELETE) {
+            String[] selectionArgs = new String[Math.min(MAX_IDS_PER_DELETE, count - start)];
+            String selection =
+                    buildInSelection(TvContract.Programs._ID, programIds, start, selectionArgs);
+            ops.add(
+                    ContentProviderOperation.newDelete(TvContract.Programs.CONTENT_URI)
+                            .withSelection(selection, selectionArgs)
+                            .build());
+        }
+        return ops;
+    }
+
+    /**
+     * Builds an operation which deletes the programs of a channel which start at or after the
+     * given time, e.g. the programs left beyond the window of a sync by an earlier, longer one.
+     *
+     * @param channelId The row ID of the channel.
+     * @param startTimeMs The time in milliseconds since the epoch from which programs are deleted.
+     * @return The operation to apply.
+     * @hide
+     */
+    public static ContentProviderOperation buildDeleteProgramsAfterOperation(
+            long channelId, long startTimeMs) {
+        return ContentProviderOperation.newDelete(TvContract.Programs.CONTENT_URI)
+                .withSelection(
+                        TvContract.Programs.COLUMN_CHANNEL_ID
+                                + " = ? AND "
+                                + TvContract.Programs.COLUMN_START_TIME_UTC_MILLIS
+                                + " >= ?",
+                        new String[] {String.valueOf(channelId), String.valueOf(startTimeMs)})
+                .build();
+    }
+
+    /**
+     * Builds a {@code column IN (?,...)} selection for the IDs from {@code start}, and fills in
+     * the arguments for as many IDs as {@code selectionArgs} can hold.
+     */
+    private static String buildInSelection(
+            String column, long[] ids, int start, String[] selectionArgs) {
+        StringBuilder selection = new StringBuilder(column).append(" IN (");
+        for (int i = 0; i < selectionArgs.length; i++) {
+            selection.append(i == 0 ? "?" : ",?");
+            selectionArgs[i] = String.valueOf(ids[start + i]);
+        }
+        return selection.append(')').toString();
+    }
+
     /**
      * Returns the program that is scheduled to be playing now on a given channel.
      *
@@ -56,6 +56,7 @@ public final class Program implements Comparable<Program> {
     private String[] mCanonicalGenres;
     private TvContentRating[] mContentRatings;
     private byte[] mInternalProviderData;
+    private volatile InternalProviderDataView mInternalProviderDataView;
     private String mAudioLanguages;
     private int mRecordingProhibited;
     private int mSearchable;
@@ -177,14 +178,30 @@ public final class Program implements Comparable<Program> {
         return mInternalProviderData;
     }
 
+    /**
+     * @return A cached, immutable view of {@link TvContract.Programs#COLUMN_INTERNAL_PROVIDER_DATA}
+     *     for the program, or {@code null} if there is no data or it cannot be parsed. Prefer this
+     *     over {@link #getInternalProviderData()} when only reading the data.
+     */
+    public InternalProviderDataView getInternalProviderDataView() {
+        InternalProviderDataView view =
+                InternalProviderDataView.of(
+                        mInternalProviderDataView, mInternalProviderData, mStartTimeUtcMillis);
+        mInternalProviderDataView = view;
+        return view.orNull();
+    }
+
     /**
      * @return The value of {@link TvContract.Programs#COLUMN_INTERNAL_PROVIDER_DATA} for the
-     *     channel.
+     *     channel, with the ads at their times in this program.
      */
     public InternalProviderData getInternalProviderData() {
         if (mInternalProviderData != null) {
             try {
-                return new InternalProviderData(mInternalProviderData);
+                InternalProviderData data = new InternalProviderData(mInternalProviderData);
+                // The data may be shared with other programs, so give the ads this one's times.
+                data.moveRelativeAdsTo(mStartTimeUtcMillis);
+                return data;
             } catch (InternalProviderData.ParseException e) {
                 return null;
             }
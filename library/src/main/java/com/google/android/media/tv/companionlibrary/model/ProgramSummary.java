@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary.model;
+
+import android.database.Cursor;
+import android.media.tv.TvContract;
+
+/**
+ * The few columns of a program in the database which are needed to tell whether it has to be
+ * updated: its row ID, channel, times and the fingerprint of the values it was last written with.
+ *
+ * <p>The fingerprint is stored in {@link TvContract.Programs#COLUMN_INTERNAL_PROVIDER_FLAG4},
+ * which only exists from API 23. On older devices a summary wraps the full {@link Program}
+ * instead, see {@link #getProgram()}.
+ *
+ * @hide
+ */
+public final class ProgramSummary {
+    static final String[] PROJECTION = {
+        TvContract.Programs._ID,
+        TvContract.Programs.COLUMN_CHANNEL_ID,
+        TvContract.Programs.COLUMN_START_TIME_UTC_MILLIS,
+        TvContract.Programs.COLUMN_END_TIME_UTC_MILLIS,
+        TvContract.Programs.COLUMN_INTERNAL_PROVIDER_FLAG4
+    };
+
+    private final long mId;
+    private final long mChannelId;
+    private final long mStartTimeUtcMillis;
+    private final long mEndTimeUtcMillis;
+    private final boolean mHasFingerprint;
+    private final long mFingerprint;
+    private final Program mProgram;
+
+    private ProgramSummary(
+            long id,
+            long channelId,
+            long startTimeUtcMillis,
+            long endTimeUtcMillis,
+            boolean hasFingerprint,
+            long fingerprint,
+            Program program) {
+        mId = id;
+        mChannelId = channelId;
+        mStartTimeUtcMillis = startTimeUtcMillis;
+        mEndTimeUtcMillis = endTimeUtcMillis;
+        mHasFingerprint = hasFingerprint;
+        mFingerprint = fingerprint;
+        mProgram = program;
+    }
+
+    /** @return The value of {@link TvContract.Programs#_ID} for the program. */
+    public long getId() {
+        return mId;
+    }
+
+    /** @return The value of {@link TvContract.Programs#COLUMN_CHANNEL_ID} for the program. */
+    public long getChannelId() {
+        return mChannelId;
+    }
+
+    /**
+     * @return The value of {@link TvContract.Programs#COLUMN_START_TIME_UTC_MILLIS} for the
+     *     program.
+     */
+    public long getStartTimeUtcMillis() {
+        return mStartTimeUtcMillis;
+    }
+
+    /**
+     * @return The value of {@link TvContract.Programs#COLUMN_END_TIME_UTC_MILLIS} for the program.
+     */
+    public long getEndTimeUtcMillis() {
+        return mEndTimeUtcMillis;
+    }
+
+    /** @return Whether the program was written with a fingerprint. */
+    public boolean hasFingerprint() {
+        return mHasFingerprint;
+    }
+
+    /**
+     * @return The fingerprint the program was last written with, see {@link
+     *     ModelUtils#getFingerprint(Program)}. Only valid if {@link #hasFingerprint()}.
+     */
+    public long getFingerprint() {
+        return mFingerprint;
+    }
+
+    /**
+     * @return The full program if it was read along with the summary, which is the case on devices
+     *     that cannot store fingerprints. Otherwise {@code null}.
+     */
+    public Program getProgram() {
+        return mProgram;
+    }
+
+    @Override
+    public String toString() {
+        return "ProgramSummary{"
+                + "id="
+                + mId
+                + ", channelId="
+                + mChannelId
+                + ", startTimeUtcMillis="
+                + mStartTimeUtcMillis
+                + ", endTimeUtcMillis="
+                + mEndTimeUtcMillis
+                + ", fingerprint="
+                + (mHasFingerprint ? mFingerprint : "none")
+                + "}";
+    }
+
+    /** Creates a summary from a row read with {@link #PROJECTION}. */
+    static ProgramSummary fromCursor(Cursor cursor) {
+        boolean hasFingerprint = !cursor.isNull(4);
+        return new ProgramSummary(
+                cursor.getLong(0),
+                cursor.getLong(1),
+                cursor.getLong(2),
+                cursor.getLong(3),
+                hasFingerprint,
+                hasFingerprint ? cursor.getLong(4) : 0,
+                null);
+    }
+
+    /** Creates a summary which wraps a full program. */
+    static ProgramSummary fromProgram(Program program) {
+        return new ProgramSummary(
+                program.getId(),
+                program.getChannelId(),
+                program.getStartTimeUtcMillis(),
+                program.getEndTimeUtcMillis(),
+                false,
+                0,
+                program);
+    }
+}
@@ -79,6 +79,7 @@ public class RecordedProgram {
     private int mId;
     private String mInputId;
     private byte[] mInternalProviderData;
+    private volatile InternalProviderDataView mInternalProviderDataView;
     private String mLongDescription;
     private String mPosterArtUri;
     private long mRecordingDataBytes;
@@ -213,14 +214,31 @@ public class RecordedProgram {
         return mInputId;
     }
 
+    /**
+     * @return A cached, immutable view of {@link
+     *     TvContract.RecordedPrograms#COLUMN_INTERNAL_PROVIDER_DATA} for the RecordedProgram, or
+     *     {@code null} if there is no data or it cannot be parsed. Prefer this over {@link
+     *     #getInternalProviderData()} when only reading the data.
+     */
+    public InternalProviderDataView getInternalProviderDataView() {
+        InternalProviderDataView view =
+                InternalProviderDataView.of(
+                        mInternalProviderDataView, mInternalProviderData, mStartTimeUtcMillis);
+        mInternalProviderDataView = view;
+        return view.orNull();
+    }
+
     /**
      * @return The value of {@link TvContract.RecordedPrograms#COLUMN_INTERNAL_PROVIDER_DATA} for
-     *     the RecordedProgram.
+     *     the RecordedProgram, with the ads at their times in this recording.
      */
     public InternalProviderData getInternalProviderData() {
         if (mInternalProviderData != null) {
             try {
-                return new InternalProviderData(mInternalProviderData);
+                InternalProviderData data = new InternalProviderData(mInternalProviderData);
+                // The data may be shared with other programs, so give the ads this one's times.
+                data.moveRelativeAdsTo(mStartTimeUtcMillis);
+                return data;
             } catch (InternalProviderData.ParseException e) {
                 throw new IllegalArgumentException(e.getMessage());
             }
@@ -22,10 +22,12 @@ import android.app.job.JobScheduler;
 import android.app.job.JobService;
 import android.content.ComponentName;
 import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
-import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.media.tv.TvContract;
 import android.media.tv.TvInputInfo;
@@ -33,7 +35,6 @@ import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.PersistableBundle;
-import android.os.RemoteException;
 import android.support.annotation.VisibleForTesting;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
@@ -43,11 +44,24 @@ import com.google.android.media.tv.companionlibrary.model.Channel;
 import com.google.android.media.tv.companionlibrary.model.ModelUtils;
 import com.google.android.media.tv.companionlibrary.model.ModelUtils.OnChannelDeletedCallback;
 import com.google.android.media.tv.companionlibrary.model.Program;
+import com.google.android.media.tv.companionlibrary.model.ProgramSummary;
 import com.google.android.media.tv.companionlibrary.utils.Constants;
+import com.google.android.media.tv.companionlibrary.utils.OperationBatcher;
+import com.google.android.media.tv.companionlibrary.utils.RecentChannels;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import junit.framework.Assert;
 
 /**
@@ -70,6 +84,11 @@ import junit.framework.Assert;
  * ComponentName, long, long)}.
  *
  * <p>To sync manually, call {@link #requestImmediateSync(Context, String, long, ComponentName)}.
+ *
+ * <p>A sync runs in the background. {@link #getChannels()} is called on the thread of the sync,
+ * while {@link #getProgramsForChannel(Uri, Channel, long, long)} and {@link
+ * #shouldUpdateProgramMetadata(Program, Program)} are called on worker threads of it, see {@link
+ * #getChannelSyncConcurrency()}.
  */
 public abstract class EpgSyncJobService extends JobService {
     private static final String TAG = "EpgSyncJobService";
@@ -97,6 +116,12 @@ public abstract class EpgSyncJobService extends JobService {
     public static final String BUNDLE_KEY_SCANNED_CHANNEL_DISPLAY_NUMBER =
             EpgSyncJobService.class.getPackage().getName()
                     + ".bundle_key_scanned_channel_display_number";
+    /**
+     * The key representing the {@link SyncStats} of an EPG sync, included in the {@link
+     * #SYNC_FINISHED} broadcast. Use {@link SyncStats#fromIntent(Intent)} to read them.
+     */
+    public static final String BUNDLE_KEY_SYNC_STATS =
+            EpgSyncJobService.class.getPackage().getName() + ".bundle_key_sync_stats";
     /** The key representing the error that occurred during an EPG sync */
     public static final String BUNDLE_KEY_ERROR_REASON =
             EpgSyncJobService.class.getPackage().getName() + ".bundle_key_error_reason";
@@ -145,16 +170,30 @@ public abstract class EpgSyncJobService extends JobService {
 
     private static final long DEFAULT_IMMEDIATE_EPG_DURATION_MILLIS = 1000 * 60 * 60; // 1 Hour
     private static final long DEFAULT_PERIODIC_EPG_DURATION_MILLIS = 1000 * 60 * 60 * 48; // 48 Hour
+    private static final long DEFAULT_RECENT_CHANGES_WINDOW_MILLIS = 1000 * 60 * 60 * 2; // 2 Hour
 
     private static final int PERIODIC_SYNC_JOB_ID = 0;
     private static final int REQUEST_SYNC_JOB_ID = 1;
-    private static final int BATCH_OPERATION_COUNT = 100;
+    private static final int CHANNEL_SYNC_JOB_ID = 2;
+    private static final int DEFAULT_CHANNEL_SYNC_CONCURRENCY = 1;
+    private static final int EXISTING_PROGRAMS_CHANNEL_COUNT = 500;
+    private static final int SLOWEST_CHANNEL_COUNT = 5;
+    private static final int MAX_SYNC_HISTORY_SIZE = 20;
     private static final long OVERRIDE_DEADLINE_MILLIS = 1000; // 1 second
+    // A stopped sync is only resumed in its original window if it started at most this long ago.
+    private static final long MAX_CHECKPOINT_AGE_MILLIS = DEFAULT_SYNC_PERIOD_MILLIS;
     private static final String BUNDLE_KEY_SYNC_PERIOD = "bundle_key_sync_period";
+    private static final String BUNDLE_KEY_CHANNEL_IDS = "bundle_key_channel_ids";
 
     private static final ExecutorService SINGLE_THREAD_EXECUTOR =
         Executors.newSingleThreadExecutor();
 
+    // The full syncs started in this process which have not finished yet, so that requests for
+    // the same input can be merged into them.
+    private static final List<RunningSync> sRunningSyncs = new ArrayList<>();
+    // The statistics of the latest syncs in this process, oldest first. Guarded by itself.
+    private static final ArrayDeque<SyncStats> sSyncHistory = new ArrayDeque<>();
+
     private final SparseArray<EpgSyncTask> mTaskArray = new SparseArray<>();
     private static final Object mContextLock = new Object();
     private Context mContext;
@@ -169,6 +208,10 @@ public abstract class EpgSyncJobService extends JobService {
     /**
      * Returns the programs that will appear for each channel.
      *
+     * <p>This is called on a worker thread of the sync rather than the thread which called {@link
+     * #getChannels()}, even if {@link #getChannelSyncConcurrency()} is {@code 1}. If it is larger,
+     * this is called for several channels at the same time.
+     *
      * @param channelUri The Uri corresponding to the channel.
      * @param channel The channel your programs will appear on.
      * @param startMs The starting time in milliseconds since the epoch to generate programs. If
@@ -206,6 +249,11 @@ public abstract class EpgSyncJobService extends JobService {
         synchronized (mTaskArray) {
             mTaskArray.put(params.getJobId(), epgSyncTask);
         }
+        if (epgSyncTask.mRunningSync != null) {
+            synchronized (sRunningSyncs) {
+                sRunningSyncs.add(epgSyncTask.mRunningSync);
+            }
+        }
         // Run the task on a single threaded custom executor in order not to block the AsyncTasks
         // running on application side.
         epgSyncTask.executeOnExecutor(SINGLE_THREAD_EXECUTOR);
@@ -220,6 +268,8 @@ public abstract class EpgSyncJobService extends JobService {
             if (epgSyncTask != null) {
                 epgSyncTask.cancel(true);
                 mTaskArray.delete(params.getJobId());
+                // Ask to run the job again. It resumes after the last channel it committed.
+                return true;
             }
         }
         return false;
@@ -229,6 +279,9 @@ public abstract class EpgSyncJobService extends JobService {
      * Returns {@code true} if the {@code oldProgram} program is the same as the {@code newProgram}
      * program but should update metadata. This updates the database instead of deleting and
      * inserting a new program to keep the user's intent, eg. recording this program.
+     *
+     * <p>This is called on the worker thread of the sync which compares the fetched programs of
+     * each channel with the existing ones, not on the thread which called {@link #getChannels()}.
      */
     public boolean shouldUpdateProgramMetadata(Program oldProgram, Program newProgram) {
         // NOTE: Here, we update the old program if it has the same title and overlaps with the
@@ -240,6 +293,94 @@ public abstract class EpgSyncJobService extends JobService {
                 && newProgram.getStartTimeUtcMillis() <= oldProgram.getEndTimeUtcMillis();
     }
 
+    /**
+     * Returns how many channels may have their programs fetched at the same time. The fetched
+     * programs are always compared with the existing ones by a single thread, and the changes are
+     * written to the database by another one, both in channel order.
+     *
+     * <p>The default is {@code 1}, which fetches one channel at a time, while the previous one is
+     * compared and written. Apps whose feeds are slow to fetch can return a larger value, but then
+     * {@link #getProgramsForChannel(Uri, Channel, long, long)} must be thread-safe.
+     *
+     * @return The maximum number of channels to fetch at the same time.
+     */
+    public int getChannelSyncConcurrency() {
+        return DEFAULT_CHANNEL_SYNC_CONCURRENCY;
+    }
+
+    /**
+     * Returns the estimated size in bytes at which the changes to the programs are written to the
+     * database in one transaction. Larger batches mean fewer transactions, but must stay well
+     * below the 1 MB binder transaction limit. Batches which fail anyway are split and retried.
+     *
+     * @return The byte budget of a batch of changes.
+     */
+    public int getMaxBatchSizeBytes() {
+        return OperationBatcher.DEFAULT_MAX_BATCH_SIZE_BYTES;
+    }
+
+    /**
+     * Returns the channels to sync before all the others, most important first. A sync which is
+     * stopped part way then still leaves the programs of these channels fresh. The other channels
+     * are synced in the order of their IDs.
+     *
+     * <p>The default returns the channels most recently tuned to by the sessions of {@link
+     * com.google.android.media.tv.companionlibrary.BaseTvInputService}, most recent first, so
+     * that the channel being watched comes first.
+     * Apps can override this to add favourite channels, or to rank the channels by their own
+     * score. The IDs of channels which are not synced are ignored.
+     *
+     * @param inputId The input being synced.
+     * @return The row IDs of the channels to sync first.
+     */
+    public List<Long> getPriorityChannelIds(String inputId) {
+        return RecentChannels.get(mContext, inputId);
+    }
+
+    /**
+     * Returns whether periodic syncs only fetch the part of the EPG which changed since the last
+     * sync, instead of the whole sync duration.
+     *
+     * <p>Each sync records how far ahead the programs of each channel have been synced. When this
+     * returns {@code true}, a periodic sync asks {@link #getProgramsForChannel(Uri, Channel, long,
+     * long)} only for the programs from {@link #getRecentChangesWindowMillis()} before that point
+     * to the end of the sync duration, and leaves the earlier programs as they are. Channels which
+     * have not been synced before, or not far enough, are still synced in full. Immediate syncs
+     * are always synced in full.
+     *
+     * <p>The default is {@code false}. Only enable this if programs which have been synced once
+     * rarely change, except close to the end of the previously synced window.
+     *
+     * @return Whether periodic syncs are incremental.
+     */
+    public boolean isIncrementalSyncEnabled() {
+        return false;
+    }
+
+    /**
+     * Returns how far before the end of the previously synced window an incremental sync starts
+     * fetching programs again, to pick up late changes to the programs synced last time. The
+     * default is two hours.
+     *
+     * @return The duration of the window of recent changes in milliseconds.
+     * @see #isIncrementalSyncEnabled()
+     */
+    public long getRecentChangesWindowMillis() {
+        return DEFAULT_RECENT_CHANGES_WINDOW_MILLIS;
+    }
+
+    /**
+     * Returns the statistics of the latest syncs run in this process, e.g. to compare them in a
+     * debug screen or to dump them along with a bug report. They are not persisted.
+     *
+     * @return The statistics of up to the last 20 syncs, oldest first.
+     */
+    public static List<SyncStats> getSyncHistory() {
+        synchronized (sSyncHistory) {
+            return new ArrayList<>(sSyncHistory);
+        }
+    }
+
     /** Send the job to JobScheduler. */
     private static void scheduleJob(Context context, JobInfo job) {
         JobScheduler jobScheduler =
@@ -251,6 +392,21 @@ public abstract class EpgSyncJobService extends JobService {
         }
     }
 
+    /**
+     * Returns the job with the given ID which has been scheduled and has not finished yet, or
+     * {@code null} if there is none.
+     */
+    private static JobInfo getPendingJob(Context context, int jobId) {
+        JobScheduler jobScheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        for (JobInfo pendingJob : jobScheduler.getAllPendingJobs()) {
+            if (pendingJob.getId() == jobId) {
+                return pendingJob;
+            }
+        }
+        return null;
+    }
+
     /**
      * Initializes a job that will periodically update the app's channels and programs with a
      * default period of 24 hours.
@@ -271,7 +427,9 @@ public abstract class EpgSyncJobService extends JobService {
     }
 
     /**
-     * Initializes a job that will periodically update the app's channels and programs.
+     * Initializes a job that will periodically update the app's channels and programs. If the
+     * same periodic sync is already set up, it is left as it is, so that its schedule is not
+     * reset.
      *
      * @param context Application's context.
      * @param inputId Component name for the app's TvInputService. This can be received through an
@@ -291,6 +449,17 @@ public abstract class EpgSyncJobService extends JobService {
         if (jobServiceComponent.getClass().isAssignableFrom(EpgSyncJobService.class)) {
             throw new IllegalArgumentException("This class does not extend EpgSyncJobService");
         }
+        JobInfo pendingJob = getPendingJob(context, PERIODIC_SYNC_JOB_ID);
+        if (pendingJob != null
+                && pendingJob.getIntervalMillis() == fullSyncPeriod
+                && jobServiceComponent.equals(pendingJob.getService())
+                && inputId.equals(pendingJob.getExtras().getString(BUNDLE_KEY_INPUT_ID))
+                && pendingJob.getExtras().getLong(BUNDLE_KEY_SYNC_PERIOD) == syncDuration) {
+            if (DEBUG) {
+                Log.d(TAG, "Job is already scheduled for every " + fullSyncPeriod + "ms");
+            }
+            return;
+        }
         PersistableBundle persistableBundle = new PersistableBundle();
         persistableBundle.putString(EpgSyncJobService.BUNDLE_KEY_INPUT_ID, inputId);
         persistableBundle.putLong(EpgSyncJobService.BUNDLE_KEY_SYNC_PERIOD, syncDuration);
@@ -335,7 +504,16 @@ public abstract class EpgSyncJobService extends JobService {
      * android.media.tv.TvInputService}. If you're calling this from your setup activity, you can
      * get the extra parameter {@link TvInputInfo#EXTRA_INPUT_ID}.
      *
-     * <p>
+     * <p>Requests made while a sync of the same input is running or pending are merged into it
+     * rather than running another sync straight after:
+     *
+     * <ul>
+     *   <li>If a running sync already covers the requested duration, nothing else is synced and
+     *       its {@link #SYNC_FINISHED} broadcast also completes this request.
+     *   <li>If a requested sync is pending, it is extended to the longest duration requested.
+     *   <li>Otherwise, if a requested sync is running, a single follow-up sync for the longest
+     *       duration requested is scheduled when it finishes.
+     * </ul>
      *
      * @param context Application's context.
      * @param inputId Component name for the app's TvInputService. This can be received through an
@@ -349,6 +527,52 @@ public abstract class EpgSyncJobService extends JobService {
         if (jobServiceComponent.getClass().isAssignableFrom(EpgSyncJobService.class)) {
             throw new IllegalArgumentException("This class does not extend EpgSyncJobService");
         }
+        long endMs = System.currentTimeMillis() + syncDuration;
+        synchronized (sRunningSyncs) {
+            RunningSync runningRequest = null;
+            for (RunningSync runningSync : sRunningSyncs) {
+                if (!inputId.equals(runningSync.inputId)) {
+                    continue;
+                }
+                if (runningSync.endMs >= endMs) {
+                    if (DEBUG) {
+                        Log.d(TAG, "Request merged into running job " + runningSync.jobId);
+                    }
+                    return;
+                }
+                if (runningSync.jobId == REQUEST_SYNC_JOB_ID) {
+                    runningRequest = runningSync;
+                }
+            }
+            if (runningRequest != null) {
+                // Scheduling the job again would stop the running one, so follow up on it instead.
+                runningRequest.followUpDuration =
+                        Math.max(runningRequest.followUpDuration, syncDuration);
+                runningRequest.followUpComponent = jobServiceComponent;
+                if (DEBUG) {
+                    Log.d(TAG, "Request merged into the follow-up of the running job");
+                }
+                return;
+            }
+        }
+        JobInfo pendingJob = getPendingJob(context, REQUEST_SYNC_JOB_ID);
+        if (pendingJob != null
+                && inputId.equals(pendingJob.getExtras().getString(BUNDLE_KEY_INPUT_ID))) {
+            long pendingDuration = pendingJob.getExtras().getLong(BUNDLE_KEY_SYNC_PERIOD);
+            if (pendingDuration >= syncDuration) {
+                if (DEBUG) {
+                    Log.d(TAG, "Request merged into the pending job");
+                }
+                return;
+            }
+            // Otherwise, replace the pending job with one which covers both requests.
+        }
+        scheduleImmediateSync(context, inputId, syncDuration, jobServiceComponent);
+    }
+
+    /** Schedules a job to run now, replacing the pending one if any. */
+    private static void scheduleImmediateSync(
+            Context context, String inputId, long syncDuration, ComponentName jobServiceComponent) {
         PersistableBundle persistableBundle = new PersistableBundle();
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1) {
             persistableBundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
@@ -368,6 +592,95 @@ public abstract class EpgSyncJobService extends JobService {
         }
     }
 
+    /**
+     * Manually requests a job to run now to retrieve EPG content for the next hour for some
+     * channels only.
+     *
+     * @param context Application's context.
+     * @param inputId Component name for the app's TvInputService. This can be received through an
+     *     Intent extra parameter {@link TvInputInfo#EXTRA_INPUT_ID}.
+     * @param channelUris The URIs of the channels to sync.
+     * @param jobServiceComponent The {@link EpgSyncJobService} class that will run.
+     * @see #requestChannelSync(Context, String, List, long, ComponentName)
+     */
+    public static void requestChannelSync(
+            Context context,
+            String inputId,
+            List<Uri> channelUris,
+            ComponentName jobServiceComponent) {
+        requestChannelSync(
+                context,
+                inputId,
+                channelUris,
+                DEFAULT_IMMEDIATE_EPG_DURATION_MILLIS,
+                jobServiceComponent);
+    }
+
+    /**
+     * Manually requests a job to run now for some channels only, e.g. for the channel the user
+     * tuned to if it has no programs yet. Unlike {@link #requestImmediateSync(Context, String,
+     * long, ComponentName)}, the job does not update the channels or sync the programs of the
+     * other channels, so it finishes much sooner.
+     *
+     * <p>The job has its own job ID, so it does not replace an immediate sync. If a channel sync
+     * is still pending, its channels are synced as well.
+     *
+     * @param context Application's context.
+     * @param inputId Component name for the app's TvInputService. This can be received through an
+     *     Intent extra parameter {@link TvInputInfo#EXTRA_INPUT_ID}.
+     * @param channelUris The URIs of the channels to sync.
+     * @param syncDuration The duration of EPG content to fetch in milliseconds.
+     * @param jobServiceComponent The {@link EpgSyncJobService} class that will run.
+     */
+    public static void requestChannelSync(
+            Context context,
+            String inputId,
+            List<Uri> channelUris,
+            long syncDuration,
+            ComponentName jobServiceComponent) {
+        if (jobServiceComponent.getClass().isAssignableFrom(EpgSyncJobService.class)) {
+            throw new IllegalArgumentException("This class does not extend EpgSyncJobService");
+        }
+        LinkedHashSet<Long> channelIds = new LinkedHashSet<>();
+        JobInfo pendingJob = getPendingJob(context, CHANNEL_SYNC_JOB_ID);
+        if (pendingJob != null
+                && inputId.equals(pendingJob.getExtras().getString(BUNDLE_KEY_INPUT_ID))) {
+            // Scheduling the job replaces the pending one, so keep its channels.
+            long[] pendingChannelIds = pendingJob.getExtras().getLongArray(BUNDLE_KEY_CHANNEL_IDS);
+            if (pendingChannelIds != null) {
+                for (long channelId : pendingChannelIds) {
+                    channelIds.add(channelId);
+                }
+            }
+        }
+        for (Uri channelUri : channelUris) {
+            channelIds.add(ContentUris.parseId(channelUri));
+        }
+        long[] channelIdArray = new long[channelIds.size()];
+        int index = 0;
+        for (long channelId : channelIds) {
+            channelIdArray[index++] = channelId;
+        }
+        PersistableBundle persistableBundle = new PersistableBundle();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1) {
+            persistableBundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+            persistableBundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
+        }
+        persistableBundle.putString(EpgSyncJobService.BUNDLE_KEY_INPUT_ID, inputId);
+        persistableBundle.putLong(EpgSyncJobService.BUNDLE_KEY_SYNC_PERIOD, syncDuration);
+        persistableBundle.putLongArray(BUNDLE_KEY_CHANNEL_IDS, channelIdArray);
+        JobInfo.Builder builder = new JobInfo.Builder(CHANNEL_SYNC_JOB_ID, jobServiceComponent);
+        JobInfo jobInfo =
+                builder.setExtras(persistableBundle)
+                        .setOverrideDeadline(EpgSyncJobService.OVERRIDE_DEADLINE_MILLIS)
+                        .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                        .build();
+        scheduleJob(context, jobInfo);
+        if (DEBUG) {
+            Log.d(TAG, "Channel sync scheduled for " + channelIds);
+        }
+    }
+
     /**
      * Cancels all pending jobs.
      *
@@ -382,14 +695,67 @@ public abstract class EpgSyncJobService extends JobService {
     /** @hide */
     public class EpgSyncTask extends AsyncTask<Void, Void, Void> {
         private final JobParameters params;
+        // The entry of this task in sRunningSyncs, or null if it only syncs some channels.
+        private final RunningSync mRunningSync;
         private String mInputId;
+        private LongSparseArray<List<ProgramSummary>> mExistingPrograms;
+        private int mExistingProgramsEndIndex;
+        private OperationBatcher<ChannelUpdate> mBatcher;
+        private SharedPreferences mSyncPreferences;
+        // The progress of a full sync, or null for a channel sync.
+        private final SyncCheckpoint mCheckpoint;
+        // Channels whose changes have been handed to mBatcher, and those of them which failed.
+        private final List<Long> mWrittenChannelIds = new ArrayList<>();
+        private final HashSet<Long> mFailedChannelIds = new HashSet<>();
+        // Channels which are synced before the others, see getPriorityChannelIds().
+        private final HashSet<Long> mPriorityChannelIds = new HashSet<>();
+        // Time spent in each stage of the sync pipeline, see syncChannels().
+        private final AtomicLong mFetchNanos = new AtomicLong();
+        private final AtomicLong mDiffNanos = new AtomicLong();
+        private final AtomicLong mWriteNanos = new AtomicLong();
+        private final AtomicLong mWriteWaitNanos = new AtomicLong();
+        // The rest of the statistics of the sync, see SyncStats.
+        private final ChangeCount mChangeCount = new ChangeCount();
+        private final AtomicInteger mQueryCount = new AtomicInteger();
+        private final long[] mSlowestChannelIds = new long[SLOWEST_CHANNEL_COUNT];
+        private final long[] mSlowestChannelNanos = new long[SLOWEST_CHANNEL_COUNT];
+        private int mSlowestChannelCount;
+        private long mSyncStartMs;
+        private long mSyncStartNanos;
+        private long mChannelsNanos;
+        private int mChannelCount;
+        private boolean mIncremental;
+        private boolean mCompleted;
 
         public EpgSyncTask(JobParameters params) {
             this.params = params;
+            PersistableBundle extras = params.getExtras();
+            if (extras.getLongArray(BUNDLE_KEY_CHANNEL_IDS) == null) {
+                mRunningSync =
+                        new RunningSync(
+                                params.getJobId(),
+                                extras.getString(BUNDLE_KEY_INPUT_ID),
+                                System.currentTimeMillis()
+                                        + extras.getLong(
+                                                BUNDLE_KEY_SYNC_PERIOD,
+                                                DEFAULT_IMMEDIATE_EPG_DURATION_MILLIS));
+                mCheckpoint =
+                        new SyncCheckpoint(
+                                mContext.getSharedPreferences(
+                                        PREFERENCE_EPG_SYNC, Context.MODE_PRIVATE),
+                                Constants.SHARED_PREFERENCES_KEY_SYNC_CHECKPOINT
+                                        + params.getJobId(),
+                                extras.getString(BUNDLE_KEY_INPUT_ID));
+            } else {
+                mRunningSync = null;
+                mCheckpoint = null;
+            }
         }
 
         @Override
         public Void doInBackground(Void... voids) {
+            mSyncStartMs = System.currentTimeMillis();
+            mSyncStartNanos = System.nanoTime();
             PersistableBundle extras = params.getExtras();
             mInputId = extras.getString(BUNDLE_KEY_INPUT_ID);
             if (mInputId == null) {
@@ -402,12 +768,108 @@ public abstract class EpgSyncJobService extends JobService {
                 return null;
             }
 
+            mSyncPreferences =
+                    mContext.getSharedPreferences(PREFERENCE_EPG_SYNC, Context.MODE_PRIVATE);
+            // A channel sync goes straight to the requested channels, without updating the
+            // channel lineup first.
+            long[] channelIds = extras.getLongArray(BUNDLE_KEY_CHANNEL_IDS);
+            if (channelIds == null && !updateChannels()) {
+                return null;
+            }
+            LongSparseArray<Channel> channelMap =
+                    ModelUtils.buildChannelMap(mContext.getContentResolver(), mInputId);
+            mQueryCount.incrementAndGet();
+            if (channelMap != null && channelIds != null) {
+                channelMap = filterChannels(channelMap, channelIds);
+            }
+            if (channelMap == null) {
+                broadcastError(ERROR_NO_CHANNELS);
+                return null;
+            }
+            // Default to one hour sync
+            long durationMs =
+                    extras.getLong(BUNDLE_KEY_SYNC_PERIOD, DEFAULT_IMMEDIATE_EPG_DURATION_MILLIS);
+            long startMs = System.currentTimeMillis();
+            long endMs = startMs + durationMs;
+            // If a previous run of this job was stopped, resume it in the same window after the
+            // last channel it committed. Apart from the priority channels, which are synced
+            // again, the channels are in the order of their IDs. Channel syncs are short and
+            // request different channels each time, so they always start over.
+            long resumeAfterChannelId = -1;
+            if (mCheckpoint != null
+                    && mCheckpoint.restore(startMs, durationMs, MAX_CHECKPOINT_AGE_MILLIS)) {
+                startMs = mCheckpoint.getStartMs();
+                endMs = mCheckpoint.getEndMs();
+                resumeAfterChannelId = mCheckpoint.getChannelId();
+                Log.i(TAG, mInputId + " resumes sync after channel " + resumeAfterChannelId);
+            }
+            if (mRunningSync != null) {
+                synchronized (sRunningSyncs) {
+                    // A resumed sync may end earlier than a new one would.
+                    mRunningSync.endMs = endMs;
+                }
+            }
+            boolean incremental =
+                    params.getJobId() == PERIODIC_SYNC_JOB_ID && isIncrementalSyncEnabled();
+            mIncremental = incremental;
+            mBatcher =
+                    new OperationBatcher<>(
+                            mContext.getContentResolver(),
+                            TvContract.AUTHORITY,
+                            getMaxBatchSizeBytes(),
+                            new OperationBatcher.Callback<ChannelUpdate>() {
+                                @Override
+                                public void onApplied(
+                                        ChannelUpdate channelUpdate, ContentProviderResult result) {
+                                    onOperationDone(channelUpdate);
+                                }
+
+                                @Override
+                                public void onFailed(ChannelUpdate channelUpdate, Exception e) {
+                                    // Report each channel only once, however many of its
+                                    // programs failed.
+                                    if (!channelUpdate.failed) {
+                                        channelUpdate.failed = true;
+                                        mFailedChannelIds.add(channelUpdate.channel.getId());
+                                        broadcastError(ERROR_DATABASE_INSERT);
+                                    }
+                                    onOperationDone(channelUpdate);
+                                }
+                            });
+            int[] channelOrder = getChannelOrder(channelMap, resumeAfterChannelId);
+            mChannelCount = channelOrder.length;
+            boolean completed =
+                    syncChannels(
+                            channelMap, channelOrder, startMs, endMs, incremental, mChangeCount);
+            // Write the changes still pending, even if the sync was aborted, as the channels
+            // before have already been reported as scanned.
+            long flushStartNanos = System.nanoTime();
+            mBatcher.flush();
+            mWriteNanos.addAndGet(System.nanoTime() - flushStartNanos);
+            saveWatermarks(endMs);
+            if (!completed) {
+                return null;
+            }
+            mCompleted = true;
+            return null;
+        }
+
+        /**
+         * Updates the channels of the input in the database with those from {@link
+         * #getChannels()}.
+         *
+         * @return Whether the channels were updated. If {@code false}, the reason has already
+         *     been broadcast.
+         */
+        private boolean updateChannels() {
+            long startNanos = System.nanoTime();
             List<Channel> tvChannels;
             try {
                 tvChannels = getChannels();
             } catch (EpgSyncException e) {
+                mChannelsNanos += System.nanoTime() - startNanos;
                 broadcastError(e.getReason());
-                return null;
+                return false;
             }
             ModelUtils.updateChannels(
                     mContext,
@@ -424,81 +886,27 @@ public abstract class EpgSyncJobService extends JobService {
                             editor.remove(
                                     Constants.SHARED_PREFERENCES_KEY_LAST_CHANNEL_AD_PLAY + rowId);
                             editor.apply();
+                            mSyncPreferences
+                                    .edit()
+                                    .remove(
+                                            Constants.SHARED_PREFERENCES_KEY_CHANNEL_SYNC_WATERMARK
+                                                    + rowId)
+                                    .apply();
                         }
                     });
-            LongSparseArray<Channel> channelMap =
-                    ModelUtils.buildChannelMap(mContext.getContentResolver(), mInputId);
-            if (channelMap == null) {
-                broadcastError(ERROR_NO_CHANNELS);
-                return null;
-            }
-            // Default to one hour sync
-            long durationMs =
-                    extras.getLong(BUNDLE_KEY_SYNC_PERIOD, DEFAULT_IMMEDIATE_EPG_DURATION_MILLIS);
-            long startMs = System.currentTimeMillis();
-            long endMs = startMs + durationMs;
-            ChangeCount runningChangeCount = new ChangeCount();
-            for (int i = 0; i < channelMap.size(); ++i) {
-                Uri channelUri = TvContract.buildChannelUri(channelMap.keyAt(i));
-                if (isCancelled()) {
-                    broadcastError(ERROR_EPG_SYNC_CANCELED);
-                    return null;
-                }
-                List<Program> programs;
-                try {
-                    programs =
-                            getProgramsForChannel(
-                                    channelUri, channelMap.valueAt(i), startMs, endMs);
-                } catch (EpgSyncException e) {
-                    broadcastError(e.getReason());
-                    return null;
-                }
-                if (DEBUG) {
-                    Log.d(TAG, programs.toString());
-                }
-                for (int index = 0; index < programs.size(); index++) {
-                    if (programs.get(index).getChannelId() == -1) {
-                        // Automatically set the channel id if not set
-                        programs.set(
-                                index,
-                                new Program.Builder(programs.get(index))
-                                        .setChannelId(channelMap.valueAt(i).getId())
-                                        .build());
-                    }
-                }
-
-                // Double check if the job is cancelled, so that this task can be finished faster
-                // after cancel() is called.
-                if (isCancelled()) {
-                    broadcastError(ERROR_EPG_SYNC_CANCELED);
-                    return null;
-                }
-                updatePrograms(channelUri, programs, runningChangeCount);
-                Intent intent =
-                        createSyncScannedIntent(
-                                mInputId,
-                                i + 1,
-                                channelMap.size(),
-                                channelMap.valueAt(i).getDisplayName(),
-                                channelMap.valueAt(i).getDisplayNumber());
-                LocalBroadcastManager.getInstance(mContext).sendBroadcast(intent);
-            }
-            Log.i(
-                    TAG,
-                    mInputId
-                            + " synced "
-                            + runningChangeCount.total
-                            + " programs. Deleted "
-                            + runningChangeCount.deleteCount
-                            + " updated "
-                            + runningChangeCount.updateCount
-                            + " added "
-                            + runningChangeCount.addCount);
-            return null;
+            // Updating the channels reads the existing ones with a single query.
+            mQueryCount.incrementAndGet();
+            mChannelsNanos += System.nanoTime() - startNanos;
+            return true;
         }
 
         @Override
         public void onPostExecute(Void success) {
+            // The sync either completed or ended with an error. Only a sync stopped by
+            // onStopJob() is resumed, so the next run starts over.
+            if (mCheckpoint != null) {
+                mCheckpoint.clear();
+            }
             finishEpgSync(params);
         }
 
@@ -516,9 +924,165 @@ public abstract class EpgSyncJobService extends JobService {
             if (DEBUG) {
                 Log.d(TAG, "Send out broadcast");
             }
+            SyncStats stats = buildSyncStats(jobParams);
+            Log.i(TAG, stats.toString());
+            synchronized (sSyncHistory) {
+                if (sSyncHistory.size() == MAX_SYNC_HISTORY_SIZE) {
+                    sSyncHistory.removeFirst();
+                }
+                sSyncHistory.addLast(stats);
+            }
             Intent intent =
                     createSyncFinishedIntent(jobParams.getExtras().getString(BUNDLE_KEY_INPUT_ID));
+            intent.putExtra(BUNDLE_KEY_SYNC_STATS, stats.toBundle());
             LocalBroadcastManager.getInstance(mContext).sendBroadcast(intent);
+            if (mRunningSync != null) {
+                synchronized (sRunningSyncs) {
+                    sRunningSyncs.remove(mRunningSync);
+                }
+                if (mRunningSync.followUpDuration > 0) {
+                    // The finished job may still be reported as pending, so don't merge into it.
+                    scheduleImmediateSync(
+                            mContext,
+                            mRunningSync.inputId,
+                            mRunningSync.followUpDuration,
+                            mRunningSync.followUpComponent);
+                }
+            }
+        }
+
+        private SyncStats buildSyncStats(JobParameters jobParams) {
+            long[] slowestChannelIds;
+            long[] slowestChannelTimesMillis;
+            synchronized (mSlowestChannelIds) {
+                slowestChannelIds = Arrays.copyOf(mSlowestChannelIds, mSlowestChannelCount);
+                slowestChannelTimesMillis = new long[mSlowestChannelCount];
+                for (int i = 0; i < mSlowestChannelCount; i++) {
+                    slowestChannelTimesMillis[i] =
+                            TimeUnit.NANOSECONDS.toMillis(mSlowestChannelNanos[i]);
+                }
+            }
+            return new SyncStats.Builder(
+                            jobParams.getExtras().getString(BUNDLE_KEY_INPUT_ID),
+                            jobParams.getJobId(),
+                            mSyncStartMs)
+                    .setDurationMillis(
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mSyncStartNanos))
+                    .setCompleted(mCompleted)
+                    .setIncremental(mIncremental)
+                    .setChannelCount(mChannelCount)
+                    .setChangeCounts(
+                            mChangeCount.total,
+                            mChangeCount.deleteCount,
+                            mChangeCount.updateCount,
+                            mChangeCount.addCount)
+                    .setStageTimesMillis(
+                            TimeUnit.NANOSECONDS.toMillis(mChannelsNanos),
+                            TimeUnit.NANOSECONDS.toMillis(mFetchNanos.get()),
+                            TimeUnit.NANOSECONDS.toMillis(mDiffNanos.get()),
+                            TimeUnit.NANOSECONDS.toMillis(mWriteNanos.get()),
+                            TimeUnit.NANOSECONDS.toMillis(mWriteWaitNanos.get()))
+                    .setProviderCounts(
+                            mQueryCount.get(),
+                            mBatcher != null ? mBatcher.getTransactionCount() : 0,
+                            mBatcher != null ? mBatcher.getAppliedSizeBytes() : 0)
+                    .setSlowestChannels(slowestChannelIds, slowestChannelTimesMillis)
+                    .build();
+        }
+
+        /**
+         * Records how long fetching the programs of a channel took, keeping the slowest channels
+         * of the sync. Called from the fetching threads.
+         */
+        private void recordFetchTime(long channelId, long nanos) {
+            synchronized (mSlowestChannelIds) {
+                int index = mSlowestChannelCount;
+                if (index == SLOWEST_CHANNEL_COUNT) {
+                    if (nanos <= mSlowestChannelNanos[index - 1]) {
+                        return;
+                    }
+                    index--;
+                } else {
+                    mSlowestChannelCount++;
+                }
+                // Keep the channels sorted from the slowest.
+                while (index > 0 && mSlowestChannelNanos[index - 1] < nanos) {
+                    mSlowestChannelIds[index] = mSlowestChannelIds[index - 1];
+                    mSlowestChannelNanos[index] = mSlowestChannelNanos[index - 1];
+                    index--;
+                }
+                mSlowestChannelIds[index] = channelId;
+                mSlowestChannelNanos[index] = nanos;
+            }
+        }
+
+        /**
+         * Returns the indices in {@code channelMap} of the channels to sync, in the order to sync
+         * them: first the channels from {@link #getPriorityChannelIds(String)}, then the others in
+         * the order of their IDs. The other channels up to {@code resumeAfterChannelId} are left
+         * out, as a previous run of the job has already committed them.
+         */
+        private int[] getChannelOrder(
+                LongSparseArray<Channel> channelMap, long resumeAfterChannelId) {
+            int[] channelOrder = new int[channelMap.size()];
+            int count = 0;
+            List<Long> priorityChannelIds = getPriorityChannelIds(mInputId);
+            if (priorityChannelIds != null) {
+                for (long channelId : priorityChannelIds) {
+                    int index = channelMap.indexOfKey(channelId);
+                    if (index >= 0 && mPriorityChannelIds.add(channelId)) {
+                        channelOrder[count++] = index;
+                    }
+                }
+            }
+            for (int i = 0; i < channelMap.size(); i++) {
+                long channelId = channelMap.keyAt(i);
+                if (channelId > resumeAfterChannelId && !mPriorityChannelIds.contains(channelId)) {
+                    channelOrder[count++] = i;
+                }
+            }
+            return Arrays.copyOf(channelOrder, count);
+        }
+
+        /**
+         * Returns the channels of {@code channelMap} with the given IDs, or {@code null} if there
+         * are none. IDs of channels which no longer exist are ignored.
+         */
+        private LongSparseArray<Channel> filterChannels(
+                LongSparseArray<Channel> channelMap, long[] channelIds) {
+            LongSparseArray<Channel> channels = new LongSparseArray<>(channelIds.length);
+            for (long channelId : channelIds) {
+                Channel channel = channelMap.get(channelId);
+                if (channel != null) {
+                    channels.put(channelId, channel);
+                }
+            }
+            return channels.size() == 0 ? null : channels;
+        }
+
+        /**
+         * Called when an operation of a channel has been applied or has failed. Once all of them
+         * are done, the channel and all channels before it are committed, so a stopped sync can
+         * resume after it, unless writing the channel failed.
+         */
+        private void onOperationDone(ChannelUpdate channelUpdate) {
+            channelUpdate.doneCount++;
+            if (channelUpdate.doneCount == channelUpdate.ops.size()) {
+                saveCheckpoint(channelUpdate);
+            }
+        }
+
+        private void saveCheckpoint(ChannelUpdate channelUpdate) {
+            long channelId = channelUpdate.channel.getId();
+            // A resumed sync syncs the priority channels again, so they are not checkpoints.
+            if (mCheckpoint == null || mPriorityChannelIds.contains(channelId)) {
+                return;
+            }
+            if (channelUpdate.failed) {
+                mCheckpoint.fail();
+            } else {
+                mCheckpoint.commit(channelId);
+            }
         }
 
         private void broadcastError(int reason) {
@@ -526,79 +1090,359 @@ public abstract class EpgSyncJobService extends JobService {
             LocalBroadcastManager.getInstance(mContext).sendBroadcast(intent);
         }
 
+
         /**
-         * Updates the system database, TvProvider, with the given programs.
+         * Syncs the programs of all channels in a pipeline of three stages, so that the next
+         * channels are fetched and compared while the changes of the current one are written:
+         *
+         * <ol>
+         *   <li>Up to {@link #getChannelSyncConcurrency()} worker threads fetch the programs of
+         *       the channels.
+         *   <li>A single thread compares them with the existing programs in channel order.
+         *   <li>The calling thread writes the changes to the database in channel order.
+         * </ol>
+         *
+         * <p>The stages never run more than a few channels ahead of the writer, so that fetched
+         * programs and pending changes cannot pile up in memory.
+         *
+         * <p>The channels are synced in the order of {@code channelOrder}, which may leave out the
+         * channels synced by a previous run of the job which was stopped.
+         *
+         * <p>If {@code incremental} is {@code true}, each channel is only fetched from shortly
+         * before the end of the window it was last synced for, see {@link
+         * #isIncrementalSyncEnabled()}.
+         *
+         * @return Whether every channel was processed. If {@code false}, the sync was aborted and
+         *     the reason has already been broadcast.
+         */
+        private boolean syncChannels(
+                final LongSparseArray<Channel> channelMap,
+                int[] channelOrder,
+                final long startMs,
+                final long endMs,
+                boolean incremental,
+                ChangeCount runningChangeCount) {
+            int concurrency = Math.max(1, getChannelSyncConcurrency());
+            ExecutorService fetchExecutor = Executors.newFixedThreadPool(concurrency);
+            ExecutorService diffExecutor = Executors.newSingleThreadExecutor();
+            int maxPendingUpdates = concurrency * 2;
+            ArrayDeque<Future<ChannelUpdate>> pendingUpdates = new ArrayDeque<>();
+            // The channels left out have been scanned by a previous run.
+            int scannedCount = channelMap.size() - channelOrder.length;
+            int nextPosition = 0;
+            try {
+                for (int i = 0; i < channelOrder.length; ++i) {
+                    while (nextPosition < channelOrder.length
+                            && pendingUpdates.size() < maxPendingUpdates) {
+                        final int channelIndex = channelOrder[nextPosition];
+                        final long fetchStartMs =
+                                incremental
+                                        ? getIncrementalStartMs(
+                                                channelMap.keyAt(channelIndex), startMs, endMs)
+                                        : startMs;
+                        final List<ProgramSummary> oldPrograms =
+                                getExistingPrograms(channelMap, channelOrder, nextPosition++);
+                        final Future<List<Program>> newPrograms =
+                                fetchExecutor.submit(
+                                        new Callable<List<Program>>() {
+                                            @Override
+                                            public List<Program> call() throws EpgSyncException {
+                                                long startNanos = System.nanoTime();
+                                                try {
+                                                    return fetchPrograms(
+                                                            channelMap.keyAt(channelIndex),
+                                                            channelMap.valueAt(channelIndex),
+                                                            fetchStartMs,
+                                                            endMs);
+                                                } finally {
+                                                    long nanos = System.nanoTime() - startNanos;
+                                                    mFetchNanos.addAndGet(nanos);
+                                                    recordFetchTime(
+                                                            channelMap.keyAt(channelIndex), nanos);
+                                                }
+                                            }
+                                        });
+                        pendingUpdates.add(
+                                diffExecutor.submit(
+                                        new Callable<ChannelUpdate>() {
+                                            @Override
+                                            public ChannelUpdate call() throws Exception {
+                                                List<Program> programs = newPrograms.get();
+                                                long startNanos = System.nanoTime();
+                                                try {
+                                                    return computeChannelUpdate(
+                                                            channelMap.valueAt(channelIndex),
+                                                            programs,
+                                                            oldPrograms,
+                                                            endMs);
+                                                } finally {
+                                                    mDiffNanos.addAndGet(
+                                                            System.nanoTime() - startNanos);
+                                                }
+                                            }
+                                        }));
+                    }
+                    if (isCancelled()) {
+                        broadcastError(ERROR_EPG_SYNC_CANCELED);
+                        return false;
+                    }
+                    ChannelUpdate channelUpdate;
+                    long waitStartNanos = System.nanoTime();
+                    try {
+                        channelUpdate = pendingUpdates.remove().get();
+                    } catch (InterruptedException e) {
+                        broadcastError(ERROR_EPG_SYNC_CANCELED);
+                        return false;
+                    } catch (ExecutionException e) {
+                        // The diff stage rethrows failures of the fetch stage wrapped once more.
+                        Throwable cause = e.getCause();
+                        if (cause instanceof ExecutionException) {
+                            cause = cause.getCause();
+                        }
+                        if (cause instanceof EpgSyncException) {
+                            broadcastError(((EpgSyncException) cause).getReason());
+                            return false;
+                        }
+                        throw new RuntimeException(cause);
+                    } finally {
+                        mWriteWaitNanos.addAndGet(System.nanoTime() - waitStartNanos);
+                    }
+                    long writeStartNanos = System.nanoTime();
+                    boolean proceed =
+                            writeChannelUpdate(
+                                    channelUpdate,
+                                    scannedCount + i,
+                                    channelMap.size(),
+                                    runningChangeCount);
+                    mWriteNanos.addAndGet(System.nanoTime() - writeStartNanos);
+                    if (!proceed) {
+                        return false;
+                    }
+                }
+                return true;
+            } finally {
+                fetchExecutor.shutdownNow();
+                diffExecutor.shutdownNow();
+            }
+        }
+
+        /**
+         * Returns where an incremental sync starts fetching the programs of a channel. This is the
+         * window of recent changes before the end of the window the channel was last synced for,
+         * but never before {@code startMs}.
+         */
+        private long getIncrementalStartMs(long channelId, long startMs, long endMs) {
+            long watermarkMs =
+                    mSyncPreferences.getLong(
+                            Constants.SHARED_PREFERENCES_KEY_CHANNEL_SYNC_WATERMARK + channelId, 0);
+            return Math.max(
+                    startMs, Math.min(watermarkMs, endMs) - getRecentChangesWindowMillis());
+        }
+
+        /**
+         * Records that the programs of the channels written by this sync are now synced up to
+         * {@code endMs}, unless writing them failed. A shorter sync never moves the watermark of a
+         * channel back, as it leaves the programs after its window as they are.
+         */
+        private void saveWatermarks(long endMs) {
+            SharedPreferences.Editor editor = mSyncPreferences.edit();
+            for (long channelId : mWrittenChannelIds) {
+                if (mFailedChannelIds.contains(channelId)) {
+                    continue;
+                }
+                String key = Constants.SHARED_PREFERENCES_KEY_CHANNEL_SYNC_WATERMARK + channelId;
+                editor.putLong(key, Math.max(mSyncPreferences.getLong(key, 0), endMs));
+            }
+            editor.apply();
+        }
+
+        /**
+         * Returns the programs which are already in the database for the channel at the given
+         * position of {@code channelOrder}. Instead of one query per channel, the programs of a
+         * window of channels are read ahead at once, so this must be called from the task thread
+         * with increasing positions.
+         */
+        private List<ProgramSummary> getExistingPrograms(
+                LongSparseArray<Channel> channelMap, int[] channelOrder, int position) {
+            if (mExistingPrograms == null || position >= mExistingProgramsEndIndex) {
+                mExistingProgramsEndIndex =
+                        Math.min(position + EXISTING_PROGRAMS_CHANNEL_COUNT, channelOrder.length);
+                long[] channelIds = new long[mExistingProgramsEndIndex - position];
+                for (int i = 0; i < channelIds.length; i++) {
+                    channelIds[i] = channelMap.keyAt(channelOrder[position + i]);
+                }
+                mExistingPrograms =
+                        ModelUtils.getProgramSummaries(mContext.getContentResolver(), channelIds);
+                mQueryCount.addAndGet(ModelUtils.getQueryCount(channelIds.length));
+            }
+            List<ProgramSummary> programs =
+                    mExistingPrograms.get(channelMap.keyAt(channelOrder[position]));
+            return programs != null ? programs : new ArrayList<ProgramSummary>();
+        }
+
+        /**
+         * Fetches the programs of a channel and sets their channel ID if it is missing.
+         *
+         * @param channelId The row ID of the channel.
+         * @param channel The channel to fetch the programs of.
+         * @param startMs The start of the sync window in milliseconds since the epoch.
+         * @param endMs The end of the sync window in milliseconds since the epoch.
+         * @return The programs of the channel, or {@code null} if the sync was cancelled.
+         */
+        private List<Program> fetchPrograms(
+                long channelId, Channel channel, long startMs, long endMs)
+                throws EpgSyncException {
+            if (isCancelled()) {
+                return null;
+            }
+            Uri channelUri = TvContract.buildChannelUri(channelId);
+            List<Program> newPrograms =
+                    getProgramsForChannel(channelUri, channel, startMs, endMs);
+            if (DEBUG) {
+                Log.d(TAG, newPrograms.toString());
+            }
+            for (int index = 0; index < newPrograms.size(); index++) {
+                if (newPrograms.get(index).getChannelId() == -1) {
+                    // Automatically set the channel id if not set
+                    newPrograms.set(
+                            index,
+                            new Program.Builder(newPrograms.get(index))
+                                    .setChannelId(channel.getId())
+                                    .build());
+                }
+            }
+            return newPrograms;
+        }
+
+        /**
+         * Works out which changes need to be made to the system database, TvProvider, for the
+         * programs of a channel. This does not write anything, so it may run on any thread.
          *
          * <p>If there is any overlap between the given and existing programs, the existing ones
          * will be updated with the given ones if they have the same title or replaced.
          *
-         * @param channelUri The channel where the program info will be added.
-         * @param newPrograms A list of {@link Program} instances which includes program
-         *     information.
+         * <p>Existing programs whose stored fingerprint matches a new program are left as they
+         * are without reading their other columns. Only the ones which may differ are read in
+         * full, with a single query.
+         *
+         * <p>The existing programs which are replaced are deleted with a few selection-based
+         * deletes rather than one operation each. Periodic syncs also delete the programs which
+         * start after both {@code endMs} and the last new program, e.g. those left by an earlier
+         * sync of a longer window. Shorter, immediate syncs leave them as they are.
+         *
+         * @param channel The channel where the program info will be added.
+         * @param newPrograms The fetched programs of the channel, or {@code null} if the sync was
+         *     cancelled while fetching them.
+         * @param oldPrograms Summaries of the programs of the channel which are already in the
+         *     database.
+         * @param endMs The end of the sync window in milliseconds since the epoch.
+         * @return The changes to make for this channel, or {@code null} if the sync was cancelled.
          */
-        private void updatePrograms(
-                Uri channelUri, List<Program> newPrograms, ChangeCount runningChangeCount) {
+        private ChannelUpdate computeChannelUpdate(
+                Channel channel,
+                List<Program> newPrograms,
+                List<ProgramSummary> oldPrograms,
+                long endMs) {
+            // Double check if the job is cancelled, so that this task can be finished faster
+            // after cancel() is called.
+            if (newPrograms == null || isCancelled()) {
+                return null;
+            }
+            ChannelUpdate channelUpdate = new ChannelUpdate(channel);
             final int fetchedProgramsCount = newPrograms.size();
-            runningChangeCount.total += fetchedProgramsCount;
+            ChangeCount changeCount = channelUpdate.changeCount;
+            changeCount.total += fetchedProgramsCount;
 
             if (fetchedProgramsCount == 0) {
-                broadcastError(ERROR_NO_PROGRAMS);
-                return;
+                channelUpdate.noPrograms = true;
+                return channelUpdate;
             }
-            List<Program> oldPrograms =
-                    ModelUtils.getPrograms(mContext.getContentResolver(), channelUri);
             Program firstNewProgram = newPrograms.get(0);
             int oldProgramsIndex = 0;
             int newProgramsIndex = 0;
-            // Skip the past programs. They will be automatically removed by the system.
-            for (Program program : oldPrograms) {
+            // Skip the past programs. They will be automatically removed by the system. Keep the
+            // programs which end by the time the first new one starts as well, like those before
+            // the window of an incremental sync.
+            for (ProgramSummary program : oldPrograms) {
                 if (program.getEndTimeUtcMillis() < System.currentTimeMillis()
                         || program.getEndTimeUtcMillis()
-                                < firstNewProgram.getStartTimeUtcMillis()) {
+                                <= firstNewProgram.getStartTimeUtcMillis()) {
                     oldProgramsIndex++;
                 } else {
                     break;
                 }
             }
+            long[] newFingerprints = new long[fetchedProgramsCount];
+            HashSet<Long> newFingerprintSet = new HashSet<>();
+            for (int i = 0; i < fetchedProgramsCount; i++) {
+                newFingerprints[i] = ModelUtils.getFingerprint(newPrograms.get(i));
+                newFingerprintSet.add(newFingerprints[i]);
+            }
+            LongSparseArray<Program> changedPrograms =
+                    getChangedPrograms(oldPrograms, oldProgramsIndex, newFingerprintSet);
+            long[] deletedProgramIds = new long[oldPrograms.size()];
+            int deletedProgramCount = 0;
             // Compare the new programs with old programs one by one and update/delete the old one
             // or insert new program if there is no matching program in the database.
-            ArrayList<ContentProviderOperation> ops = new ArrayList<>();
             if (isCancelled()) {
-                return;
+                return null;
             }
             while (newProgramsIndex < fetchedProgramsCount) {
-                Program oldProgram =
+                ProgramSummary oldSummary =
                         oldProgramsIndex < oldPrograms.size()
                                 ? oldPrograms.get(oldProgramsIndex)
                                 : null;
                 Program newProgram = newPrograms.get(newProgramsIndex);
+                long newFingerprint = newFingerprints[newProgramsIndex];
                 boolean addNewProgram = false;
-                if (oldProgram != null) {
-                    if (oldProgram.equals(newProgram)) {
+                if (oldSummary != null) {
+                    Program oldProgram =
+                            oldSummary.getProgram() != null
+                                    ? oldSummary.getProgram()
+                                    : changedPrograms.get(oldSummary.getId());
+                    if (oldSummary.hasFingerprint()
+                            && oldSummary.getFingerprint() == newFingerprint) {
                         // Exact match. No need to update. Move on to the next programs.
                         oldProgramsIndex++;
                         newProgramsIndex++;
-                    } else if (shouldUpdateProgramMetadata(oldProgram, newProgram)) {
+                    } else if (oldProgram != null && oldProgram.equals(newProgram)) {
+                        // Exact match, but written without a fingerprint. Store it once, so that
+                        // the next sync doesn't need to read the whole program again.
+                        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                            ContentValues values = new ContentValues();
+                            values.put(
+                                    TvContract.Programs.COLUMN_INTERNAL_PROVIDER_FLAG4,
+                                    newFingerprint);
+                            channelUpdate.add(
+                                    ContentProviderOperation.newUpdate(
+                                                    TvContract.buildProgramUri(oldSummary.getId()))
+                                            .withValues(values)
+                                            .build(),
+                                    values);
+                        }
+                        oldProgramsIndex++;
+                        newProgramsIndex++;
+                    } else if (oldProgram != null
+                            && shouldUpdateProgramMetadata(oldProgram, newProgram)) {
                         // Partial match. Update the old program with the new one.
                         // NOTE: Use 'update' in this case instead of 'insert' and 'delete'. There
                         // could be application specific settings which belong to the old program.
-                        ops.add(
+                        ContentValues values = toContentValues(newProgram, newFingerprint);
+                        channelUpdate.add(
                                 ContentProviderOperation.newUpdate(
-                                                TvContract.buildProgramUri(oldProgram.getId()))
-                                        .withValues(newProgram.toContentValues())
-                                        .build());
-                        runningChangeCount.updateCount++;
+                                                TvContract.buildProgramUri(oldSummary.getId()))
+                                        .withValues(values)
+                                        .build(),
+                                values);
+                        changeCount.updateCount++;
                         oldProgramsIndex++;
                         newProgramsIndex++;
-                    } else if (oldProgram.getEndTimeUtcMillis()
+                    } else if (oldSummary.getEndTimeUtcMillis()
                             < newProgram.getEndTimeUtcMillis()) {
                         // No match. Remove the old program first to see if the next program in
                         // {@code oldPrograms} partially matches the new program.
-                        ops.add(
-                                ContentProviderOperation.newDelete(
-                                                TvContract.buildProgramUri(oldProgram.getId()))
-                                        .build());
-                        runningChangeCount.deleteCount++;
+                        deletedProgramIds[deletedProgramCount++] = oldSummary.getId();
+                        changeCount.deleteCount++;
                         oldProgramsIndex++;
                     } else {
                         // No match. The new program does not match any of the old programs. Insert
@@ -612,25 +1456,135 @@ public abstract class EpgSyncJobService extends JobService {
                     newProgramsIndex++;
                 }
                 if (addNewProgram) {
-                    ops.add(
+                    ContentValues values = toContentValues(newProgram, newFingerprint);
+                    channelUpdate.add(
                             ContentProviderOperation.newInsert(TvContract.Programs.CONTENT_URI)
-                                    .withValues(newProgram.toContentValues())
-                                    .build());
-                    runningChangeCount.addCount++;
+                                    .withValues(values)
+                                    .build(),
+                            values);
+                    changeCount.addCount++;
                 }
-                // Throttle the batch operation not to cause TransactionTooLargeException.
-                if (ops.size() > BATCH_OPERATION_COUNT
-                        || newProgramsIndex >= fetchedProgramsCount) {
-                    try {
-                        mContext.getContentResolver().applyBatch(TvContract.AUTHORITY, ops);
-                    } catch (RemoteException | OperationApplicationException e) {
-                        Log.e(TAG, "Failed to insert programs.", e);
-                        broadcastError(ERROR_DATABASE_INSERT);
-                        return;
-                    }
-                    ops.clear();
+            }
+            // The deleted programs are selected by their IDs, so it doesn't matter that the
+            // deletes are applied after the programs of this channel are inserted.
+            for (ContentProviderOperation op :
+                    ModelUtils.buildDeleteProgramsOperations(
+                            deletedProgramIds, deletedProgramCount)) {
+                channelUpdate.add(op, null);
+            }
+            if (params.getJobId() == PERIODIC_SYNC_JOB_ID) {
+                long lastEndMs = newPrograms.get(fetchedProgramsCount - 1).getEndTimeUtcMillis();
+                pruneProgramsBeyondWindow(
+                        channelUpdate, oldPrograms, oldProgramsIndex, Math.max(endMs, lastEndMs));
+            }
+            return channelUpdate;
+        }
+
+        /**
+         * Deletes the existing programs from {@code fromIndex} which start at or after {@code
+         * startMs}, with a single delete on the channel and start time. The programs before
+         * {@code fromIndex} have already been compared with the new programs, and any of them
+         * which were deleted have been counted then.
+         */
+        private void pruneProgramsBeyondWindow(
+                ChannelUpdate channelUpdate,
+                List<ProgramSummary> oldPrograms,
+                int fromIndex,
+                long startMs) {
+            int pruneCount = 0;
+            for (int i = fromIndex; i < oldPrograms.size(); i++) {
+                if (oldPrograms.get(i).getStartTimeUtcMillis() >= startMs) {
+                    pruneCount++;
+                }
+            }
+            if (pruneCount == 0) {
+                return;
+            }
+            channelUpdate.add(
+                    ModelUtils.buildDeleteProgramsAfterOperation(
+                            channelUpdate.channel.getId(), startMs),
+                    null);
+            channelUpdate.changeCount.deleteCount += pruneCount;
+        }
+
+        /**
+         * Reads the full programs for the existing programs from {@code fromIndex} which don't
+         * match any of the new programs by fingerprint, as only those need to be compared field by
+         * field.
+         *
+         * @return LongSparseArray mapping the row ID of each of these programs to the program.
+         */
+        private LongSparseArray<Program> getChangedPrograms(
+                List<ProgramSummary> oldPrograms, int fromIndex, HashSet<Long> newFingerprintSet) {
+            long[] programIds = new long[oldPrograms.size() - fromIndex];
+            int count = 0;
+            for (int i = fromIndex; i < oldPrograms.size(); i++) {
+                ProgramSummary summary = oldPrograms.get(i);
+                if (summary.getProgram() == null
+                        && (!summary.hasFingerprint()
+                                || !newFingerprintSet.contains(summary.getFingerprint()))) {
+                    programIds[count++] = summary.getId();
+                }
+            }
+            if (count == 0) {
+                return new LongSparseArray<>();
+            }
+            mQueryCount.addAndGet(ModelUtils.getQueryCount(count));
+            return ModelUtils.getProgramsById(
+                    mContext.getContentResolver(), Arrays.copyOf(programIds, count));
+        }
+
+        /** Returns the values to write a program with, including its fingerprint if supported. */
+        private ContentValues toContentValues(Program program, long fingerprint) {
+            ContentValues values = program.toContentValues();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                values.put(TvContract.Programs.COLUMN_INTERNAL_PROVIDER_FLAG4, fingerprint);
+            }
+            return values;
+        }
+
+        /**
+         * Writes the changes for a channel to the system database, TvProvider, and broadcasts the
+         * progress of the sync.
+         *
+         * @return Whether the sync should go on with the next channel.
+         */
+        private boolean writeChannelUpdate(
+                ChannelUpdate channelUpdate,
+                int channelIndex,
+                int channelCount,
+                ChangeCount runningChangeCount) {
+            // Double check if the job is cancelled, so that this task can be finished faster
+            // after cancel() is called.
+            if (channelUpdate == null || isCancelled()) {
+                broadcastError(ERROR_EPG_SYNC_CANCELED);
+                return false;
+            }
+            runningChangeCount.add(channelUpdate.changeCount);
+            if (channelUpdate.noPrograms) {
+                broadcastError(ERROR_NO_PROGRAMS);
+            } else {
+                // The batcher writes the operations once enough of them have piled up, possibly
+                // together with those of the next channels.
+                mWrittenChannelIds.add(channelUpdate.channel.getId());
+                for (int i = 0; i < channelUpdate.ops.size(); i++) {
+                    mBatcher.add(
+                            channelUpdate.ops.get(i), channelUpdate.opValues.get(i), channelUpdate);
                 }
             }
+            if (channelUpdate.ops.isEmpty() && mBatcher.getPendingCount() == 0) {
+                // Nothing to write, and everything before has been committed.
+                saveCheckpoint(channelUpdate);
+            }
+            Intent intent =
+                    createSyncScannedIntent(
+                            mInputId,
+                            channelIndex + 1,
+                            channelCount,
+                            channelUpdate.channel.getDisplayName(),
+                            channelUpdate.channel.getDisplayNumber());
+            LocalBroadcastManager.getInstance(mContext).sendBroadcast(intent);
+            return true;
         }
     }
 
@@ -705,5 +1659,51 @@ public abstract class EpgSyncJobService extends JobService {
         long deleteCount = 0;
         long updateCount = 0;
         long addCount = 0;
+
+        void add(ChangeCount other) {
+            total += other.total;
+            deleteCount += other.deleteCount;
+            updateCount += other.updateCount;
+            addCount += other.addCount;
+        }
+    }
+
+    /** Struct to hold a full sync which has been started and has not finished yet */
+    private static class RunningSync {
+        final int jobId;
+        final String inputId;
+        // The end of the window which is synced.
+        long endMs;
+        // The longest duration of the requests which this sync does not cover, or 0 if there are
+        // none. They are all covered by a single sync once this one is finished.
+        long followUpDuration;
+        ComponentName followUpComponent;
+
+        RunningSync(int jobId, String inputId, long endMs) {
+            this.jobId = jobId;
+            this.inputId = inputId;
+            this.endMs = endMs;
+        }
+    }
+
+    /** Struct to hold the pending changes for a single channel */
+    private static class ChannelUpdate {
+        final Channel channel;
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        final ArrayList<ContentValues> opValues = new ArrayList<>();
+        final ChangeCount changeCount = new ChangeCount();
+        boolean noPrograms;
+        boolean failed;
+        // The number of operations which have been applied or have failed.
+        int doneCount;
+
+        ChannelUpdate(Channel channel) {
+            this.channel = channel;
+        }
+
+        void add(ContentProviderOperation op, ContentValues values) {
+            ops.add(op);
+            opValues.add(values);
+        }
     }
 }
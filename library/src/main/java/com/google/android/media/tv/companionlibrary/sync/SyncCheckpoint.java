@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary.sync;
+
+import android.content.SharedPreferences;
+
+/**
+ * The progress of a full sync job, kept in {@link SharedPreferences} so that a run of the job
+ * which was stopped can resume in the same window after the last channel it committed.
+ *
+ * <p>The checkpoint only moves forward while every channel has been written. Once a channel
+ * fails, the channels after it are not committed either, so that a resumed sync writes the failed
+ * channel again.
+ */
+final class SyncCheckpoint {
+    private static final String KEY_INPUT_ID = "_input_id";
+    private static final String KEY_START_MS = "_start_ms";
+    private static final String KEY_END_MS = "_end_ms";
+    private static final String KEY_CHANNEL_ID = "_channel_id";
+
+    private final SharedPreferences mPreferences;
+    private final String mKey;
+    private final String mInputId;
+    private long mStartMs;
+    private long mEndMs;
+    private long mChannelId = -1;
+    private boolean mFailed;
+
+    /**
+     * @param preferences The preferences to keep the checkpoint in.
+     * @param key The prefix of the preference keys, unique to the job.
+     * @param inputId The ID of the input the job syncs.
+     */
+    SyncCheckpoint(SharedPreferences preferences, String key, String inputId) {
+        mPreferences = preferences;
+        mKey = key;
+        mInputId = inputId;
+    }
+
+    /**
+     * Sets the window of the sync, resuming the saved one if it is for the same input and
+     * duration, and started at most {@code maxAgeMs} before {@code startMs}.
+     *
+     * @param startMs The start of the window of a new sync.
+     * @param durationMs The duration of the window.
+     * @param maxAgeMs How long ago the saved window may have started.
+     * @return Whether the saved window is resumed.
+     */
+    boolean restore(long startMs, long durationMs, long maxAgeMs) {
+        mStartMs = startMs;
+        mEndMs = startMs + durationMs;
+        mChannelId = -1;
+        if (mInputId == null
+                || !mInputId.equals(mPreferences.getString(mKey + KEY_INPUT_ID, null))) {
+            return false;
+        }
+        long savedStartMs = mPreferences.getLong(mKey + KEY_START_MS, 0);
+        long savedEndMs = mPreferences.getLong(mKey + KEY_END_MS, 0);
+        if (savedEndMs - savedStartMs != durationMs
+                || startMs < savedStartMs
+                || startMs - savedStartMs >= maxAgeMs) {
+            return false;
+        }
+        mStartMs = savedStartMs;
+        mEndMs = savedEndMs;
+        mChannelId = mPreferences.getLong(mKey + KEY_CHANNEL_ID, -1);
+        return true;
+    }
+
+    /** @return The start of the window of the sync. */
+    long getStartMs() {
+        return mStartMs;
+    }
+
+    /** @return The end of the window of the sync. */
+    long getEndMs() {
+        return mEndMs;
+    }
+
+    /**
+     * @return The ID of the last channel committed by a previous run in the same window, or
+     *     {@code -1} if the sync starts over.
+     */
+    long getChannelId() {
+        return mChannelId;
+    }
+
+    /**
+     * Records that the changes of a channel, and of all channels before it, have been written.
+     * This has no effect once a channel has failed.
+     *
+     * @param channelId The ID of the channel.
+     */
+    void commit(long channelId) {
+        if (mFailed) {
+            return;
+        }
+        mPreferences
+                .edit()
+                .putString(mKey + KEY_INPUT_ID, mInputId)
+                .putLong(mKey + KEY_START_MS, mStartMs)
+                .putLong(mKey + KEY_END_MS, mEndMs)
+                .putLong(mKey + KEY_CHANNEL_ID, channelId)
+                .apply();
+    }
+
+    /** Records that writing a channel failed, so that the checkpoint stays before it. */
+    void fail() {
+        mFailed = true;
+    }
+
+    /** Removes the saved checkpoint, so that the next run of the job starts over. */
+    void clear() {
+        mPreferences
+                .edit()
+                .remove(mKey + KEY_INPUT_ID)
+                .remove(mKey + KEY_START_MS)
+                .remove(mKey + KEY_END_MS)
+                .remove(mKey + KEY_CHANNEL_ID)
+                .apply();
+    }
+}
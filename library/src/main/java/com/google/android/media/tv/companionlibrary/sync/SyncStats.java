@@ -0,0 +1,315 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary.sync;
+
+import android.content.Intent;
+import android.os.Bundle;
+import java.util.Arrays;
+
+/**
+ * Statistics of a single run of an {@link EpgSyncJobService} job: how long each stage took, how
+ * much it read from and wrote to TvProvider, and which channels were the slowest to fetch.
+ *
+ * <p>The statistics are included in the {@link EpgSyncJobService#SYNC_FINISHED} broadcast, see
+ * {@link #fromIntent(Intent)}, and the latest ones are kept in {@link
+ * EpgSyncJobService#getSyncHistory()}.
+ */
+public final class SyncStats {
+    private static final String KEY_INPUT_ID = "input_id";
+    private static final String KEY_JOB_ID = "job_id";
+    private static final String KEY_START_TIME = "start_time";
+    private static final String KEY_DURATION = "duration";
+    private static final String KEY_COMPLETED = "completed";
+    private static final String KEY_INCREMENTAL = "incremental";
+    private static final String KEY_CHANNEL_COUNT = "channel_count";
+    private static final String KEY_PROGRAM_COUNT = "program_count";
+    private static final String KEY_DELETE_COUNT = "delete_count";
+    private static final String KEY_UPDATE_COUNT = "update_count";
+    private static final String KEY_ADD_COUNT = "add_count";
+    private static final String KEY_CHANNELS_TIME = "channels_time";
+    private static final String KEY_FETCH_TIME = "fetch_time";
+    private static final String KEY_DIFF_TIME = "diff_time";
+    private static final String KEY_WRITE_TIME = "write_time";
+    private static final String KEY_WRITE_WAIT_TIME = "write_wait_time";
+    private static final String KEY_QUERY_COUNT = "query_count";
+    private static final String KEY_TRANSACTION_COUNT = "transaction_count";
+    private static final String KEY_BYTES_WRITTEN = "bytes_written";
+    private static final String KEY_SLOWEST_CHANNEL_IDS = "slowest_channel_ids";
+    private static final String KEY_SLOWEST_CHANNEL_TIMES = "slowest_channel_times";
+
+    private final Bundle mBundle;
+
+    private SyncStats(Bundle bundle) {
+        mBundle = bundle;
+    }
+
+    /**
+     * Returns the statistics included in a {@link EpgSyncJobService#SYNC_FINISHED} broadcast.
+     *
+     * @param intent The broadcast intent.
+     * @return The statistics, or {@code null} if the intent does not include any.
+     */
+    public static SyncStats fromIntent(Intent intent) {
+        Bundle bundle = intent.getBundleExtra(EpgSyncJobService.BUNDLE_KEY_SYNC_STATS);
+        return bundle == null ? null : new SyncStats(bundle);
+    }
+
+    /** @return The input which was synced. */
+    public String getInputId() {
+        return mBundle.getString(KEY_INPUT_ID);
+    }
+
+    /** @return The ID of the job which ran the sync. */
+    public int getJobId() {
+        return mBundle.getInt(KEY_JOB_ID);
+    }
+
+    /** @return When the sync started, in milliseconds since the epoch. */
+    public long getStartTimeMillis() {
+        return mBundle.getLong(KEY_START_TIME);
+    }
+
+    /** @return How long the sync took in milliseconds. */
+    public long getDurationMillis() {
+        return mBundle.getLong(KEY_DURATION);
+    }
+
+    /** @return {@code true} if every channel was synced, {@code false} if the sync was aborted. */
+    public boolean isCompleted() {
+        return mBundle.getBoolean(KEY_COMPLETED);
+    }
+
+    /** @return Whether the sync only fetched the recent changes of the channels. */
+    public boolean isIncremental() {
+        return mBundle.getBoolean(KEY_INCREMENTAL);
+    }
+
+    /** @return The number of channels whose programs were synced. */
+    public int getChannelCount() {
+        return mBundle.getInt(KEY_CHANNEL_COUNT);
+    }
+
+    /** @return The number of programs fetched. */
+    public long getProgramCount() {
+        return mBundle.getLong(KEY_PROGRAM_COUNT);
+    }
+
+    /** @return The number of programs deleted. */
+    public long getDeleteCount() {
+        return mBundle.getLong(KEY_DELETE_COUNT);
+    }
+
+    /** @return The number of programs updated. */
+    public long getUpdateCount() {
+        return mBundle.getLong(KEY_UPDATE_COUNT);
+    }
+
+    /** @return The number of programs added. */
+    public long getAddCount() {
+        return mBundle.getLong(KEY_ADD_COUNT);
+    }
+
+    /**
+     * @return The time in milliseconds spent getting the channels with {@link
+     *     EpgSyncJobService#getChannels()} and updating them in the database.
+     */
+    public long getChannelsTimeMillis() {
+        return mBundle.getLong(KEY_CHANNELS_TIME);
+    }
+
+    /**
+     * @return The time in milliseconds spent fetching programs, summed over all fetching
+     *     threads.
+     */
+    public long getFetchTimeMillis() {
+        return mBundle.getLong(KEY_FETCH_TIME);
+    }
+
+    /**
+     * @return The time in milliseconds spent comparing the fetched programs with the existing
+     *     ones.
+     */
+    public long getDiffTimeMillis() {
+        return mBundle.getLong(KEY_DIFF_TIME);
+    }
+
+    /**
+     * @return The time in milliseconds spent writing changes to the database.
+     */
+    public long getWriteTimeMillis() {
+        return mBundle.getLong(KEY_WRITE_TIME);
+    }
+
+    /**
+     * @return The time in milliseconds the writes had to wait for programs to be fetched and
+     *     compared. If this is high, fetching or comparing limits the sync rather than writing.
+     */
+    public long getWriteWaitTimeMillis() {
+        return mBundle.getLong(KEY_WRITE_WAIT_TIME);
+    }
+
+    /** @return The number of queries made to TvProvider to read channels and programs. */
+    public int getQueryCount() {
+        return mBundle.getInt(KEY_QUERY_COUNT);
+    }
+
+    /** @return The number of transactions which wrote programs, including retries. */
+    public int getTransactionCount() {
+        return mBundle.getInt(KEY_TRANSACTION_COUNT);
+    }
+
+    /** @return The estimated number of bytes sent to TvProvider to write programs. */
+    public long getEstimatedBytesWritten() {
+        return mBundle.getLong(KEY_BYTES_WRITTEN);
+    }
+
+    /** @return The row IDs of the channels which took the longest to fetch, slowest first. */
+    public long[] getSlowestChannelIds() {
+        long[] channelIds = mBundle.getLongArray(KEY_SLOWEST_CHANNEL_IDS);
+        return channelIds != null ? channelIds : new long[0];
+    }
+
+    /**
+     * @return The time in milliseconds it took to fetch each channel of {@link
+     *     #getSlowestChannelIds()}.
+     */
+    public long[] getSlowestChannelTimesMillis() {
+        long[] times = mBundle.getLongArray(KEY_SLOWEST_CHANNEL_TIMES);
+        return times != null ? times : new long[0];
+    }
+
+    Bundle toBundle() {
+        return new Bundle(mBundle);
+    }
+
+    @Override
+    public String toString() {
+        return "SyncStats{"
+                + "inputId="
+                + getInputId()
+                + ", jobId="
+                + getJobId()
+                + ", durationMillis="
+                + getDurationMillis()
+                + ", completed="
+                + isCompleted()
+                + ", incremental="
+                + isIncremental()
+                + ", channelCount="
+                + getChannelCount()
+                + ", programCount="
+                + getProgramCount()
+                + ", deleteCount="
+                + getDeleteCount()
+                + ", updateCount="
+                + getUpdateCount()
+                + ", addCount="
+                + getAddCount()
+                + ", channelsTimeMillis="
+                + getChannelsTimeMillis()
+                + ", fetchTimeMillis="
+                + getFetchTimeMillis()
+                + ", diffTimeMillis="
+                + getDiffTimeMillis()
+                + ", writeTimeMillis="
+                + getWriteTimeMillis()
+                + ", writeWaitTimeMillis="
+                + getWriteWaitTimeMillis()
+                + ", queryCount="
+                + getQueryCount()
+                + ", transactionCount="
+                + getTransactionCount()
+                + ", estimatedBytesWritten="
+                + getEstimatedBytesWritten()
+                + ", slowestChannelIds="
+                + Arrays.toString(getSlowestChannelIds())
+                + ", slowestChannelTimesMillis="
+                + Arrays.toString(getSlowestChannelTimesMillis())
+                + "}";
+    }
+
+    /** Collects the statistics of a sync as it runs. */
+    static final class Builder {
+        private final Bundle mBundle = new Bundle();
+
+        Builder(String inputId, int jobId, long startTimeMillis) {
+            mBundle.putString(KEY_INPUT_ID, inputId);
+            mBundle.putInt(KEY_JOB_ID, jobId);
+            mBundle.putLong(KEY_START_TIME, startTimeMillis);
+        }
+
+        Builder setDurationMillis(long durationMillis) {
+            mBundle.putLong(KEY_DURATION, durationMillis);
+            return this;
+        }
+
+        Builder setCompleted(boolean completed) {
+            mBundle.putBoolean(KEY_COMPLETED, completed);
+            return this;
+        }
+
+        Builder setIncremental(boolean incremental) {
+            mBundle.putBoolean(KEY_INCREMENTAL, incremental);
+            return this;
+        }
+
+        Builder setChannelCount(int channelCount) {
+            mBundle.putInt(KEY_CHANNEL_COUNT, channelCount);
+            return this;
+        }
+
+        Builder setChangeCounts(
+                long programCount, long deleteCount, long updateCount, long addCount) {
+            mBundle.putLong(KEY_PROGRAM_COUNT, programCount);
+            mBundle.putLong(KEY_DELETE_COUNT, deleteCount);
+            mBundle.putLong(KEY_UPDATE_COUNT, updateCount);
+            mBundle.putLong(KEY_ADD_COUNT, addCount);
+            return this;
+        }
+
+        Builder setStageTimesMillis(
+                long channelsTimeMillis,
+                long fetchTimeMillis,
+                long diffTimeMillis,
+                long writeTimeMillis,
+                long writeWaitTimeMillis) {
+            mBundle.putLong(KEY_CHANNELS_TIME, channelsTimeMillis);
+            mBundle.putLong(KEY_FETCH_TIME, fetchTimeMillis);
+            mBundle.putLong(KEY_DIFF_TIME, diffTimeMillis);
+            mBundle.putLong(KEY_WRITE_TIME, writeTimeMillis);
+            mBundle.putLong(KEY_WRITE_WAIT_TIME, writeWaitTimeMillis);
+            return this;
+        }
+
+        Builder setProviderCounts(int queryCount, int transactionCount, long bytesWritten) {
+            mBundle.putInt(KEY_QUERY_COUNT, queryCount);
+            mBundle.putInt(KEY_TRANSACTION_COUNT, transactionCount);
+            mBundle.putLong(KEY_BYTES_WRITTEN, bytesWritten);
+            return this;
+        }
+
+        Builder setSlowestChannels(long[] channelIds, long[] timesMillis) {
+            mBundle.putLongArray(KEY_SLOWEST_CHANNEL_IDS, channelIds);
+            mBundle.putLongArray(KEY_SLOWEST_CHANNEL_TIMES, timesMillis);
+            return this;
+        }
+
+        SyncStats build() {
+            return new SyncStats(new Bundle(mBundle));
+        }
+    }
+}
@@ -35,4 +35,26 @@ public class Constants {
      */
     public static final String SHARED_PREFERENCES_KEY_LAST_CHANNEL_AD_PLAY =
             "last_program_ad_time_ms";
+    /**
+     * Base key string used to store the end of the time window a channel's programs were last
+     * synced for, in the {@link SharedPreferences} file of the EPG sync.
+     *
+     * @hide
+     */
+    public static final String SHARED_PREFERENCES_KEY_CHANNEL_SYNC_WATERMARK =
+            "channel_sync_watermark_ms";
+    /**
+     * Base key string used to store the progress of an EPG sync job, so that it can be resumed
+     * after the job was stopped, in the {@link SharedPreferences} file of the EPG sync.
+     *
+     * @hide
+     */
+    public static final String SHARED_PREFERENCES_KEY_SYNC_CHECKPOINT = "sync_checkpoint_";
+    /**
+     * Base key string used to store the IDs of the channels of an input most recently tuned to,
+     * most recent first.
+     *
+     * @hide
+     */
+    public static final String SHARED_PREFERENCES_KEY_RECENT_CHANNELS = "recent_channel_ids_";
 }
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary.utils;
+
+import android.util.Log;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Properties;
+
+/**
+ * Fetches feeds over HTTP and keeps the latest copy of each one on disk.
+ *
+ * <p>Once a feed has been downloaded, later fetches revalidate it with {@code If-None-Match} and
+ * {@code If-Modified-Since}, using the {@code ETag} and {@code Last-Modified} headers of the last
+ * response. If the server answers {@code 304 Not Modified}, nothing is downloaded and the returned
+ * {@link Entry} reports that the feed is unchanged, so callers can also skip parsing it again.
+ *
+ * <p>If the server cannot be reached, the copy on disk is returned if there is one.
+ */
+public class HttpFeedCache {
+    private static final String TAG = "HttpFeedCache";
+    private static final boolean DEBUG = false;
+
+    private static final int DEFAULT_CONNECT_TIMEOUT_MS = 3000; // 3 sec
+    private static final int DEFAULT_READ_TIMEOUT_MS = 10000; // 10 sec
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final String BODY_SUFFIX = ".body";
+    private static final String META_SUFFIX = ".meta";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String META_KEY_URL = "url";
+    private static final String META_KEY_ETAG = "etag";
+    private static final String META_KEY_LAST_MODIFIED = "last-modified";
+
+    private final File mDirectory;
+    private final int mConnectTimeoutMs;
+    private final int mReadTimeoutMs;
+
+    /**
+     * Creates a cache with default timeouts.
+     *
+     * @param directory The directory to store the feeds in, e.g. a subdirectory of {@link
+     *     android.content.Context#getCacheDir()}. It is created if it does not exist.
+     */
+    public HttpFeedCache(File directory) {
+        this(directory, DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS);
+    }
+
+    /**
+     * @param directory The directory to store the feeds in. It is created if it does not exist.
+     * @param connectTimeoutMs The timeout for connecting to the server in milliseconds.
+     * @param readTimeoutMs The timeout for reading from the server in milliseconds.
+     */
+    public HttpFeedCache(File directory, int connectTimeoutMs, int readTimeoutMs) {
+        mDirectory = directory;
+        mConnectTimeoutMs = connectTimeoutMs;
+        mReadTimeoutMs = readTimeoutMs;
+    }
+
+    /**
+     * Fetches a feed, downloading it only if it changed since the copy on disk was fetched.
+     *
+     * @param url The HTTP or HTTPS URL of the feed.
+     * @return The feed stored on disk.
+     * @throws IOException If the feed could not be fetched and there is no copy on disk.
+     */
+    public synchronized Entry fetch(String url) throws IOException {
+        String key = Integer.toHexString(url.hashCode());
+        File bodyFile = new File(mDirectory, key + BODY_SUFFIX);
+        File metaFile = new File(mDirectory, key + META_SUFFIX);
+        Entry cached = readEntry(url, bodyFile, metaFile);
+
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(mConnectTimeoutMs);
+            connection.setReadTimeout(mReadTimeoutMs);
+            // This class is the cache. Don't let an installed HttpResponseCache answer instead.
+            connection.setUseCaches(false);
+            if (cached != null) {
+                if (cached.mETag != null) {
+                    connection.setRequestProperty("If-None-Match", cached.mETag);
+                }
+                if (cached.mLastModified != null) {
+                    connection.setRequestProperty("If-Modified-Since", cached.mLastModified);
+                }
+            }
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                if (DEBUG) {
+                    Log.d(TAG, url + " is not modified");
+                }
+                return cached;
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected response " + responseCode + " for " + url);
+            }
+            Entry entry =
+                    new Entry(
+                            bodyFile,
+                            connection.getHeaderField("ETag"),
+                            connection.getHeaderField("Last-Modified"),
+                            false);
+            writeEntry(url, entry, connection.getInputStream(), metaFile);
+            if (DEBUG) {
+                Log.d(TAG, "Downloaded " + url + " to " + bodyFile);
+            }
+            return entry;
+        } catch (IOException e) {
+            if (cached == null) {
+                throw e;
+            }
+            Log.w(TAG, "Failed to fetch " + url + ", using the copy on disk", e);
+            return cached;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private static Entry readEntry(String url, File bodyFile, File metaFile) {
+        if (!bodyFile.exists() || !metaFile.exists()) {
+            return null;
+        }
+        Properties meta = new Properties();
+        try (InputStream in = new FileInputStream(metaFile)) {
+            meta.load(in);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read " + metaFile, e);
+            return null;
+        }
+        if (!url.equals(meta.getProperty(META_KEY_URL))) {
+            // Another feed whose URL has the same hash code. It will be replaced.
+            return null;
+        }
+        return new Entry(
+                bodyFile,
+                meta.getProperty(META_KEY_ETAG),
+                meta.getProperty(META_KEY_LAST_MODIFIED),
+                true);
+    }
+
+    private void writeEntry(String url, Entry entry, InputStream body, File metaFile)
+            throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Failed to create " + mDirectory);
+        }
+        // Write to temporary files first, so that an interrupted download never leaves a
+        // truncated feed behind which would then be revalidated as if it was complete.
+        File bodyTemp = new File(mDirectory, entry.mFile.getName() + TEMP_SUFFIX);
+        try (InputStream in = body;
+                OutputStream out = new FileOutputStream(bodyTemp)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        }
+        Properties meta = new Properties();
+        meta.setProperty(META_KEY_URL, url);
+        if (entry.mETag != null) {
+            meta.setProperty(META_KEY_ETAG, entry.mETag);
+        }
+        if (entry.mLastModified != null) {
+            meta.setProperty(META_KEY_LAST_MODIFIED, entry.mLastModified);
+        }
+        File metaTemp = new File(mDirectory, metaFile.getName() + TEMP_SUFFIX);
+        try (OutputStream out = new FileOutputStream(metaTemp)) {
+            meta.store(out, null);
+        }
+        // Remove the old metadata first, so that the new body is never paired with it.
+        metaFile.delete();
+        if (!bodyTemp.renameTo(entry.mFile) || !metaTemp.renameTo(metaFile)) {
+            throw new IOException("Failed to store " + url);
+        }
+    }
+
+    /** A feed stored on disk by {@link HttpFeedCache}. */
+    public static final class Entry {
+        private final File mFile;
+        private final String mETag;
+        private final String mLastModified;
+        private final boolean mUnchanged;
+
+        private Entry(File file, String eTag, String lastModified, boolean unchanged) {
+            mFile = file;
+            mETag = eTag;
+            mLastModified = lastModified;
+            mUnchanged = unchanged;
+        }
+
+        /** @return The file the feed is stored in. */
+        public File getFile() {
+            return mFile;
+        }
+
+        /** @return The {@code ETag} of the feed, or {@code null} if the server sent none. */
+        public String getETag() {
+            return mETag;
+        }
+
+        /** @return The {@code Last-Modified} date of the feed, or {@code null} if unknown. */
+        public String getLastModified() {
+            return mLastModified;
+        }
+
+        /**
+         * Returns a string which identifies this version of the feed, so that results derived
+         * from it can be reused as long as it stays the same.
+         *
+         * @return The {@code ETag} or {@code Last-Modified} date of the feed, or {@code null} if
+         *     the server sent neither.
+         */
+        public String getValidator() {
+            return mETag != null ? mETag : mLastModified;
+        }
+
+        /**
+         * @return {@code true} if the feed was not downloaded again, because it has not changed
+         *     since the copy on disk was fetched or because the server could not be reached.
+         */
+        public boolean isUnchanged() {
+            return mUnchanged;
+        }
+
+        /** @return A new buffered stream to read the feed from. The caller must close it. */
+        public InputStream openInputStream() throws IOException {
+            return new BufferedInputStream(new FileInputStream(mFile));
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary.utils;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.os.DeadObjectException;
+import android.os.RemoteException;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects {@link ContentProviderOperation}s and applies them with {@link
+ * ContentResolver#applyBatch(String, ArrayList)} in batches whose estimated parcel size stays
+ * below a byte budget. This keeps large rows from causing a {@link
+ * android.os.TransactionTooLargeException} while letting small rows share a transaction.
+ *
+ * <p>If a batch fails anyway, it is split in half and each half is retried, down to single
+ * operations. An operation which fails on its own is reported to {@link
+ * Callback#onFailed(Object, Exception)} and skipped. This relies on the provider applying each
+ * batch in a transaction, as TvProvider does, so that a failed batch leaves nothing behind.
+ *
+ * <p>A {@link DeadObjectException} is not retried, since the provider is gone. The operations of
+ * the batch and all operations added afterwards are reported as failed without being applied.
+ *
+ * <p>This class is not thread-safe.
+ *
+ * @param <T> The type of the tag passed along with each operation.
+ * @hide
+ */
+public class OperationBatcher<T> {
+    private static final String TAG = "OperationBatcher";
+    private static final boolean DEBUG = false;
+
+    /** The default byte budget, a quarter of the binder transaction buffer. */
+    public static final int DEFAULT_MAX_BATCH_SIZE_BYTES = 256 * 1024;
+
+    // Rough parcel size of an operation apart from its values, e.g. its type and URI.
+    private static final int OPERATION_OVERHEAD_BYTES = 200;
+    // Parcels store strings as UTF-16 with a length prefix, padded to 4 bytes.
+    private static final int PARCEL_TYPE_BYTES = 4;
+
+    /** Callback interface used to deliver the results of the operations. */
+    public interface Callback<T> {
+        /**
+         * Called when an operation has been applied.
+         *
+         * @param tag The tag the operation was added with.
+         * @param result The result of the operation.
+         */
+        void onApplied(T tag, ContentProviderResult result);
+
+        /**
+         * Called when an operation could not be applied, even on its own, or when the provider
+         * died. The operation is skipped and the other operations are still applied, unless the
+         * provider died.
+         *
+         * @param tag The tag the operation was added with.
+         * @param e The exception thrown when applying the operation.
+         */
+        void onFailed(T tag, Exception e);
+    }
+
+    private final ContentResolver mResolver;
+    private final String mAuthority;
+    private final int mMaxBatchSizeBytes;
+    private final Callback<T> mCallback;
+    private final ArrayList<ContentProviderOperation> mOperations = new ArrayList<>();
+    private final List<T> mTags = new ArrayList<>();
+    private int mBatchSizeBytes;
+    private int mTransactionCount;
+    private long mAppliedSizeBytes;
+    private DeadObjectException mDeadObjectException;
+
+    /**
+     * @param resolver The ContentResolver to apply the operations with.
+     * @param authority The authority of the provider, e.g. {@link
+     *     android.media.tv.TvContract#AUTHORITY}.
+     * @param maxBatchSizeBytes The estimated parcel size at which a batch is applied.
+     * @param callback The callback to deliver the results to, or {@code null}.
+     */
+    public OperationBatcher(
+            ContentResolver resolver,
+            String authority,
+            int maxBatchSizeBytes,
+            Callback<T> callback) {
+        if (maxBatchSizeBytes <= 0) {
+            throw new IllegalArgumentException("maxBatchSizeBytes must be positive");
+        }
+        mResolver = resolver;
+        mAuthority = authority;
+        mMaxBatchSizeBytes = maxBatchSizeBytes;
+        mCallback = callback;
+    }
+
+    /**
+     * Adds an operation. If it would take the pending batch over the byte budget, the pending
+     * batch is applied first.
+     *
+     * @param operation The operation to apply.
+     * @param values The values of the operation, used to estimate its size, or {@code null} if it
+     *     has none.
+     * @param tag A tag to pass to the callback along with the result.
+     */
+    public void add(ContentProviderOperation operation, ContentValues values, T tag) {
+        int sizeBytes = estimateSize(values);
+        if (!mOperations.isEmpty() && mBatchSizeBytes + sizeBytes > mMaxBatchSizeBytes) {
+            flush();
+        }
+        mOperations.add(operation);
+        mTags.add(tag);
+        mBatchSizeBytes += sizeBytes;
+    }
+
+    /** Applies all pending operations. */
+    public void flush() {
+        if (mOperations.isEmpty()) {
+            return;
+        }
+        apply(0, mOperations.size());
+        mAppliedSizeBytes += mBatchSizeBytes;
+        mOperations.clear();
+        mTags.clear();
+        mBatchSizeBytes = 0;
+    }
+
+    /** @return The number of operations added but not applied yet. */
+    public int getPendingCount() {
+        return mOperations.size();
+    }
+
+    /** @return The number of transactions made so far, including retries. */
+    public int getTransactionCount() {
+        return mTransactionCount;
+    }
+
+    /**
+     * @return The estimated total size of the operations applied so far, including those which
+     *     failed.
+     */
+    public long getAppliedSizeBytes() {
+        return mAppliedSizeBytes;
+    }
+
+    /**
+     * Estimates the size of an operation with the given values once it is written to a parcel.
+     *
+     * @param values The values of the operation, or {@code null} if it has none.
+     * @return The estimated size in bytes.
+     */
+    public static int estimateSize(ContentValues values) {
+        int sizeBytes = OPERATION_OVERHEAD_BYTES;
+        if (values == null) {
+            return sizeBytes;
+        }
+        for (String key : values.keySet()) {
+            sizeBytes += estimateStringSize(key) + PARCEL_TYPE_BYTES;
+            Object value = values.get(key);
+            if (value instanceof String) {
+                sizeBytes += estimateStringSize((String) value);
+            } else if (value instanceof byte[]) {
+                sizeBytes += PARCEL_TYPE_BYTES + pad(((byte[]) value).length);
+            } else if (value instanceof Long || value instanceof Double) {
+                sizeBytes += 8;
+            } else if (value != null) {
+                sizeBytes += 4;
+            }
+        }
+        return sizeBytes;
+    }
+
+    private static int estimateStringSize(String value) {
+        return PARCEL_TYPE_BYTES + pad((value.length() + 1) * 2);
+    }
+
+    private static int pad(int sizeBytes) {
+        return (sizeBytes + 3) & ~3;
+    }
+
+    private void apply(int start, int end) {
+        if (mDeadObjectException != null) {
+            fail(start, end, mDeadObjectException);
+            return;
+        }
+        ArrayList<ContentProviderOperation> batch =
+                new ArrayList<>(mOperations.subList(start, end));
+        ContentProviderResult[] results;
+        try {
+            mTransactionCount++;
+            results = mResolver.applyBatch(mAuthority, batch);
+        } catch (DeadObjectException e) {
+            Log.e(TAG, "Provider died, failing " + (end - start) + " operations", e);
+            mDeadObjectException = e;
+            fail(start, end, e);
+            return;
+        } catch (RemoteException | OperationApplicationException e) {
+            if (end - start == 1) {
+                Log.e(TAG, "Failed to apply operation " + mOperations.get(start), e);
+                if (mCallback != null) {
+                    mCallback.onFailed(mTags.get(start), e);
+                }
+                return;
+            }
+            if (DEBUG) {
+                Log.d(TAG, "Splitting failed batch of " + (end - start) + " operations", e);
+            }
+            int middle = (start + end) >>> 1;
+            apply(start, middle);
+            apply(middle, end);
+            return;
+        }
+        if (mCallback != null) {
+            for (int i = 0; i < results.length; i++) {
+                mCallback.onApplied(mTags.get(start + i), results[i]);
+            }
+        }
+    }
+
+    private void fail(int start, int end, Exception e) {
+        if (mCallback != null) {
+            for (int i = start; i < end; i++) {
+                mCallback.onFailed(mTags.get(i), e);
+            }
+        }
+    }
+}
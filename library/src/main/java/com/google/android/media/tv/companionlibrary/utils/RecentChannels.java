@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps track of the channels of each input most recently tuned to, so that the EPG sync can sync
+ * them before the other channels. The list is kept in {@link SharedPreferences}, so it should not
+ * be updated on the main thread.
+ *
+ * @hide
+ */
+public final class RecentChannels {
+    /** The maximum number of channels which are kept track of. */
+    public static final int MAX_COUNT = 10;
+
+    private static final String SEPARATOR = ",";
+
+    private RecentChannels() {}
+
+    /**
+     * Records that a channel has been tuned to.
+     *
+     * @param context The context to access the {@link SharedPreferences} with.
+     * @param inputId The input of the channel.
+     * @param channelId The row ID of the channel.
+     */
+    public static synchronized void add(Context context, String inputId, long channelId) {
+        List<Long> channelIds = get(context, inputId);
+        if (!channelIds.isEmpty() && channelIds.get(0) == channelId) {
+            return;
+        }
+        channelIds.remove(Long.valueOf(channelId));
+        channelIds.add(0, channelId);
+        if (channelIds.size() > MAX_COUNT) {
+            channelIds.subList(MAX_COUNT, channelIds.size()).clear();
+        }
+        getSharedPreferences(context)
+                .edit()
+                .putString(
+                        Constants.SHARED_PREFERENCES_KEY_RECENT_CHANNELS + inputId,
+                        TextUtils.join(SEPARATOR, channelIds))
+                .apply();
+    }
+
+    /**
+     * Returns the channels of an input most recently tuned to.
+     *
+     * @param context The context to access the {@link SharedPreferences} with.
+     * @param inputId The input whose channels to return.
+     * @return The row IDs of the channels, most recent first.
+     */
+    public static List<Long> get(Context context, String inputId) {
+        String key = Constants.SHARED_PREFERENCES_KEY_RECENT_CHANNELS + inputId;
+        String value = getSharedPreferences(context).getString(key, null);
+        List<Long> channelIds = new ArrayList<>();
+        if (TextUtils.isEmpty(value)) {
+            return channelIds;
+        }
+        for (String channelId : value.split(SEPARATOR)) {
+            try {
+                channelIds.add(Long.parseLong(channelId));
+            } catch (NumberFormatException e) {
+                // Ignore the malformed entry. It is dropped the next time a channel is tuned to.
+            }
+        }
+        return channelIds;
+    }
+
+    private static SharedPreferences getSharedPreferences(Context context) {
+        return context.getSharedPreferences(Constants.PREFERENCES_FILE_KEY, Context.MODE_PRIVATE);
+    }
+}
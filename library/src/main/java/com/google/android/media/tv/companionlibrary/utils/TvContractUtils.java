@@ -61,7 +61,7 @@ public final class TvContractUtils {
         VIDEO_HEIGHT_TO_FORMAT_MAP.put(4320, TvContract.Channels.VIDEO_FORMAT_4320P);
     }
 
-    private static void insertUrl(Context context, Uri contentUri, URL sourceUrl) {
+    private static boolean insertUrl(Context context, Uri contentUri, URL sourceUrl) {
         if (DEBUG) {
             Log.d(TAG, "Inserting " + sourceUrl + " to " + contentUri);
         }
@@ -71,8 +71,10 @@ public final class TvContractUtils {
             is = sourceUrl.openStream();
             os = context.getContentResolver().openOutputStream(contentUri);
             copy(is, os);
+            return true;
         } catch (IOException ioe) {
             Log.e(TAG, "Failed to write " + sourceUrl + "  to " + contentUri, ioe);
+            return false;
         } finally {
             if (is != null) {
                 try {
@@ -153,7 +155,9 @@ public final class TvContractUtils {
             for (Map<Uri, String> logos : logosList) {
                 for (Uri uri : logos.keySet()) {
                     try {
-                        insertUrl(mContext, uri, new URL(logos.get(uri)));
+                        if (insertUrl(mContext, uri, new URL(logos.get(uri)))) {
+                            onLogoInserted(uri);
+                        }
                     } catch (MalformedURLException e) {
                         Log.e(TAG, "Can't load " + logos.get(uri), e);
                     }
@@ -161,5 +165,12 @@ public final class TvContractUtils {
             }
             return null;
         }
+
+        /**
+         * Called on the background thread once a logo has been inserted.
+         *
+         * @param logoUri The URI the logo was written to.
+         */
+        protected void onLogoInserted(Uri logoUri) {}
     }
 }
@@ -0,0 +1,425 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary.xmltv;
+
+import android.media.tv.TvContentRating;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import com.google.android.media.tv.companionlibrary.model.Channel;
+import com.google.android.media.tv.companionlibrary.model.Program;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Stores a parsed {@link XmlTvParser.TvListing} in a compact binary file, so that it can be loaded
+ * again in a few milliseconds instead of parsing the XMLTV feed, e.g. when the process restarts.
+ *
+ * <p>Each snapshot records a validator of the feed it was parsed from, such as the feed's {@code
+ * ETag}. {@link #read(File, String)} only returns the listing if the validator still matches, so
+ * the feed is parsed again exactly when it changed.
+ *
+ * <p>The file starts with a magic number and a format version, followed by the validator, a table
+ * of all distinct strings, the channels and the programs. Strings are stored once and referred to
+ * by their index, and the start time, end time and channel ID of the programs are stored in
+ * fixed-width columns. The file is read through a memory-mapped buffer, and the programs of a
+ * channel are only built from it when they are first requested.
+ */
+public final class TvListingSnapshot {
+    private static final String TAG = "TvListingSnapshot";
+
+    private static final int MAGIC = 0x54564c53; // "TVLS"
+    /** Bump whenever the format changes or more fields of the listing are stored. */
+    private static final int VERSION = 1;
+    private static final int NO_STRING = -1;
+    // The number of string indices stored for each channel, and of ints for each program.
+    private static final int CHANNEL_STRING_COUNT = 8;
+    private static final int PROGRAM_INT_COUNT = 8;
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private TvListingSnapshot() {}
+
+    /**
+     * Writes a snapshot of a listing. The file is replaced atomically, so a concurrent or
+     * interrupted write never leaves a partial snapshot behind.
+     *
+     * @param listing The listing to store.
+     * @param validator Identifies the version of the feed the listing was parsed from.
+     * @param file The file to write the snapshot to.
+     * @throws IOException If the snapshot could not be written.
+     */
+    public static void write(
+            @NonNull XmlTvParser.TvListing listing, @NonNull String validator, @NonNull File file)
+            throws IOException {
+        List<Channel> channels = listing.getChannels();
+        List<Program> programs = listing.getAllPrograms();
+        StringTable strings = new StringTable();
+        // String lists of the programs, e.g. genres, as offset and count into this pool.
+        List<Integer> listPool = new ArrayList<>();
+        int[] channelStrings = new int[channels.size() * CHANNEL_STRING_COUNT];
+        for (int i = 0; i < channels.size(); i++) {
+            Channel channel = channels.get(i);
+            int offset = i * CHANNEL_STRING_COUNT;
+            channelStrings[offset] = strings.add(channel.getDisplayName());
+            channelStrings[offset + 1] = strings.add(channel.getDisplayNumber());
+            channelStrings[offset + 2] = strings.add(channel.getChannelLogo());
+            channelStrings[offset + 3] = strings.add(channel.getAppLinkText());
+            channelStrings[offset + 4] = strings.add(channel.getAppLinkIconUri());
+            channelStrings[offset + 5] = strings.add(channel.getAppLinkPosterArtUri());
+            channelStrings[offset + 6] = strings.add(channel.getAppLinkIntentUri());
+            channelStrings[offset + 7] =
+                    strings.add(toString(channel.getInternalProviderDataByteArray()));
+        }
+        int[] programStrings = new int[programs.size() * PROGRAM_INT_COUNT];
+        for (int i = 0; i < programs.size(); i++) {
+            Program program = programs.get(i);
+            int offset = i * PROGRAM_INT_COUNT;
+            programStrings[offset] = strings.add(program.getTitle());
+            programStrings[offset + 1] = strings.add(program.getDescription());
+            programStrings[offset + 2] = strings.add(program.getPosterArtUri());
+            programStrings[offset + 3] =
+                    strings.add(toString(program.getInternalProviderDataByteArray()));
+            String[] genres = program.getCanonicalGenres();
+            programStrings[offset + 4] = listPool.size();
+            programStrings[offset + 5] = genres == null ? -1 : genres.length;
+            if (genres != null) {
+                for (String genre : genres) {
+                    listPool.add(strings.add(genre));
+                }
+            }
+            TvContentRating[] ratings = program.getContentRatings();
+            programStrings[offset + 6] = listPool.size();
+            programStrings[offset + 7] = ratings == null ? -1 : ratings.length;
+            if (ratings != null) {
+                for (TvContentRating rating : ratings) {
+                    listPool.add(strings.add(rating.flattenToString()));
+                }
+            }
+        }
+
+        File tempFile = new File(file.getPath() + TEMP_SUFFIX);
+        DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeBytes(out, validator.getBytes(UTF_8));
+            out.writeInt(strings.mStrings.size());
+            for (String string : strings.mStrings) {
+                writeBytes(out, string.getBytes(UTF_8));
+            }
+            out.writeInt(listPool.size());
+            for (int value : listPool) {
+                out.writeInt(value);
+            }
+            out.writeInt(channels.size());
+            for (int i = 0; i < channels.size(); i++) {
+                Channel channel = channels.get(i);
+                out.writeLong(channel.getOriginalNetworkId());
+                out.writeInt(channel.getTransportStreamId());
+                out.writeInt(channel.getServiceId());
+                out.writeInt(channel.getAppLinkColor());
+                for (int j = 0; j < CHANNEL_STRING_COUNT; j++) {
+                    out.writeInt(channelStrings[i * CHANNEL_STRING_COUNT + j]);
+                }
+            }
+            out.writeInt(programs.size());
+            for (Program program : programs) {
+                out.writeLong(program.getStartTimeUtcMillis());
+            }
+            for (Program program : programs) {
+                out.writeLong(program.getEndTimeUtcMillis());
+            }
+            for (Program program : programs) {
+                out.writeLong(program.getChannelId());
+            }
+            for (int value : programStrings) {
+                out.writeInt(value);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Failed to write " + file);
+        }
+    }
+
+    /**
+     * Reads a snapshot of a listing. Only the channels are built here; the programs are built one
+     * channel at a time when the listing is first asked for them.
+     *
+     * @param file The file the snapshot was written to.
+     * @param validator Identifies the current version of the feed.
+     * @return The listing, or {@code null} if there is no snapshot, it was written for another
+     *     version of the feed or in another format, or it could not be read.
+     */
+    public static XmlTvParser.TvListing read(@NonNull File file, @NonNull String validator) {
+        if (!file.exists()) {
+            return null;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            FileChannel fileChannel = in.getChannel();
+            ByteBuffer buffer =
+                    fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            if (!validator.equals(readString(buffer))) {
+                return null;
+            }
+            String[] strings = new String[buffer.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = readString(buffer);
+            }
+            int[] listPool = new int[buffer.getInt()];
+            buffer.asIntBuffer().get(listPool);
+            buffer.position(buffer.position() + listPool.length * 4);
+
+            int channelCount = buffer.getInt();
+            List<Channel> channels = new ArrayList<>(channelCount);
+            for (int i = 0; i < channelCount; i++) {
+                Channel.Builder builder =
+                        new Channel.Builder()
+                                .setOriginalNetworkId(buffer.getLong())
+                                .setTransportStreamId(buffer.getInt())
+                                .setServiceId(buffer.getInt())
+                                .setAppLinkColor(buffer.getInt())
+                                .setDisplayName(get(strings, buffer.getInt()))
+                                .setDisplayNumber(get(strings, buffer.getInt()))
+                                .setChannelLogo(get(strings, buffer.getInt()))
+                                .setAppLinkText(get(strings, buffer.getInt()))
+                                .setAppLinkIconUri(get(strings, buffer.getInt()))
+                                .setAppLinkPosterArtUri(get(strings, buffer.getInt()))
+                                .setAppLinkIntentUri(get(strings, buffer.getInt()));
+                String internalProviderData = get(strings, buffer.getInt());
+                if (internalProviderData != null) {
+                    builder.setInternalProviderData(internalProviderData.getBytes(UTF_8));
+                }
+                channels.add(builder.build());
+            }
+
+            int programCount = buffer.getInt();
+            long[] startTimes = new long[programCount];
+            long[] endTimes = new long[programCount];
+            long[] channelIds = new long[programCount];
+            buffer.asLongBuffer().get(startTimes);
+            buffer.position(buffer.position() + programCount * 8);
+            buffer.asLongBuffer().get(endTimes);
+            buffer.position(buffer.position() + programCount * 8);
+            buffer.asLongBuffer().get(channelIds);
+            buffer.position(buffer.position() + programCount * 8);
+            SnapshotPrograms programs =
+                    new SnapshotPrograms(
+                            buffer, strings, listPool, startTimes, endTimes, channelIds);
+            return new XmlTvParser.TvListing(channels, programs);
+        } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException e) {
+            Log.w(TAG, "Failed to read " + file, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error closing " + file, e);
+                }
+            }
+        }
+    }
+
+    /** Builds the programs of a snapshot from its buffer when they are requested. */
+    private static class SnapshotPrograms implements XmlTvParser.ProgramSource {
+        private final ByteBuffer mBuffer;
+        // The position of the string indices and lists of the first program in the buffer.
+        private final int mPosition;
+        private final String[] mStrings;
+        private final int[] mListPool;
+        private final long[] mStartTimes;
+        private final long[] mEndTimes;
+        private final long[] mChannelIds;
+        private final HashMap<Long, List<Integer>> mIndices = new HashMap<>();
+
+        private SnapshotPrograms(
+                ByteBuffer buffer,
+                String[] strings,
+                int[] listPool,
+                long[] startTimes,
+                long[] endTimes,
+                long[] channelIds) {
+            mBuffer = buffer;
+            mPosition = buffer.position();
+            mStrings = strings;
+            mListPool = listPool;
+            mStartTimes = startTimes;
+            mEndTimes = endTimes;
+            mChannelIds = channelIds;
+            for (int i = 0; i < channelIds.length; i++) {
+                // Check the references up front, so that a damaged snapshot isn't returned.
+                int offset = getOffset(i);
+                // The title, description, poster art and internal provider data.
+                for (int j = 0; j < 4; j++) {
+                    checkString(buffer.getInt(offset + j * 4));
+                }
+                checkList(buffer.getInt(offset + 16), buffer.getInt(offset + 20));
+                checkList(buffer.getInt(offset + 24), buffer.getInt(offset + 28));
+
+                List<Integer> indices = mIndices.get(channelIds[i]);
+                if (indices == null) {
+                    indices = new ArrayList<>();
+                    mIndices.put(channelIds[i], indices);
+                }
+                indices.add(i);
+            }
+        }
+
+        @Override
+        public List<Program> getPrograms(long originalNetworkId) {
+            List<Integer> indices = mIndices.get(originalNetworkId);
+            List<Program> programs = new ArrayList<>(indices == null ? 0 : indices.size());
+            if (indices != null) {
+                for (int index : indices) {
+                    programs.add(readProgram(index));
+                }
+            }
+            return programs;
+        }
+
+        @Override
+        public List<Program> getAllPrograms() {
+            List<Program> programs = new ArrayList<>(mChannelIds.length);
+            for (int i = 0; i < mChannelIds.length; i++) {
+                programs.add(readProgram(i));
+            }
+            return programs;
+        }
+
+        @Override
+        public int getProgramCount() {
+            return mChannelIds.length;
+        }
+
+        private Program readProgram(int index) {
+            int offset = getOffset(index);
+            Program.Builder builder =
+                    new Program.Builder()
+                            .setStartTimeUtcMillis(mStartTimes[index])
+                            .setEndTimeUtcMillis(mEndTimes[index])
+                            .setChannelId(mChannelIds[index])
+                            .setTitle(get(mStrings, mBuffer.getInt(offset)))
+                            .setDescription(get(mStrings, mBuffer.getInt(offset + 4)))
+                            .setPosterArtUri(get(mStrings, mBuffer.getInt(offset + 8)));
+            String internalProviderData = get(mStrings, mBuffer.getInt(offset + 12));
+            if (internalProviderData != null) {
+                builder.setInternalProviderData(internalProviderData.getBytes(UTF_8));
+            }
+            String[] genres = getList(mBuffer.getInt(offset + 16), mBuffer.getInt(offset + 20));
+            if (genres != null) {
+                builder.setCanonicalGenres(genres);
+            }
+            String[] ratings = getList(mBuffer.getInt(offset + 24), mBuffer.getInt(offset + 28));
+            if (ratings != null) {
+                TvContentRating[] contentRatings = new TvContentRating[ratings.length];
+                for (int i = 0; i < ratings.length; i++) {
+                    contentRatings[i] = TvContentRating.unflattenFromString(ratings[i]);
+                }
+                builder.setContentRatings(contentRatings);
+            }
+            return builder.build();
+        }
+
+        private int getOffset(int index) {
+            return mPosition + index * PROGRAM_INT_COUNT * 4;
+        }
+
+        private String[] getList(int offset, int count) {
+            if (count < 0) {
+                return null;
+            }
+            String[] list = new String[count];
+            for (int i = 0; i < count; i++) {
+                list[i] = mStrings[mListPool[offset + i]];
+            }
+            return list;
+        }
+
+        private void checkString(int index) {
+            if (index < NO_STRING || index >= mStrings.length) {
+                throw new IndexOutOfBoundsException("Invalid string " + index);
+            }
+        }
+
+        private void checkList(int offset, int count) {
+            if (count >= 0 && (offset < 0 || offset + count > mListPool.length)) {
+                throw new IndexOutOfBoundsException("Invalid list " + offset + "+" + count);
+            }
+            for (int i = 0; i < count; i++) {
+                checkString(mListPool[offset + i]);
+            }
+        }
+    }
+
+    private static String toString(byte[] bytes) {
+        return bytes == null ? null : new String(bytes, UTF_8);
+    }
+
+    private static String get(String[] strings, int index) {
+        return index == NO_STRING ? null : strings[index];
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /** Assigns each distinct string an index, in the order they are first added. */
+    private static class StringTable {
+        private final List<String> mStrings = new ArrayList<>();
+        private final HashMap<String, Integer> mIndices = new HashMap<>();
+
+        private int add(String string) {
+            if (string == null) {
+                return NO_STRING;
+            }
+            Integer index = mIndices.get(string);
+            if (index == null) {
+                index = mStrings.size();
+                mStrings.add(string);
+                mIndices.put(string, index);
+            }
+            return index;
+        }
+    }
+}
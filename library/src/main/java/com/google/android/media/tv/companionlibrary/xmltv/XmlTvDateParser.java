@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary.xmltv;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
+/**
+ * Parses XMLTV timestamps of the form {@code yyyyMMddHHmmss Z}, e.g. {@code 20150817004502
+ * +0000}, into milliseconds since the epoch.
+ *
+ * <p>Timestamps in exactly this layout are read straight from the characters of the attribute
+ * value, without allocating anything. Anything else, e.g. out of range fields which {@link
+ * SimpleDateFormat} would leniently roll over, falls back to a per-thread {@link
+ * SimpleDateFormat} so that the results are the same as before. This class is thread-safe.
+ */
+final class XmlTvDateParser {
+    private static final String DATE_FORMAT = "yyyyMMddHHmmss Z";
+    private static final int TIMESTAMP_LENGTH = 20;
+    private static final int ZONE_SIGN_INDEX = 15;
+
+    private static final long MILLIS_PER_SECOND = 1000L;
+    private static final long MILLIS_PER_MINUTE = 60 * MILLIS_PER_SECOND;
+    private static final long MILLIS_PER_HOUR = 60 * MILLIS_PER_MINUTE;
+    private static final long MILLIS_PER_DAY = 24 * MILLIS_PER_HOUR;
+
+    private static final ThreadLocal<SimpleDateFormat> FALLBACK_DATE_FORMAT =
+            new ThreadLocal<SimpleDateFormat>() {
+                @Override
+                protected SimpleDateFormat initialValue() {
+                    return new SimpleDateFormat(DATE_FORMAT, Locale.US);
+                }
+            };
+
+    private XmlTvDateParser() {}
+
+    /**
+     * Parses a timestamp.
+     *
+     * @param value The value of a {@code start} or {@code stop} attribute.
+     * @return The time in milliseconds since the epoch.
+     * @throws ParseException If the value is not a valid timestamp.
+     */
+    static long parse(String value) throws ParseException {
+        long timeMs = parseFixedLayout(value);
+        if (timeMs != Long.MIN_VALUE) {
+            return timeMs;
+        }
+        return FALLBACK_DATE_FORMAT.get().parse(value).getTime();
+    }
+
+    /**
+     * Parses a timestamp in exactly the {@code yyyyMMddHHmmss Z} layout.
+     *
+     * @return The time in milliseconds since the epoch, or {@link Long#MIN_VALUE} if the value
+     *     does not have this layout or any field is out of range.
+     */
+    private static long parseFixedLayout(String value) {
+        if (value == null || value.length() != TIMESTAMP_LENGTH || value.charAt(14) != ' ') {
+            return Long.MIN_VALUE;
+        }
+        int year = digits(value, 0, 4);
+        int month = digits(value, 4, 2);
+        int day = digits(value, 6, 2);
+        int hour = digits(value, 8, 2);
+        int minute = digits(value, 10, 2);
+        int second = digits(value, 12, 2);
+        int zoneHours = digits(value, ZONE_SIGN_INDEX + 1, 2);
+        int zoneMinutes = digits(value, ZONE_SIGN_INDEX + 3, 2);
+        char zoneSign = value.charAt(ZONE_SIGN_INDEX);
+        if ((year | month | day | hour | minute | second | zoneHours | zoneMinutes) < 0
+                || (zoneSign != '+' && zoneSign != '-')
+                || year < 1900
+                || month < 1
+                || month > 12
+                || day < 1
+                || day > daysInMonth(year, month)
+                || hour > 23
+                || minute > 59
+                || second > 59
+                || zoneHours > 23
+                || zoneMinutes > 59) {
+            return Long.MIN_VALUE;
+        }
+        long zoneOffsetMs = zoneHours * MILLIS_PER_HOUR + zoneMinutes * MILLIS_PER_MINUTE;
+        if (zoneSign == '-') {
+            zoneOffsetMs = -zoneOffsetMs;
+        }
+        return daysSinceEpoch(year, month, day) * MILLIS_PER_DAY
+                + hour * MILLIS_PER_HOUR
+                + minute * MILLIS_PER_MINUTE
+                + second * MILLIS_PER_SECOND
+                - zoneOffsetMs;
+    }
+
+    /** Returns the decimal value of {@code count} digits at {@code start}, or -1 if not digits. */
+    private static int digits(String value, int start, int count) {
+        int result = 0;
+        for (int i = start; i < start + count; i++) {
+            int digit = value.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                boolean leapYear = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+                return leapYear ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    /** Returns the number of days between 1970-01-01 and the given date of the Gregorian year. */
+    private static long daysSinceEpoch(int year, int month, int day) {
+        // Count years from March so that the leap day is the last day of the year.
+        long y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        // 719468 is the number of days between 0000-03-01 and 1970-01-01.
+        return era * 146097 + dayOfEra - 719468;
+    }
+}
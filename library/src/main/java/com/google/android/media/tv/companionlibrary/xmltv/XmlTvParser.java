@@ -30,12 +30,10 @@ import com.google.android.media.tv.companionlibrary.utils.TvContractUtils;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Locale;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
@@ -132,8 +130,6 @@ public class XmlTvParser {
 
     private static final String ANDROID_TV_RATING = "com.android.tv";
 
-    private static final SimpleDateFormat DATE_FORMAT =
-            new SimpleDateFormat("yyyyMMddHHmmss Z", Locale.US);
     private static final String TAG = "XmlTvParser";
 
     private XmlTvParser() {}
@@ -170,34 +166,74 @@ public class XmlTvParser {
      */
     private static TvListing parse(@NonNull InputStream inputStream, @NonNull XmlPullParser parser)
             throws XmlTvParseException {
+        final List<Channel> channels = new ArrayList<>();
+        final List<Program> programs = new ArrayList<>();
         try {
-            parser.setInput(inputStream, null);
-            int eventType = parser.next();
-            if (eventType != XmlPullParser.START_TAG || !TAG_TV.equals(parser.getName())) {
-                throw new XmlTvParseException("Input stream does not contain an XMLTV description");
-            }
-            return parseTvListings(parser);
+            parse(
+                    inputStream,
+                    parser,
+                    new Listener() {
+                        @Override
+                        public void onChannel(Channel channel) {
+                            channels.add(channel);
+                        }
+
+                        @Override
+                        public void onProgram(Program program) {
+                            programs.add(program);
+                        }
+                    });
+            return new TvListing(channels, programs);
         } catch (XmlPullParserException | IOException | ParseException e) {
             Log.w(TAG, e.getMessage());
         }
         return null;
     }
 
-    private static TvListing parseTvListings(XmlPullParser parser)
+    /**
+     * Reads an InputStream and hands each channel and program to the given {@link Listener} as
+     * soon as its element has been closed. Unlike {@link #parse(InputStream)}, nothing is retained
+     * by the parser, so the memory needed does not grow with the size of the feed.
+     *
+     * @param inputStream The InputStream of your data
+     * @param listener The listener which receives the parsed channels and programs
+     * @throws XmlTvParseException If the data is not a valid XMLTV document
+     */
+    public static void parse(@NonNull InputStream inputStream, @NonNull Listener listener)
+            throws XmlTvParseException {
+        try {
+            parse(inputStream, Xml.newPullParser(), listener);
+        } catch (XmlPullParserException | IOException | ParseException e) {
+            Log.w(TAG, e.getMessage());
+            throw new XmlTvParseException(e.getMessage());
+        }
+    }
+
+    private static void parse(
+            @NonNull InputStream inputStream,
+            @NonNull XmlPullParser parser,
+            @NonNull Listener listener)
+            throws XmlTvParseException, IOException, XmlPullParserException, ParseException {
+        parser.setInput(inputStream, null);
+        int eventType = parser.next();
+        if (eventType != XmlPullParser.START_TAG || !TAG_TV.equals(parser.getName())) {
+            throw new XmlTvParseException("Input stream does not contain an XMLTV description");
+        }
+        parseTvListings(parser, listener);
+    }
+
+    private static void parseTvListings(XmlPullParser parser, Listener listener)
             throws IOException, XmlPullParserException, ParseException {
-        List<Channel> channels = new ArrayList<>();
-        List<Program> programs = new ArrayList<>();
         while (parser.next() != XmlPullParser.END_DOCUMENT) {
             if (parser.getEventType() == XmlPullParser.START_TAG
                     && TAG_CHANNEL.equalsIgnoreCase(parser.getName())) {
-                channels.add(parseChannel(parser));
+                listener.onChannel(parseChannel(parser));
             }
             if (parser.getEventType() == XmlPullParser.START_TAG
                     && TAG_PROGRAM.equalsIgnoreCase(parser.getName())) {
-                programs.add(parseProgram(parser));
+                listener.onProgram(parseProgram(parser));
             }
         }
-        return new TvListing(channels, programs);
     }
 
     private static Channel parseChannel(XmlPullParser parser)
@@ -284,9 +320,9 @@ public class XmlTvParser {
             if (ATTR_CHANNEL.equalsIgnoreCase(attr)) {
                 channelId = value;
             } else if (ATTR_START.equalsIgnoreCase(attr)) {
-                startTimeUtcMillis = DATE_FORMAT.parse(value).getTime();
+                startTimeUtcMillis = XmlTvDateParser.parse(value);
             } else if (ATTR_STOP.equalsIgnoreCase(attr)) {
-                endTimeUtcMillis = DATE_FORMAT.parse(value).getTime();
+                endTimeUtcMillis = XmlTvDateParser.parse(value);
             } else if (ATTR_VIDEO_SRC.equalsIgnoreCase(attr)) {
                 videoSrc = value;
             } else if (ATTR_VIDEO_TYPE.equalsIgnoreCase(attr)) {
@@ -448,9 +484,9 @@ public class XmlTvParser {
             String attr = parser.getAttributeName(i);
             String value = parser.getAttributeValue(i);
             if (ATTR_AD_START.equalsIgnoreCase(attr)) {
-                startTimeUtcMillis = DATE_FORMAT.parse(value).getTime();
+                startTimeUtcMillis = XmlTvDateParser.parse(value);
             } else if (ATTR_AD_STOP.equalsIgnoreCase(attr)) {
-                stopTimeUtcMillis = DATE_FORMAT.parse(value).getTime();
+                stopTimeUtcMillis = XmlTvDateParser.parse(value);
             } else if (ATTR_AD_TYPE.equalsIgnoreCase(attr)) {
                 if (VALUE_ADVERTISEMENT_TYPE_VAST.equalsIgnoreCase(attr)) {
                     type = Advertisement.TYPE_VAST;
@@ -480,32 +516,73 @@ public class XmlTvParser {
         return builder.setType(type).setRequestUrl(requestUrl).build();
     }
 
+    /**
+     * Receives channels and programs from {@link #parse(InputStream, Listener)} in document order.
+     * Each callback is made as soon as the corresponding element has been closed.
+     */
+    public interface Listener {
+        /**
+         * Called when a {@code <channel>} element has been parsed.
+         *
+         * @param channel The parsed channel.
+         */
+        void onChannel(Channel channel);
+
+        /**
+         * Called when a {@code <programme>} element has been parsed. The channel ID of the program
+         * is the original network ID of the channel it belongs to.
+         *
+         * @param program The parsed program.
+         */
+        void onProgram(Program program);
+    }
+
     /**
      * Contains a list of channels and corresponding programs that have been generated from parsing
      * an XML TV file.
      */
     public static class TvListing {
-        private List<Channel> mChannels;
+        private final List<Channel> mChannels;
+        private final ProgramSource mProgramSource;
+        // The first channel of each original network ID, whose row ID its programs are given.
+        private final HashMap<Long, Channel> mChannelMap = new HashMap<>();
+        private final HashMap<Long, ChannelPrograms> mProgramMap = new HashMap<>();
         private List<Program> mPrograms;
-        private HashMap<Long, List<Program>> mProgramMap;
 
-        private TvListing(List<Channel> channels, List<Program> programs) {
-            this.mChannels = channels;
+        TvListing(List<Channel> channels, List<Program> programs) {
+            this(channels, (ProgramSource) null);
             this.mPrograms = new ArrayList<>(programs);
+            // Group the programs by the original network ID of their channel in a single pass.
+            HashMap<Long, List<Program>> programsByNetworkId = new HashMap<>();
+            for (Program program : programs) {
+                List<Program> programsForNetworkId =
+                        programsByNetworkId.get(program.getChannelId());
+                if (programsForNetworkId == null) {
+                    programsForNetworkId = new ArrayList<>();
+                    programsByNetworkId.put(program.getChannelId(), programsForNetworkId);
+                }
+                programsForNetworkId.add(program);
+            }
             // Place programs into the epg map
-            mProgramMap = new HashMap<>();
+            for (Channel channel : mChannelMap.values()) {
+                mProgramMap.put(
+                        channel.getOriginalNetworkId(),
+                        createChannelPrograms(
+                                channel, programsByNetworkId.get(channel.getOriginalNetworkId())));
+            }
+        }
+
+        /**
+         * Creates a listing whose programs are only read from the source when they are first
+         * requested, one channel at a time.
+         */
+        TvListing(List<Channel> channels, ProgramSource programSource) {
+            this.mChannels = channels;
+            this.mProgramSource = programSource;
             for (Channel channel : channels) {
-                List<Program> programsForChannel = new ArrayList<>();
-                Iterator<Program> programIterator = programs.iterator();
-                while (programIterator.hasNext()) {
-                    Program program = programIterator.next();
-                    if (program.getChannelId() == channel.getOriginalNetworkId()) {
-                        programsForChannel.add(
-                                new Program.Builder(program).setChannelId(channel.getId()).build());
-                        programIterator.remove();
-                    }
+                if (!mChannelMap.containsKey(channel.getOriginalNetworkId())) {
+                    mChannelMap.put(channel.getOriginalNetworkId(), channel);
                 }
-                mProgramMap.put(channel.getOriginalNetworkId(), programsForChannel);
             }
         }
 
@@ -515,18 +592,146 @@ public class XmlTvParser {
         }
 
         /** @return All programs found by the XmlTvParser. */
-        public List<Program> getAllPrograms() {
+        public synchronized List<Program> getAllPrograms() {
+            if (mPrograms == null) {
+                mPrograms = mProgramSource.getAllPrograms();
+            }
             return mPrograms;
         }
 
+        /** @return The number of programs found by the XmlTvParser. */
+        public synchronized int getProgramCount() {
+            return mPrograms != null ? mPrograms.size() : mProgramSource.getProgramCount();
+        }
+
         /**
          * Returns a list of programs found by the XmlTvParser for a given channel.
          *
          * @param channel The channel to obtain programs for.
-         * @return A list of programs that belong to that channel.
+         * @return A list of programs that belong to that channel, sorted by start time.
          */
         public List<Program> getPrograms(Channel channel) {
-            return mProgramMap.get(channel.getOriginalNetworkId());
+            ChannelPrograms channelPrograms = getChannelPrograms(channel);
+            return channelPrograms == null ? null : channelPrograms.mPrograms;
+        }
+
+        /**
+         * Returns the programs found by the XmlTvParser for a given channel which overlap the given
+         * time range. The range is found by binary search, so this is cheap even for channels with
+         * many programs.
+         *
+         * <p>A program which ends exactly at {@code startMs} doesn't overlap the range and is not
+         * returned, while one which starts exactly at {@code endMs} is.
+         *
+         * @param channel The channel to obtain programs for.
+         * @param startMs The start of the range in milliseconds since the epoch.
+         * @param endMs The end of the range in milliseconds since the epoch.
+         * @return A list of programs that belong to that channel within the range, sorted by start
+         *     time. The list is empty if the channel has no programs in the range.
+         */
+        public List<Program> getPrograms(Channel channel, long startMs, long endMs) {
+            ChannelPrograms channelPrograms = getChannelPrograms(channel);
+            if (channelPrograms == null || startMs > endMs) {
+                return new ArrayList<>();
+            }
+            return channelPrograms.getPrograms(startMs, endMs);
+        }
+
+        private synchronized ChannelPrograms getChannelPrograms(Channel channel) {
+            long networkId = channel.getOriginalNetworkId();
+            ChannelPrograms channelPrograms = mProgramMap.get(networkId);
+            if (channelPrograms == null && mProgramSource != null) {
+                Channel listingChannel = mChannelMap.get(networkId);
+                if (listingChannel != null) {
+                    channelPrograms =
+                            createChannelPrograms(
+                                    listingChannel, mProgramSource.getPrograms(networkId));
+                    mProgramMap.put(networkId, channelPrograms);
+                }
+            }
+            return channelPrograms;
+        }
+
+        private static ChannelPrograms createChannelPrograms(
+                Channel channel, List<Program> programsForNetworkId) {
+            List<Program> programsForChannel =
+                    new ArrayList<>(programsForNetworkId == null ? 0 : programsForNetworkId.size());
+            if (programsForNetworkId != null) {
+                for (Program program : programsForNetworkId) {
+                    programsForChannel.add(
+                            new Program.Builder(program).setChannelId(channel.getId()).build());
+                }
+            }
+            return new ChannelPrograms(programsForChannel);
+        }
+    }
+
+    /** Reads the programs of a {@link TvListing} when they are first needed. */
+    interface ProgramSource {
+        /**
+         * @return The programs whose channel ID is the given original network ID, in the order
+         *     they were found.
+         */
+        List<Program> getPrograms(long originalNetworkId);
+
+        /** @return All programs of the listing. */
+        List<Program> getAllPrograms();
+
+        /** @return The number of programs of the listing. */
+        int getProgramCount();
+    }
+
+    /** Programs of a single channel sorted by start time, which can be queried by time range. */
+    private static class ChannelPrograms {
+        private final List<Program> mPrograms;
+        private final long[] mStartTimes;
+        // The latest end time of any program up to and including the same index. This is
+        // non-decreasing even if programs overlap, so it can be binary searched.
+        private final long[] mMaxEndTimes;
+
+        private ChannelPrograms(List<Program> programs) {
+            Collections.sort(programs);
+            mPrograms = programs;
+            mStartTimes = new long[programs.size()];
+            mMaxEndTimes = new long[programs.size()];
+            long maxEndTime = Long.MIN_VALUE;
+            for (int i = 0; i < programs.size(); i++) {
+                Program program = programs.get(i);
+                maxEndTime = Math.max(maxEndTime, program.getEndTimeUtcMillis());
+                mStartTimes[i] = program.getStartTimeUtcMillis();
+                mMaxEndTimes[i] = maxEndTime;
+            }
+        }
+
+        private List<Program> getPrograms(long startMs, long endMs) {
+            int from = firstIndexOf(mMaxEndTimes, startMs, true);
+            int to = firstIndexOf(mStartTimes, endMs, true);
+            List<Program> programs = new ArrayList<>(Math.max(0, to - from));
+            for (int i = from; i < to; i++) {
+                Program program = mPrograms.get(i);
+                if (program.getEndTimeUtcMillis() > startMs) {
+                    programs.add(program);
+                }
+            }
+            return programs;
+        }
+
+        /**
+         * Returns the index of the first value in a sorted array which is greater than, or if
+         * {@code strict} is false greater than or equal to, the key.
+         */
+        private static int firstIndexOf(long[] sortedValues, long key, boolean strict) {
+            int low = 0;
+            int high = sortedValues.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (sortedValues[mid] > key || (!strict && sortedValues[mid] == key)) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            return low;
         }
     }
 
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** Tests that {@link AdControllerPool} reuses a bounded number of idle controllers. */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class AdControllerPoolTest {
+    private final List<AdController> mCreatedControllers = new ArrayList<>();
+    private AdControllerPool mPool;
+
+    @Before
+    public void setUp() {
+        mPool =
+                new AdControllerPool(
+                        new AdControllerPool.Factory() {
+                            @Override
+                            public AdController create() {
+                                AdController controller = mock(AdController.class);
+                                mCreatedControllers.add(controller);
+                                return controller;
+                            }
+                        },
+                        2);
+    }
+
+    @Test
+    public void testReusesRecycledController() {
+        AdController controller = mPool.acquire();
+        mPool.recycle(controller);
+        verify(controller).reset();
+        verify(controller, never()).release();
+
+        assertSame(controller, mPool.acquire());
+        assertNotSame(controller, mPool.acquire());
+        assertEquals(2, mCreatedControllers.size());
+    }
+
+    @Test
+    public void testReleasesControllersBeyondMaxIdleCount() {
+        AdController controller1 = mPool.acquire();
+        AdController controller2 = mPool.acquire();
+        AdController controller3 = mPool.acquire();
+        mPool.recycle(controller1);
+        mPool.recycle(controller2);
+        mPool.recycle(controller3);
+
+        verify(controller3).release();
+        verify(controller3, never()).reset();
+        verify(controller1, never()).release();
+        verify(controller2, never()).release();
+    }
+
+    @Test
+    public void testReleasesIdleControllers() {
+        AdController idleController = mPool.acquire();
+        AdController acquiredController = mPool.acquire();
+        mPool.recycle(idleController);
+        mPool.release();
+
+        verify(idleController).release();
+        verify(acquiredController, never()).release();
+        // The released controller is not handed out again.
+        assertNotSame(idleController, mPool.acquire());
+        assertEquals(3, mCreatedControllers.size());
+    }
+}
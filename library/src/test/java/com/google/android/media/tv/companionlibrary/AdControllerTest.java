@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary;
+
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import com.google.ads.interactivemedia.v3.api.AdDisplayContainer;
+import com.google.ads.interactivemedia.v3.api.AdErrorEvent;
+import com.google.ads.interactivemedia.v3.api.AdsLoader;
+import com.google.ads.interactivemedia.v3.api.AdsManager;
+import com.google.ads.interactivemedia.v3.api.AdsManagerLoadedEvent;
+import com.google.ads.interactivemedia.v3.api.AdsRequest;
+import com.google.ads.interactivemedia.v3.api.ImaSdkFactory;
+import com.google.ads.interactivemedia.v3.api.player.VideoAdPlayer;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+/**
+ * Tests that a reset {@link AdController} ignores the events of its earlier ads requests and stops
+ * listening to the player of its ads.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class AdControllerTest {
+    private static final String AD_TAG_URL = "http://example.com/vast.xml";
+    private static final String AD_VIDEO_URL = "http://example.com/ad.m3u8";
+
+    private AdsRequest mAdsRequest;
+    private AdDisplayContainer mAdDisplayContainer;
+    private AdController.AdControllerCallback mCallback;
+    private AdController mController;
+
+    @Before
+    public void setUp() {
+        Context context = RuntimeEnvironment.application;
+        ImaSdkFactory sdkFactory = mock(ImaSdkFactory.class);
+        mAdsRequest = mock(AdsRequest.class);
+        when(sdkFactory.createAdsLoader(context)).thenReturn(mock(AdsLoader.class));
+        mAdDisplayContainer = mock(AdDisplayContainer.class);
+        when(sdkFactory.createAdDisplayContainer()).thenReturn(mAdDisplayContainer);
+        when(sdkFactory.createAdsRequest()).thenReturn(mAdsRequest);
+        mCallback = mock(AdController.AdControllerCallback.class);
+        mController = new AdController(context, sdkFactory);
+    }
+
+    @Test
+    public void testIgnoresAdsLoadedBeforeReset() {
+        mController.prefetchAds(AD_TAG_URL);
+        Object staleRequestContext = getLastRequestContext(1);
+        mController.reset();
+        mController.prefetchAds(AD_TAG_URL);
+        Object requestContext = getLastRequestContext(2);
+
+        AdsManager staleAdsManager = mock(AdsManager.class);
+        mController.onAdsManagerLoaded(createLoadedEvent(staleRequestContext, staleAdsManager));
+        verify(staleAdsManager).destroy();
+        verify(staleAdsManager, never()).init();
+
+        AdsManager adsManager = mock(AdsManager.class);
+        mController.onAdsManagerLoaded(createLoadedEvent(requestContext, adsManager));
+        verify(adsManager).init();
+        verify(adsManager, never()).destroy();
+    }
+
+    @Test
+    public void testIgnoresAdErrorBeforeReset() {
+        mController.prefetchAds(AD_TAG_URL);
+        Object staleRequestContext = getLastRequestContext(1);
+        mController.reset();
+        mController.playAds(mCallback);
+
+        AdErrorEvent event = mock(AdErrorEvent.class);
+        when(event.getUserRequestContext()).thenReturn(staleRequestContext);
+        mController.onAdError(event);
+        assertFalse(mController.hasFailed());
+        verifyZeroInteractions(mCallback);
+    }
+
+    @Test
+    public void testUnregistersFromTvPlayerOnReset() {
+        TvPlayer tvPlayer = mock(TvPlayer.class);
+        when(mCallback.onAdReadyToPlay(AD_VIDEO_URL)).thenReturn(tvPlayer);
+        mController.requestAds(AD_TAG_URL, mCallback);
+        ArgumentCaptor<VideoAdPlayer> playerCaptor = ArgumentCaptor.forClass(VideoAdPlayer.class);
+        verify(mAdDisplayContainer).setPlayer(playerCaptor.capture());
+        VideoAdPlayer videoAdPlayer = playerCaptor.getValue();
+
+        // Each ad of the pod plays on the same TvPlayer, which is listened to only once.
+        videoAdPlayer.loadAd(AD_VIDEO_URL);
+        videoAdPlayer.playAd();
+        videoAdPlayer.loadAd(AD_VIDEO_URL);
+        videoAdPlayer.playAd();
+        ArgumentCaptor<TvPlayer.Callback> callbackCaptor =
+                ArgumentCaptor.forClass(TvPlayer.Callback.class);
+        verify(tvPlayer).registerCallback(callbackCaptor.capture());
+        verify(tvPlayer, times(2)).play();
+
+        mController.reset();
+        verify(tvPlayer).unregisterCallback(callbackCaptor.getValue());
+    }
+
+    /** Returns the request context of the last of the given number of ads requests. */
+    private Object getLastRequestContext(int requestCount) {
+        ArgumentCaptor<Object> captor = ArgumentCaptor.forClass(Object.class);
+        verify(mAdsRequest, times(requestCount)).setUserRequestContext(captor.capture());
+        List<Object> requestContexts = captor.getAllValues();
+        return requestContexts.get(requestContexts.size() - 1);
+    }
+
+    private static AdsManagerLoadedEvent createLoadedEvent(
+            Object requestContext, AdsManager adsManager) {
+        AdsManagerLoadedEvent event = mock(AdsManagerLoadedEvent.class);
+        when(event.getUserRequestContext()).thenReturn(requestContext);
+        when(event.getAdsManager()).thenReturn(adsManager);
+        return event;
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.media.tv.TvInputManager;
+import android.os.Message;
+import com.google.ads.interactivemedia.v3.api.AdDisplayContainer;
+import com.google.ads.interactivemedia.v3.api.AdError;
+import com.google.ads.interactivemedia.v3.api.AdErrorEvent;
+import com.google.ads.interactivemedia.v3.api.AdEvent;
+import com.google.ads.interactivemedia.v3.api.AdsLoader;
+import com.google.ads.interactivemedia.v3.api.AdsManager;
+import com.google.ads.interactivemedia.v3.api.AdsManagerLoadedEvent;
+import com.google.ads.interactivemedia.v3.api.AdsRequest;
+import com.google.ads.interactivemedia.v3.api.ImaSdkFactory;
+import com.google.android.media.tv.companionlibrary.ads.AdCache;
+import com.google.android.media.tv.companionlibrary.model.Advertisement;
+import com.google.android.media.tv.companionlibrary.model.InternalProviderData;
+import com.google.android.media.tv.companionlibrary.model.Program;
+import com.google.android.media.tv.companionlibrary.model.RecordedProgram;
+import com.google.android.media.tv.companionlibrary.utils.FakeTvProvider;
+import com.google.android.media.tv.companionlibrary.utils.TestHttpServer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+/** Tests that {@link BaseTvInputService.Session} prefetches the next ad of a program. */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class BaseTvInputServiceTest {
+    private static final String VAST = "<VAST version=\"3.0\"><Ad id=\"1\"></Ad></VAST>";
+    private static final long TIME_TIL_AD_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final long AD_DURATION_MS = TimeUnit.SECONDS.toMillis(30);
+    private static final long PREFETCH_LEAD_TIME_MS = TimeUnit.SECONDS.toMillis(10);
+    // The ads are scheduled from the wall clock when the program starts playing, so check a bit
+    // before and after they are due.
+    private static final long MARGIN_MS = TimeUnit.SECONDS.toMillis(1);
+
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private final List<AdsRequest> mAdsRequests = new ArrayList<>();
+    private final List<AdController> mAdControllers = new ArrayList<>();
+    private TestHttpServer mServer;
+    private TestSession mSession;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer =
+                new TestHttpServer() {
+                    @Override
+                    protected String serve(String path, Map<String, String> headers) {
+                        return createResponse("200 OK", VAST);
+                    }
+                };
+        mServer.start();
+        FakeTvProvider.register();
+        // Starts the thread which the sessions read the EPG on.
+        Robolectric.buildService(TestTvInputService.class).create();
+
+        final TvInputManager tvInputManager = mock(TvInputManager.class);
+        final Context context =
+                new ContextWrapper(RuntimeEnvironment.application) {
+                    @Override
+                    public Object getSystemService(String name) {
+                        return Context.TV_INPUT_SERVICE.equals(name)
+                                ? tvInputManager
+                                : super.getSystemService(name);
+                    }
+                };
+        final ImaSdkFactory sdkFactory = mock(ImaSdkFactory.class);
+        when(sdkFactory.createAdsLoader(context)).thenReturn(mock(AdsLoader.class));
+        when(sdkFactory.createAdDisplayContainer()).thenReturn(mock(AdDisplayContainer.class));
+        when(sdkFactory.createAdsRequest())
+                .thenAnswer(
+                        new Answer<AdsRequest>() {
+                            @Override
+                            public AdsRequest answer(InvocationOnMock invocation) {
+                                AdsRequest request = mock(AdsRequest.class);
+                                mAdsRequests.add(request);
+                                return request;
+                            }
+                        });
+        AdControllerPool adControllerPool =
+                new AdControllerPool(
+                        new AdControllerPool.Factory() {
+                            @Override
+                            public AdController create() {
+                                AdController controller = new AdController(context, sdkFactory);
+                                mAdControllers.add(controller);
+                                return controller;
+                            }
+                        },
+                        2);
+        mSession = new TestSession(context, adControllerPool);
+        mSession.setAdPrefetchLeadTime(PREFETCH_LEAD_TIME_MS);
+        mSession.setAdCache(new AdCache(mTemporaryFolder.newFolder("ads"), 60000, 1024, 1024));
+
+        long nowMs = System.currentTimeMillis();
+        InternalProviderData data = new InternalProviderData();
+        data.setAds(
+                Collections.singletonList(
+                        new Advertisement.Builder()
+                                .setStartTimeUtcMillis(nowMs + TIME_TIL_AD_MS)
+                                .setStopTimeUtcMillis(nowMs + TIME_TIL_AD_MS + AD_DURATION_MS)
+                                .setRequestUrl(mServer.getUrl("/vast.xml"))
+                                .build()));
+        Program program =
+                new Program.Builder()
+                        .setTitle("Program")
+                        .setStartTimeUtcMillis(nowMs - TimeUnit.MINUTES.toMillis(10))
+                        .setEndTimeUtcMillis(nowMs + TimeUnit.MINUTES.toMillis(30))
+                        .setInternalProviderData(data)
+                        .build();
+        mSession.handleMessage(
+                Message.obtain(null, BaseTvInputService.Session.MSG_PLAY_CONTENT, program));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mSession.onRelease();
+        mServer.close();
+    }
+
+    @Test
+    public void testPrefetchesAdLeadTimeBeforeItStarts() throws InterruptedException {
+        advanceBy(TIME_TIL_AD_MS - PREFETCH_LEAD_TIME_MS - MARGIN_MS);
+        assertTrue(mAdControllers.isEmpty());
+
+        advanceBy(2 * MARGIN_MS);
+        AdsRequest request = awaitAdsRequest(0);
+        verify(request).setAdsResponse(VAST);
+        assertEquals(1, mServer.getRequestCount());
+        // The prefetched ad doesn't play before it is due.
+        AdsManager adsManager = loadAds(mAdControllers.get(0), request);
+        verify(adsManager, never()).start();
+    }
+
+    @Test
+    public void testPlaysPrefetchedAd() throws InterruptedException {
+        advanceBy(TIME_TIL_AD_MS - PREFETCH_LEAD_TIME_MS + MARGIN_MS);
+        AdsRequest request = awaitAdsRequest(0);
+        AdsManager adsManager = loadAds(mAdControllers.get(0), request);
+
+        advanceBy(PREFETCH_LEAD_TIME_MS);
+        // The controller which prefetched the ad plays it, without requesting it again.
+        verify(adsManager).start();
+        assertEquals(1, mAdControllers.size());
+        assertEquals(1, mAdsRequests.size());
+    }
+
+    @Test
+    public void testRequestsAdAgainIfPrefetchFailed() throws InterruptedException {
+        advanceBy(TIME_TIL_AD_MS - PREFETCH_LEAD_TIME_MS + MARGIN_MS);
+        AdsRequest prefetchRequest = awaitAdsRequest(0);
+        AdController prefetchController = mAdControllers.get(0);
+        AdErrorEvent errorEvent = mock(AdErrorEvent.class);
+        when(errorEvent.getUserRequestContext()).thenReturn(getRequestContext(prefetchRequest));
+        when(errorEvent.getError())
+                .thenReturn(
+                        new AdError(
+                                AdError.AdErrorType.LOAD,
+                                AdError.AdErrorCode.VAST_EMPTY_RESPONSE,
+                                "No ads"));
+        prefetchController.onAdError(errorEvent);
+        assertTrue(prefetchController.hasFailed());
+
+        advanceBy(PREFETCH_LEAD_TIME_MS);
+        // The VAST response has been cached by the prefetch, so the new request is made at once.
+        assertEquals(2, mAdsRequests.size());
+        AdsRequest request = mAdsRequests.get(1);
+        assertNotSame(getRequestContext(prefetchRequest), getRequestContext(request));
+        AdController controller = mAdControllers.get(mAdControllers.size() - 1);
+        assertFalse(controller.hasFailed());
+        verify(loadAds(controller, request)).start();
+    }
+
+    private static void advanceBy(long ms) {
+        ShadowLooper.idleMainLooper(ms, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Waits for the ads request with the given index, which is made once the VAST response has
+     * been read on a background thread.
+     */
+    private AdsRequest awaitAdsRequest(int index) throws InterruptedException {
+        long timeoutMs = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (mAdsRequests.size() <= index) {
+            if (System.currentTimeMillis() > timeoutMs) {
+                fail("No ads request " + index);
+            }
+            Thread.sleep(10);
+            ShadowLooper.idleMainLooper();
+        }
+        return mAdsRequests.get(index);
+    }
+
+    private static Object getRequestContext(AdsRequest request) {
+        ArgumentCaptor<Object> captor = ArgumentCaptor.forClass(Object.class);
+        verify(request).setUserRequestContext(captor.capture());
+        return captor.getValue();
+    }
+
+    /** Reports the ads of a request as loaded to the controller which made it. */
+    private static AdsManager loadAds(AdController controller, AdsRequest request) {
+        AdsManager adsManager = mock(AdsManager.class);
+        AdsManagerLoadedEvent loadedEvent = mock(AdsManagerLoadedEvent.class);
+        when(loadedEvent.getUserRequestContext()).thenReturn(getRequestContext(request));
+        when(loadedEvent.getAdsManager()).thenReturn(adsManager);
+        controller.onAdsManagerLoaded(loadedEvent);
+        AdEvent adEvent = mock(AdEvent.class);
+        when(adEvent.getType()).thenReturn(AdEvent.AdEventType.LOADED);
+        controller.onAdEvent(adEvent);
+        return adsManager;
+    }
+
+    public static class TestTvInputService extends BaseTvInputService {
+        @Override
+        public Session onCreateSession(String inputId) {
+            return null;
+        }
+    }
+
+    private static class TestSession extends BaseTvInputService.Session {
+        private final TvPlayer mTvPlayer = mock(TvPlayer.class);
+
+        TestSession(Context context, AdControllerPool adControllerPool) {
+            super(context, "input", adControllerPool);
+        }
+
+        @Override
+        public TvPlayer getTvPlayer() {
+            return mTvPlayer;
+        }
+
+        @Override
+        public boolean onPlayProgram(Program program, long startPosMs) {
+            return true;
+        }
+
+        @Override
+        public boolean onPlayRecordedProgram(RecordedProgram recordedProgram) {
+            return true;
+        }
+
+        @Override
+        public void onPlayAdvertisement(Advertisement advertisement) {
+            // The ads are not actually played.
+        }
+
+        @Override
+        public void onSetCaptionEnabled(boolean enabled) {
+            // Captions are not supported.
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary.ads;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import com.google.android.media.tv.companionlibrary.BuildConfig;
+import com.google.android.media.tv.companionlibrary.utils.TestHttpServer;
+import java.io.File;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** Tests that {@link AdCache} serves ads locally within their time to live and size limit. */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class AdCacheTest {
+    private static final String VAST = "<VAST version=\"3.0\"><Ad id=\"1\"></Ad></VAST>";
+    private static final String EMPTY_VAST = "<VAST version=\"3.0\"></VAST>";
+
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private TestHttpServer mServer;
+    private volatile String mBody = VAST;
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        // Serves the same body for every path.
+        mServer =
+                new TestHttpServer() {
+                    @Override
+                    protected String serve(String path, Map<String, String> headers) {
+                        return createResponse("200 OK", mBody);
+                    }
+                };
+        mServer.start();
+        mDirectory = mTemporaryFolder.newFolder("ads");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+    }
+
+    @Test
+    public void testServesResponseFromCache() {
+        AdCache cache = new AdCache(mDirectory, 60000, 1024, 1024);
+        String url = mServer.getUrl("/vast.xml");
+        assertNull(cache.peekVastResponse(url));
+        assertEquals(VAST, cache.getVastResponse(url));
+        assertEquals(VAST, cache.peekVastResponse(url));
+        assertEquals(VAST, cache.getVastResponse(url));
+        assertEquals(1, mServer.getRequestCount());
+
+        // Another instance reads the response from disk.
+        cache = new AdCache(mDirectory, 60000, 1024, 1024);
+        assertEquals(VAST, cache.getVastResponse(url));
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void testDownloadsExpiredResponse() {
+        AdCache cache = new AdCache(mDirectory, 0, 1024, 1024);
+        String url = mServer.getUrl("/vast.xml");
+        assertEquals(VAST, cache.getVastResponse(url));
+        assertEquals(VAST, cache.getVastResponse(url));
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    @Test
+    public void testDoesNotCacheResponseWithoutAds() {
+        mBody = EMPTY_VAST;
+        AdCache cache = new AdCache(mDirectory, 60000, 1024, 1024);
+        String url = mServer.getUrl("/vast.xml");
+        assertEquals(EMPTY_VAST, cache.getVastResponse(url));
+        assertNull(cache.peekVastResponse(url));
+        assertEquals(EMPTY_VAST, cache.getVastResponse(url));
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        // Only two creatives fit on disk.
+        AdCache cache = new AdCache(mDirectory, 60000, VAST.length() * 2, 1024);
+        String url1 = mServer.getUrl("/1.mp4");
+        String url2 = mServer.getUrl("/2.mp4");
+        String url3 = mServer.getUrl("/3.mp4");
+        assertNotNull(cache.downloadCreative(url1));
+        assertNotNull(cache.downloadCreative(url2));
+        assertNotNull(cache.getCreative(url1));
+        assertNotNull(cache.downloadCreative(url3));
+
+        assertNotNull(cache.getCreative(url1));
+        assertNull(cache.getCreative(url2));
+        assertNotNull(cache.getCreative(url3));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary.ads;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import com.google.android.media.tv.companionlibrary.BuildConfig;
+import com.google.android.media.tv.companionlibrary.model.Advertisement;
+import com.google.android.media.tv.companionlibrary.model.Channel;
+import com.google.android.media.tv.companionlibrary.model.InternalProviderData;
+import com.google.android.media.tv.companionlibrary.model.Program;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** Tests that {@link RepeatSchedule} loops the programs of a channel along with their ads. */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class RepeatScheduleTest {
+    private static final Channel CHANNEL = new Channel.Builder().build();
+
+    @Test
+    public void testProgramsCoverRange() {
+        // A loop of 30 minutes.
+        List<Program> programs =
+                Arrays.asList(createProgram(0, 10 * 60000), createProgram(10 * 60000, 30 * 60000));
+        RepeatSchedule schedule = new RepeatSchedule(CHANNEL, programs);
+
+        long startMs = 30 * 60000 * 1000L + 15 * 60000;
+        long endMs = startMs + 60 * 60000;
+        List<Program> result = schedule.getPrograms(startMs, endMs);
+        assertEquals(5, result.size());
+        assertEquals(startMs - 5 * 60000, result.get(0).getStartTimeUtcMillis());
+        for (int i = 1; i < result.size(); i++) {
+            assertEquals(
+                    result.get(i - 1).getEndTimeUtcMillis(), result.get(i).getStartTimeUtcMillis());
+        }
+        assertEquals(endMs + 15 * 60000, result.get(4).getEndTimeUtcMillis());
+    }
+
+    @Test
+    public void testAdsShiftedWithProgram() {
+        InternalProviderData data = new InternalProviderData();
+        data.setAds(
+                Collections.singletonList(
+                        new Advertisement.Builder()
+                                .setStartTimeUtcMillis(60000)
+                                .setStopTimeUtcMillis(90000)
+                                .setType(Advertisement.TYPE_VAST)
+                                .build()));
+        Program program =
+                new Program.Builder(createProgram(0, 10 * 60000))
+                        .setInternalProviderData(data)
+                        .build();
+        RepeatSchedule schedule = new RepeatSchedule(CHANNEL, Collections.singletonList(program));
+
+        long loopStartMs = 10 * 60000 * 100L;
+        List<Program> result = schedule.getPrograms(loopStartMs, loopStartMs + 20 * 60000);
+        assertEquals(2, result.size());
+        for (int i = 0; i < result.size(); i++) {
+            Advertisement ad = result.get(i).getInternalProviderDataView().getAds().get(0);
+            long programStartMs = loopStartMs + i * 10 * 60000;
+            assertEquals(programStartMs, result.get(i).getStartTimeUtcMillis());
+            assertEquals(programStartMs + 60000, ad.getStartTimeUtcMillis());
+            assertEquals(programStartMs + 90000, ad.getStopTimeUtcMillis());
+        }
+        // The public data gives each repetition its own ad times as well.
+        for (int i = 0; i < result.size(); i++) {
+            Advertisement ad = result.get(i).getInternalProviderData().getAds().get(0);
+            long programStartMs = loopStartMs + i * 10 * 60000;
+            assertEquals(programStartMs + 60000, ad.getStartTimeUtcMillis());
+            assertEquals(programStartMs + 90000, ad.getStopTimeUtcMillis());
+        }
+        // The repetitions share the same data.
+        assertSame(
+                result.get(0).getInternalProviderDataByteArray(),
+                result.get(1).getInternalProviderDataByteArray());
+    }
+
+    private static Program createProgram(long startMs, long endMs) {
+        return new Program.Builder()
+                .setTitle("Program")
+                .setStartTimeUtcMillis(startMs)
+                .setEndTimeUtcMillis(endMs)
+                .build();
+    }
+}
@@ -20,6 +20,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -138,6 +139,83 @@ public class InternalProviderDataTest {
                 internalProviderData.getAds().get(2).getType());
     }
 
+    @Test
+    public void testDataView() throws InternalProviderData.ParseException {
+        InternalProviderData internalProviderData = new InternalProviderData();
+        internalProviderData.setVideoUrl("http://example.com/video.mp4");
+        internalProviderData.setRepeatable(true);
+        ArrayList<Advertisement> advertisementArrayList = new ArrayList<>();
+        for (int i = 4; i >= 0; i--) {
+            // Insert 5 advertisements out of order
+            advertisementArrayList.add(
+                    new Advertisement.Builder()
+                            .setRequestUrl("http://example.com/commercial.mp4")
+                            .setStartTimeUtcMillis(i * 5000)
+                            .setStopTimeUtcMillis((i + 1) * 5000)
+                            .setType(Advertisement.TYPE_VAST)
+                            .build());
+        }
+        internalProviderData.setAds(advertisementArrayList);
+        Program program =
+                new Program.Builder().setInternalProviderData(internalProviderData).build();
+
+        InternalProviderDataView view = program.getInternalProviderDataView();
+        assertSame(view, program.getInternalProviderDataView());
+        assertEquals("http://example.com/video.mp4", view.getVideoUrl());
+        assertTrue(view.isRepeatable());
+        assertEquals(5, view.getAds().size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i * 5000, view.getAds().get(i).getStartTimeUtcMillis());
+        }
+
+        assertNull(new Program.Builder().build().getInternalProviderDataView());
+        assertNull(
+                new Program.Builder()
+                        .setInternalProviderData(new byte[] {1, 2, 3})
+                        .build()
+                        .getInternalProviderDataView());
+    }
+
+    @Test
+    public void testRelativeAds() throws InternalProviderData.ParseException {
+        InternalProviderData internalProviderData = new InternalProviderData();
+        ArrayList<Advertisement> advertisementArrayList = new ArrayList<>();
+        advertisementArrayList.add(
+                new Advertisement.Builder()
+                        .setRequestUrl("http://example.com/commercial.mp4")
+                        .setStartTimeUtcMillis(105000)
+                        .setStopTimeUtcMillis(110000)
+                        .setType(Advertisement.TYPE_VAST)
+                        .build());
+        internalProviderData.setAdsRelativeTo(advertisementArrayList, 100000);
+        assertTrue(internalProviderData.hasRelativeAds());
+        assertEquals(105000, internalProviderData.getAds().get(0).getStartTimeUtcMillis());
+        assertEquals(205000, internalProviderData.getAds(200000).get(0).getStartTimeUtcMillis());
+
+        // Programs at different times share the data, but get their own ad times.
+        byte[] data = internalProviderData.toString().getBytes();
+        for (long startTimeMs = 0; startTimeMs < 300000; startTimeMs += 100000) {
+            Program program =
+                    new Program.Builder()
+                            .setStartTimeUtcMillis(startTimeMs)
+                            .setInternalProviderData(data)
+                            .build();
+            Advertisement ad = program.getInternalProviderDataView().getAds().get(0);
+            assertEquals(startTimeMs + 5000, ad.getStartTimeUtcMillis());
+            assertEquals(startTimeMs + 10000, ad.getStopTimeUtcMillis());
+        }
+
+        internalProviderData.setAds(advertisementArrayList);
+        assertFalse(internalProviderData.hasRelativeAds());
+        assertEquals(105000, internalProviderData.getAds(200000).get(0).getStartTimeUtcMillis());
+
+        // Removing the ads also forgets that they were relative.
+        internalProviderData.setAdsRelativeTo(advertisementArrayList, 100000);
+        internalProviderData.setAdsRelativeTo(new ArrayList<Advertisement>(), 100000);
+        assertFalse(internalProviderData.hasRelativeAds());
+        assertTrue(internalProviderData.getAds().isEmpty());
+    }
+
     @Test
     public void testCustomDataMethods() throws InternalProviderData.ParseException {
         // Test custom data methods
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.database.MatrixCursor;
+import android.media.tv.TvContract;
+import com.google.android.media.tv.companionlibrary.BuildConfig;
+import com.google.android.media.tv.companionlibrary.utils.FakeTvProvider;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+/** Tests for the fingerprints and summaries used to reconcile channels and programs. */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class ModelUtilsTest {
+    @Test
+    public void testFingerprintOfEqualPrograms() {
+        assertEquals(
+                ModelUtils.getFingerprint(createProgram("Title")),
+                ModelUtils.getFingerprint(createProgram("Title")));
+    }
+
+    @Test
+    public void testFingerprintIgnoresRowId() {
+        Program program = createProgram("Title");
+        ContentValues values = program.toContentValues();
+        values.put(TvContract.Programs._ID, 42L);
+        MatrixCursor cursor = new MatrixCursor(Program.PROJECTION);
+        MatrixCursor.RowBuilder builder = cursor.newRow();
+        for (String column : Program.PROJECTION) {
+            builder.add(column, values.get(column));
+        }
+        cursor.moveToFirst();
+        Program storedProgram = Program.fromCursor(cursor);
+
+        assertEquals(42L, storedProgram.getId());
+        assertEquals(ModelUtils.getFingerprint(program), ModelUtils.getFingerprint(storedProgram));
+    }
+
+    @Test
+    public void testFingerprintOfChangedPrograms() {
+        long fingerprint = ModelUtils.getFingerprint(createProgram("Title"));
+        assertNotEquals(fingerprint, ModelUtils.getFingerprint(createProgram("Other title")));
+        assertNotEquals(
+                fingerprint,
+                ModelUtils.getFingerprint(
+                        new Program.Builder(createProgram("Title"))
+                                .setInternalProviderData(new byte[] {1, 2, 3})
+                                .build()));
+        assertNotEquals(
+                fingerprint,
+                ModelUtils.getFingerprint(
+                        new Program.Builder(createProgram("Title"))
+                                .setEndTimeUtcMillis(2000)
+                                .build()));
+    }
+
+    @Test
+    public void testDeletesProgramsInChunks() {
+        long[] programIds = new long[260];
+        for (int i = 0; i < programIds.length; i++) {
+            programIds[i] = i + 1;
+        }
+        List<ContentProviderOperation> ops =
+                ModelUtils.buildDeleteProgramsOperations(programIds, 250);
+        assertEquals(3, ops.size());
+        for (ContentProviderOperation op : ops) {
+            assertEquals(TvContract.Programs.CONTENT_URI, op.getUri());
+        }
+        assertTrue(ModelUtils.buildDeleteProgramsOperations(programIds, 0).isEmpty());
+    }
+
+    @Test
+    public void testProgramSummaryFromCursor() {
+        MatrixCursor cursor = new MatrixCursor(ProgramSummary.PROJECTION);
+        cursor.addRow(new Object[] {1L, 3L, 0L, 1000L, 1234L});
+        cursor.addRow(new Object[] {2L, 3L, 1000L, 2000L, null});
+
+        cursor.moveToNext();
+        ProgramSummary summary = ProgramSummary.fromCursor(cursor);
+        assertEquals(1, summary.getId());
+        assertEquals(3, summary.getChannelId());
+        assertEquals(0, summary.getStartTimeUtcMillis());
+        assertEquals(1000, summary.getEndTimeUtcMillis());
+        assertTrue(summary.hasFingerprint());
+        assertEquals(1234, summary.getFingerprint());
+        assertNull(summary.getProgram());
+
+        cursor.moveToNext();
+        summary = ProgramSummary.fromCursor(cursor);
+        assertEquals(2, summary.getId());
+        assertFalse(summary.hasFingerprint());
+    }
+
+    @Test
+    public void testUnchangedChannelIsSkippedUnlessLogoIsMissing() {
+        FakeTvProvider provider = FakeTvProvider.register();
+        List<Channel> channels =
+                Arrays.asList(
+                        createChannel(1, null),
+                        // The logo fails to download, so it is not inserted.
+                        createChannel(2, "invalid logo URL"));
+        ModelUtils.updateChannels(RuntimeEnvironment.application, "input", channels, null);
+        assertEquals(2, provider.getWrites().size());
+
+        provider.clearWrites();
+        ModelUtils.updateChannels(RuntimeEnvironment.application, "input", channels, null);
+        List<String> writes = provider.getWrites();
+        assertEquals(1, writes.size());
+        assertTrue(writes.get(0).startsWith("update"));
+        assertTrue(writes.get(0).contains("Channel 2"));
+    }
+
+    private static Channel createChannel(int originalNetworkId, String logo) {
+        return new Channel.Builder()
+                .setDisplayName("Channel " + originalNetworkId)
+                .setDisplayNumber(String.valueOf(originalNetworkId))
+                .setOriginalNetworkId(originalNetworkId)
+                .setChannelLogo(logo)
+                .build();
+    }
+
+    private static Program createProgram(String title) {
+        return new Program.Builder()
+                .setTitle(title)
+                .setDescription("This is a sample program")
+                .setChannelId(3)
+                .setStartTimeUtcMillis(0)
+                .setEndTimeUtcMillis(1000)
+                .build();
+    }
+}
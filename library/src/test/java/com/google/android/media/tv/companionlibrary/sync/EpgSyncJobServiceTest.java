@@ -0,0 +1,628 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary.sync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.media.tv.TvContract;
+import android.net.Uri;
+import android.os.PersistableBundle;
+import android.support.v4.content.LocalBroadcastManager;
+import com.google.android.media.tv.companionlibrary.BuildConfig;
+import com.google.android.media.tv.companionlibrary.model.Channel;
+import com.google.android.media.tv.companionlibrary.model.ModelUtils;
+import com.google.android.media.tv.companionlibrary.model.Program;
+import com.google.android.media.tv.companionlibrary.utils.Constants;
+import com.google.android.media.tv.companionlibrary.utils.FakeTvProvider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+/** Tests the program sync of {@link EpgSyncJobService} against an in-memory TvProvider. */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class EpgSyncJobServiceTest {
+    private static final String INPUT_ID = "input";
+    // The syncs of the tests with a blocked job are never finished, so keep them apart.
+    private static final String BLOCKED_INPUT_ID = "blocked_input";
+    private static final String MERGED_INPUT_ID = "merged_input";
+    // The extra of EpgSyncJobService with the duration of a sync.
+    private static final String BUNDLE_KEY_SYNC_PERIOD = "bundle_key_sync_period";
+    private static final int PERIODIC_SYNC_JOB_ID = 0;
+    private static final int REQUEST_SYNC_JOB_ID = 1;
+    private static final int CHANNEL_SYNC_JOB_ID = 2;
+    private static final int CHANNEL_COUNT = 12;
+    private static final long PROGRAM_DURATION_MS = TimeUnit.MINUTES.toMillis(30);
+    private static final int PROGRAM_COUNT = 48;
+    private static final long SYNC_DURATION_MS = TimeUnit.DAYS.toMillis(1);
+    private static final long SYNC_PERIOD_MS = TimeUnit.HOURS.toMillis(12);
+    private static final long PERIODIC_SYNC_DURATION_MS = TimeUnit.HOURS.toMillis(12);
+    private static final Pattern CHANNEL_ID_PATTERN =
+            Pattern.compile(TvContract.Programs.COLUMN_CHANNEL_ID + "=(\\d+)");
+
+    private final List<Integer> mErrors = new ArrayList<>();
+    private Context mContext;
+    private FakeTvProvider mProvider;
+    private TestJobService mService;
+    private List<Long> mChannelIds;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        TestJobService.reset();
+        mService = Robolectric.buildService(TestJobService.class).create().get();
+        mProvider = FakeTvProvider.register();
+        mChannelIds = setUpChannels();
+        LocalBroadcastManager.getInstance(mContext)
+                .registerReceiver(
+                        new BroadcastReceiver() {
+                            @Override
+                            public void onReceive(Context context, Intent intent) {
+                                if (EpgSyncJobService.SYNC_ERROR.equals(
+                                        intent.getStringExtra(EpgSyncJobService.SYNC_STATUS))) {
+                                    mErrors.add(
+                                            intent.getIntExtra(
+                                                    EpgSyncJobService.BUNDLE_KEY_ERROR_REASON, 0));
+                                }
+                            }
+                        },
+                        new IntentFilter(EpgSyncJobService.ACTION_SYNC_STATUS_CHANGED));
+    }
+
+    @Test
+    public void testConcurrentSyncMakesSameChanges() {
+        List<String> serialWrites = syncTwice(1);
+        mProvider = FakeTvProvider.register();
+        mChannelIds = setUpChannels();
+        List<String> concurrentWrites = syncTwice(4);
+
+        assertFalse(serialWrites.isEmpty());
+        assertEquals(serialWrites, concurrentWrites);
+    }
+
+    @Test
+    public void testFailedFetchStopsSync() {
+        TestJobService.sConcurrency = 3;
+        TestJobService.sFailingChannelId = mChannelIds.get(3);
+        requestAndRunSync(SYNC_DURATION_MS);
+        ShadowLooper.idleMainLooper();
+
+        assertTrue(mErrors.contains(EpgSyncJobService.ERROR_START_CUSTOM));
+        // The channels before the failed one are written, but none of those after it.
+        for (int i = 0; i < CHANNEL_COUNT; i++) {
+            assertEquals(i < 3, !mProvider.getPrograms(mChannelIds.get(i)).isEmpty());
+        }
+        // The fetching threads are stopped instead of fetching the remaining channels.
+        assertTrue(TestJobService.sFetchCount.get() < CHANNEL_COUNT);
+        List<SyncStats> history = EpgSyncJobService.getSyncHistory();
+        assertFalse(history.get(history.size() - 1).isCompleted());
+    }
+
+    @Test
+    public void testChannelsAreWrittenInOrder() {
+        TestJobService.sConcurrency = 4;
+        // The earlier channels are the slowest to fetch, so their fetches return last.
+        for (int i = 0; i < CHANNEL_COUNT; i++) {
+            TestJobService.sFetchDelaysMs[i] = (CHANNEL_COUNT - i) * 10;
+        }
+        requestAndRunSync(SYNC_DURATION_MS);
+
+        long lastChannelId = 0;
+        int insertCount = 0;
+        for (String write : mProvider.getWrites()) {
+            Matcher matcher = CHANNEL_ID_PATTERN.matcher(write);
+            if (write.startsWith("insert") && matcher.find()) {
+                long channelId = Long.parseLong(matcher.group(1));
+                assertTrue(write, channelId >= lastChannelId);
+                lastChannelId = channelId;
+                insertCount++;
+            }
+        }
+        assertEquals(CHANNEL_COUNT * PROGRAM_COUNT, insertCount);
+        assertFalse(TestJobService.sFetchThreads.contains(Thread.currentThread()));
+    }
+
+    @Test
+    public void testFetchingStaysCloseToWriting() {
+        TestJobService.sConcurrency = 2;
+        TestJobService.sFetchDelaysMs[0] = 300;
+        requestAndRunSync(SYNC_DURATION_MS);
+
+        // While the writer waits for the first channel, at most twice the concurrency of channels
+        // are fetched ahead.
+        assertTrue(TestJobService.sFetchCountsOnReturn.get(mChannelIds.get(0)) <= 4);
+        assertEquals(CHANNEL_COUNT, TestJobService.sFetchCount.get());
+        assertFalse(mProvider.getPrograms(mChannelIds.get(CHANNEL_COUNT - 1)).isEmpty());
+    }
+
+    @Test
+    public void testUnexpectedFetchFailureIsRethrown() {
+        RuntimeException failure = new IllegalStateException("Malformed feed");
+        TestJobService.sConcurrency = 3;
+        TestJobService.sFailingChannelId = mChannelIds.get(3);
+        TestJobService.sFetchFailure = failure;
+        try {
+            requestAndRunSync(SYNC_DURATION_MS);
+            fail("The sync should fail");
+        } catch (RuntimeException e) {
+            assertSame(failure, e.getCause());
+        }
+        assertTrue(TestJobService.sFetchCount.get() < CHANNEL_COUNT);
+    }
+
+    @Test
+    public void testIncrementalSyncStartsBeforeWatermark() {
+        TestJobService.sIncremental = true;
+        TestJobService.sTitle = "First";
+        long beforeMs = System.currentTimeMillis();
+        setUpAndRunPeriodicSync(PERIODIC_SYNC_DURATION_MS);
+        long afterMs = System.currentTimeMillis();
+        long[] watermarksMs = new long[CHANNEL_COUNT];
+        List<List<ContentValues>> firstPrograms = new ArrayList<>();
+        for (int i = 0; i < CHANNEL_COUNT; i++) {
+            watermarksMs[i] = getWatermark(mChannelIds.get(i));
+            assertTrue(watermarksMs[i] >= beforeMs + PERIODIC_SYNC_DURATION_MS);
+            assertTrue(watermarksMs[i] <= afterMs + PERIODIC_SYNC_DURATION_MS);
+            firstPrograms.add(mProvider.getPrograms(mChannelIds.get(i)));
+        }
+
+        TestJobService.sTitle = "Second";
+        setUpAndRunPeriodicSync(PERIODIC_SYNC_DURATION_MS);
+
+        for (int i = 0; i < CHANNEL_COUNT; i++) {
+            long channelId = mChannelIds.get(i);
+            long fetchStartMs = watermarksMs[i] - mService.getRecentChangesWindowMillis();
+            assertEquals(fetchStartMs, (long) TestJobService.sFetchStartTimes.get(channelId));
+            // The programs before the window of recent changes are left as they are.
+            List<ContentValues> programs = mProvider.getPrograms(channelId);
+            for (int j = 0; j < programs.size(); j++) {
+                ContentValues program = programs.get(j);
+                if (program.getAsLong(TvContract.Programs.COLUMN_END_TIME_UTC_MILLIS)
+                        <= fetchStartMs) {
+                    assertEquals(firstPrograms.get(i).get(j), program);
+                } else {
+                    assertEquals(
+                            "Second",
+                            program.getAsString(TvContract.Programs.COLUMN_SHORT_DESCRIPTION));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFailedChannelKeepsWatermark() {
+        TestJobService.sIncremental = true;
+        long failedChannelId = mChannelIds.get(5);
+        mProvider.setFailingChannelId(failedChannelId);
+        setUpAndRunPeriodicSync(PERIODIC_SYNC_DURATION_MS);
+        ShadowLooper.idleMainLooper();
+
+        assertTrue(mErrors.contains(EpgSyncJobService.ERROR_DATABASE_INSERT));
+        for (long channelId : mChannelIds) {
+            assertEquals(channelId != failedChannelId, getWatermark(channelId) > 0);
+        }
+
+        // The failed channel is synced in full the next time.
+        mProvider.setFailingChannelId(-1);
+        long beforeMs = System.currentTimeMillis();
+        setUpAndRunPeriodicSync(PERIODIC_SYNC_DURATION_MS);
+        long afterMs = System.currentTimeMillis();
+        long fetchStartMs = TestJobService.sFetchStartTimes.get(failedChannelId);
+        assertTrue(fetchStartMs >= beforeMs && fetchStartMs <= afterMs);
+        assertTrue(getWatermark(failedChannelId) >= beforeMs + PERIODIC_SYNC_DURATION_MS);
+        assertFalse(mProvider.getPrograms(failedChannelId).isEmpty());
+    }
+
+    @Test
+    public void testChannelSyncOnlyWritesRequestedChannels() {
+        TestJobService.sTitle = "First";
+        requestAndRunSync(SYNC_DURATION_MS);
+        List<List<ContentValues>> firstPrograms = getAllPrograms();
+        mProvider.clearWrites();
+        TestJobService.sFetchStartTimes.clear();
+
+        TestJobService.sTitle = "Second";
+        List<Long> syncedChannelIds = Arrays.asList(mChannelIds.get(2), mChannelIds.get(7));
+        EpgSyncJobService.requestChannelSync(
+                mContext,
+                INPUT_ID,
+                Arrays.asList(
+                        TvContract.buildChannelUri(syncedChannelIds.get(0)),
+                        TvContract.buildChannelUri(syncedChannelIds.get(1))),
+                SYNC_DURATION_MS,
+                new ComponentName(mContext, TestJobService.class));
+        runJob(CHANNEL_SYNC_JOB_ID);
+
+        assertEquals(
+                new HashSet<>(syncedChannelIds), TestJobService.sFetchStartTimes.keySet());
+        assertEquals(mChannelIds, mProvider.getChannelIds());
+        for (int i = 0; i < CHANNEL_COUNT; i++) {
+            long channelId = mChannelIds.get(i);
+            List<ContentValues> programs = mProvider.getPrograms(channelId);
+            if (!syncedChannelIds.contains(channelId)) {
+                assertEquals(firstPrograms.get(i), programs);
+                continue;
+            }
+            assertEquals(firstPrograms.get(i).size(), programs.size());
+            for (ContentValues program : programs) {
+                assertEquals(
+                        "Second",
+                        program.getAsString(TvContract.Programs.COLUMN_SHORT_DESCRIPTION));
+            }
+        }
+        // The lineup is neither updated nor pruned.
+        assertFalse(mProvider.getWrites().isEmpty());
+        for (String write : mProvider.getWrites()) {
+            assertFalse(write, write.contains(TvContract.Channels.CONTENT_URI.toString()));
+        }
+    }
+
+    @Test
+    public void testShorterPeriodicSyncPrunesProgramsBeyondWindow() {
+        setUpAndRunPeriodicSync(SYNC_DURATION_MS);
+        List<List<ContentValues>> firstPrograms = getAllPrograms();
+
+        long shortEndMs = System.currentTimeMillis() + PERIODIC_SYNC_DURATION_MS / 2;
+        setUpAndRunPeriodicSync(PERIODIC_SYNC_DURATION_MS / 2);
+
+        for (int i = 0; i < CHANNEL_COUNT; i++) {
+            // The programs in the shorter window keep their rows, and the later ones are gone.
+            List<ContentValues> expectedPrograms = new ArrayList<>();
+            for (ContentValues program : firstPrograms.get(i)) {
+                if (program.getAsLong(TvContract.Programs.COLUMN_START_TIME_UTC_MILLIS)
+                        < shortEndMs) {
+                    expectedPrograms.add(program);
+                }
+            }
+            assertTrue(expectedPrograms.size() < firstPrograms.get(i).size());
+            assertEquals(expectedPrograms, mProvider.getPrograms(mChannelIds.get(i)));
+        }
+    }
+
+    @Test
+    public void testShorterRequestedSyncKeepsProgramsBeyondWindow() {
+        requestAndRunSync(SYNC_DURATION_MS);
+        List<List<ContentValues>> firstPrograms = getAllPrograms();
+
+        requestAndRunSync(PERIODIC_SYNC_DURATION_MS / 2);
+
+        assertEquals(firstPrograms, getAllPrograms());
+    }
+
+    @Test
+    public void testStoppedSyncIsRescheduled() throws InterruptedException {
+        // Keep the tasks from finishing the jobs, which the mocked parameters can't do.
+        ShadowLooper.pauseMainLooper();
+        BlockingJobService service =
+                Robolectric.buildService(BlockingJobService.class).create().get();
+        try {
+            JobParameters params = createJobParameters(REQUEST_SYNC_JOB_ID, BLOCKED_INPUT_ID);
+            assertTrue(service.onStartJob(params));
+            assertTrue(service.mStartedLatch.await(5, TimeUnit.SECONDS));
+
+            assertTrue(service.onStopJob(params));
+            // The stopped task is forgotten, so stopping it again doesn't reschedule it.
+            assertFalse(service.onStopJob(params));
+        } finally {
+            service.mReleaseLatch.countDown();
+        }
+    }
+
+    @Test
+    public void testRequestsAreMergedIntoRunningSync() throws InterruptedException {
+        ShadowLooper.pauseMainLooper();
+        BlockingJobService service =
+                Robolectric.buildService(BlockingJobService.class).create().get();
+        ComponentName component = new ComponentName(mContext, BlockingJobService.class);
+        try {
+            assertTrue(
+                    service.onStartJob(
+                            createJobParameters(REQUEST_SYNC_JOB_ID, MERGED_INPUT_ID)));
+            assertTrue(service.mStartedLatch.await(5, TimeUnit.SECONDS));
+
+            // The running sync already covers a shorter request.
+            EpgSyncJobService.requestImmediateSync(
+                    mContext, MERGED_INPUT_ID, TimeUnit.MINUTES.toMillis(30), component);
+            assertNull(getPendingJob(REQUEST_SYNC_JOB_ID));
+            // A longer one is synced when the running sync finishes, instead of stopping it.
+            EpgSyncJobService.requestImmediateSync(
+                    mContext, MERGED_INPUT_ID, TimeUnit.HOURS.toMillis(2), component);
+            EpgSyncJobService.requestImmediateSync(
+                    mContext, MERGED_INPUT_ID, TimeUnit.HOURS.toMillis(1), component);
+            assertNull(getPendingJob(REQUEST_SYNC_JOB_ID));
+        } finally {
+            service.mReleaseLatch.countDown();
+        }
+
+        long timeoutMs = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        JobInfo followUp = null;
+        while (followUp == null && System.currentTimeMillis() < timeoutMs) {
+            Thread.sleep(10);
+            ShadowLooper.idleMainLooper();
+            followUp = getPendingJob(REQUEST_SYNC_JOB_ID);
+        }
+        assertNotNull(followUp);
+        assertEquals(
+                MERGED_INPUT_ID,
+                followUp.getExtras().getString(EpgSyncJobService.BUNDLE_KEY_INPUT_ID));
+        assertEquals(
+                TimeUnit.HOURS.toMillis(2),
+                followUp.getExtras().getLong(BUNDLE_KEY_SYNC_PERIOD));
+
+        // The pending follow-up covers another request as well.
+        EpgSyncJobService.requestImmediateSync(
+                mContext, MERGED_INPUT_ID, TimeUnit.HOURS.toMillis(1), component);
+        assertEquals(
+                TimeUnit.HOURS.toMillis(2),
+                getPendingJob(REQUEST_SYNC_JOB_ID).getExtras().getLong(BUNDLE_KEY_SYNC_PERIOD));
+    }
+
+    @Test
+    public void testUnknownJobIsNotRescheduled() {
+        assertFalse(mService.onStopJob(createJobParameters(REQUEST_SYNC_JOB_ID, INPUT_ID)));
+    }
+
+    /**
+     * Syncs all channels, then syncs them again with changed programs.
+     *
+     * @return The writes of the second sync.
+     */
+    private List<String> syncTwice(int concurrency) {
+        TestJobService.sConcurrency = concurrency;
+        TestJobService.sTitle = "First";
+        requestAndRunSync(SYNC_DURATION_MS);
+        mProvider.clearWrites();
+        TestJobService.sTitle = "Second";
+        requestAndRunSync(SYNC_DURATION_MS);
+        return mProvider.getWrites();
+    }
+
+    /** Writes the lineup of {@link TestJobService}, and returns the row IDs of its channels. */
+    private List<Long> setUpChannels() {
+        ModelUtils.updateChannels(mContext, INPUT_ID, mService.getChannels(), null);
+        List<Long> channelIds = mProvider.getChannelIds();
+        assertEquals(CHANNEL_COUNT, channelIds.size());
+        return channelIds;
+    }
+
+    private void requestAndRunSync(long syncDurationMs) {
+        EpgSyncJobService.requestImmediateSync(
+                mContext,
+                INPUT_ID,
+                syncDurationMs,
+                new ComponentName(mContext, TestJobService.class));
+        runJob(REQUEST_SYNC_JOB_ID);
+    }
+
+    private void setUpAndRunPeriodicSync(long syncDurationMs) {
+        EpgSyncJobService.setUpPeriodicSync(
+                mContext,
+                INPUT_ID,
+                new ComponentName(mContext, TestJobService.class),
+                SYNC_PERIOD_MS,
+                syncDurationMs);
+        runJob(PERIODIC_SYNC_JOB_ID);
+    }
+
+    private List<List<ContentValues>> getAllPrograms() {
+        List<List<ContentValues>> programs = new ArrayList<>();
+        for (long channelId : mChannelIds) {
+            programs.add(mProvider.getPrograms(channelId));
+        }
+        return programs;
+    }
+
+    private long getWatermark(long channelId) {
+        return mContext.getSharedPreferences(
+                        EpgSyncJobService.PREFERENCE_EPG_SYNC, Context.MODE_PRIVATE)
+                .getLong(Constants.SHARED_PREFERENCES_KEY_CHANNEL_SYNC_WATERMARK + channelId, 0);
+    }
+
+    private JobInfo getPendingJob(int jobId) {
+        JobScheduler jobScheduler =
+                (JobScheduler) mContext.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        for (JobInfo pendingJob : jobScheduler.getAllPendingJobs()) {
+            if (pendingJob.getId() == jobId) {
+                return pendingJob;
+            }
+        }
+        return null;
+    }
+
+    /** Runs the pending job with the given ID to completion on this thread. */
+    private void runJob(int jobId) {
+        JobInfo job = getPendingJob(jobId);
+        assertNotNull("Job " + jobId + " is not scheduled", job);
+        ((JobScheduler) mContext.getSystemService(Context.JOB_SCHEDULER_SERVICE)).cancel(jobId);
+        JobParameters params = createJobParameters(jobId, job.getExtras());
+        EpgSyncJobService.EpgSyncTask task = mService.new EpgSyncTask(params);
+        task.doInBackground();
+        // Finish the job like the task does once it is done, which also clears its checkpoint.
+        task.onPostExecute(null);
+    }
+
+    private static JobParameters createJobParameters(int jobId, String inputId) {
+        PersistableBundle extras = new PersistableBundle();
+        extras.putString(EpgSyncJobService.BUNDLE_KEY_INPUT_ID, inputId);
+        return createJobParameters(jobId, extras);
+    }
+
+    private static JobParameters createJobParameters(int jobId, PersistableBundle extras) {
+        JobParameters params = mock(JobParameters.class);
+        when(params.getJobId()).thenReturn(jobId);
+        when(params.getExtras()).thenReturn(extras);
+        return params;
+    }
+
+    /**
+     * A job service with a fixed lineup. Each channel has a day of half-hour programs from shortly
+     * before the test started. Channels with an even original network ID keep the titles of
+     * their programs when {@link #sTitle} changes, but get a new description, while the others
+     * get new programs.
+     */
+    public static class TestJobService extends EpgSyncJobService {
+        static final AtomicInteger sFetchCount = new AtomicInteger();
+        // The start of the window each channel was last fetched for, by row ID.
+        static final Map<Long, Long> sFetchStartTimes = new ConcurrentHashMap<>();
+        // The number of fetches started by the time the fetch of each channel returned.
+        static final Map<Long, Integer> sFetchCountsOnReturn = new ConcurrentHashMap<>();
+        static final Set<Thread> sFetchThreads =
+                Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+        static long sBaseTimeMs;
+        static String sTitle;
+        static int sConcurrency;
+        static boolean sIncremental;
+        // How long fetching the programs of each channel takes, by original network ID.
+        static long[] sFetchDelaysMs;
+        // Fetching the programs of the channel with this row ID throws sFetchFailure.
+        static long sFailingChannelId;
+        static Exception sFetchFailure;
+
+        static void reset() {
+            sFetchCount.set(0);
+            sFetchStartTimes.clear();
+            sFetchCountsOnReturn.clear();
+            sFetchThreads.clear();
+            sBaseTimeMs = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(1);
+            sTitle = "Title";
+            sConcurrency = 1;
+            sIncremental = false;
+            sFetchDelaysMs = new long[CHANNEL_COUNT];
+            sFailingChannelId = -1;
+            sFetchFailure = new EpgSyncException(ERROR_START_CUSTOM);
+        }
+
+        @Override
+        public List<Channel> getChannels() {
+            List<Channel> channels = new ArrayList<>();
+            for (int i = 0; i < CHANNEL_COUNT; i++) {
+                channels.add(
+                        new Channel.Builder()
+                                .setDisplayName("Channel " + i)
+                                .setDisplayNumber(String.valueOf(i))
+                                .setOriginalNetworkId(i)
+                                .build());
+            }
+            return channels;
+        }
+
+        @Override
+        public List<Program> getProgramsForChannel(
+                Uri channelUri, Channel channel, long startMs, long endMs)
+                throws EpgSyncException {
+            sFetchCount.incrementAndGet();
+            sFetchStartTimes.put(channel.getId(), startMs);
+            sFetchThreads.add(Thread.currentThread());
+            try {
+                Thread.sleep(sFetchDelaysMs[channel.getOriginalNetworkId()]);
+            } catch (InterruptedException e) {
+                throw new EpgSyncException(ERROR_EPG_SYNC_CANCELED);
+            }
+            sFetchCountsOnReturn.put(channel.getId(), sFetchCount.get());
+            if (channel.getId() == sFailingChannelId) {
+                if (sFetchFailure instanceof EpgSyncException) {
+                    throw (EpgSyncException) sFetchFailure;
+                }
+                throw (RuntimeException) sFetchFailure;
+            }
+            boolean keepTitles = channel.getOriginalNetworkId() % 2 == 0;
+            List<Program> programs = new ArrayList<>();
+            for (int i = 0; i < PROGRAM_COUNT; i++) {
+                long programStartMs = sBaseTimeMs + i * PROGRAM_DURATION_MS;
+                long programEndMs = programStartMs + PROGRAM_DURATION_MS;
+                if (programStartMs < endMs && programEndMs > startMs) {
+                    programs.add(
+                            new Program.Builder()
+                                    .setTitle((keepTitles ? "Program" : sTitle) + " " + i)
+                                    .setDescription(sTitle)
+                                    .setStartTimeUtcMillis(programStartMs)
+                                    .setEndTimeUtcMillis(programEndMs)
+                                    .build());
+                }
+            }
+            return programs;
+        }
+
+        @Override
+        public int getChannelSyncConcurrency() {
+            return sConcurrency;
+        }
+
+        @Override
+        public boolean isIncrementalSyncEnabled() {
+            return sIncremental;
+        }
+    }
+
+    /** A job service whose sync waits in {@link #getChannels()} until it is released. */
+    public static class BlockingJobService extends EpgSyncJobService {
+        private final CountDownLatch mStartedLatch = new CountDownLatch(1);
+        private final CountDownLatch mReleaseLatch = new CountDownLatch(1);
+
+        @Override
+        public List<Channel> getChannels() throws EpgSyncException {
+            mStartedLatch.countDown();
+            try {
+                mReleaseLatch.await();
+            } catch (InterruptedException e) {
+                // The task was cancelled.
+            }
+            throw new EpgSyncException(ERROR_EPG_SYNC_CANCELED);
+        }
+
+        @Override
+        public List<Program> getProgramsForChannel(
+                Uri channelUri, Channel channel, long startMs, long endMs) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary.sync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import com.google.android.media.tv.companionlibrary.BuildConfig;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+/** Tests that {@link SyncCheckpoint} lets a stopped sync resume after its last good channel. */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class SyncCheckpointTest {
+    private static final String KEY = "checkpoint_0";
+    private static final String INPUT_ID = "input";
+    private static final long START_MS = 1000000;
+    private static final long DURATION_MS = 60 * 60000;
+    private static final long MAX_AGE_MS = 12 * 60 * 60000;
+
+    private SharedPreferences mPreferences;
+
+    @Before
+    public void setUp() {
+        mPreferences =
+                RuntimeEnvironment.application.getSharedPreferences("sync", Context.MODE_PRIVATE);
+    }
+
+    @Test
+    public void testResumesAfterCommittedChannel() {
+        SyncCheckpoint checkpoint = new SyncCheckpoint(mPreferences, KEY, INPUT_ID);
+        assertFalse(checkpoint.restore(START_MS, DURATION_MS, MAX_AGE_MS));
+        assertEquals(-1, checkpoint.getChannelId());
+        checkpoint.commit(3);
+        checkpoint.commit(5);
+
+        // The next run keeps the window of the stopped one.
+        SyncCheckpoint resumed = new SyncCheckpoint(mPreferences, KEY, INPUT_ID);
+        assertTrue(resumed.restore(START_MS + 60000, DURATION_MS, MAX_AGE_MS));
+        assertEquals(START_MS, resumed.getStartMs());
+        assertEquals(START_MS + DURATION_MS, resumed.getEndMs());
+        assertEquals(5, resumed.getChannelId());
+    }
+
+    @Test
+    public void testStartsOverInOtherWindow() {
+        SyncCheckpoint checkpoint = new SyncCheckpoint(mPreferences, KEY, INPUT_ID);
+        checkpoint.restore(START_MS, DURATION_MS, MAX_AGE_MS);
+        checkpoint.commit(5);
+
+        assertFalse(
+                new SyncCheckpoint(mPreferences, KEY, "other")
+                        .restore(START_MS, DURATION_MS, MAX_AGE_MS));
+        assertFalse(
+                new SyncCheckpoint(mPreferences, KEY, INPUT_ID)
+                        .restore(START_MS, DURATION_MS * 2, MAX_AGE_MS));
+        SyncCheckpoint expired = new SyncCheckpoint(mPreferences, KEY, INPUT_ID);
+        assertFalse(expired.restore(START_MS + MAX_AGE_MS, DURATION_MS, MAX_AGE_MS));
+        assertEquals(START_MS + MAX_AGE_MS, expired.getStartMs());
+        assertEquals(-1, expired.getChannelId());
+    }
+
+    @Test
+    public void testStaysBeforeFailedChannel() {
+        SyncCheckpoint checkpoint = new SyncCheckpoint(mPreferences, KEY, INPUT_ID);
+        checkpoint.restore(START_MS, DURATION_MS, MAX_AGE_MS);
+        checkpoint.commit(3);
+        checkpoint.fail();
+        checkpoint.commit(5);
+
+        SyncCheckpoint resumed = new SyncCheckpoint(mPreferences, KEY, INPUT_ID);
+        assertTrue(resumed.restore(START_MS, DURATION_MS, MAX_AGE_MS));
+        assertEquals(3, resumed.getChannelId());
+    }
+
+    @Test
+    public void testClear() {
+        SyncCheckpoint checkpoint = new SyncCheckpoint(mPreferences, KEY, INPUT_ID);
+        checkpoint.restore(START_MS, DURATION_MS, MAX_AGE_MS);
+        checkpoint.commit(3);
+        checkpoint.clear();
+
+        assertFalse(
+                new SyncCheckpoint(mPreferences, KEY, INPUT_ID)
+                        .restore(START_MS, DURATION_MS, MAX_AGE_MS));
+    }
+}
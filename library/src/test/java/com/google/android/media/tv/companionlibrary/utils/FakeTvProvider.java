@@ -0,0 +1,335 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary.utils;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.media.tv.TvContract;
+import android.net.Uri;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import org.robolectric.shadows.ShadowContentResolver;
+
+/**
+ * An in-memory stand-in for TvProvider with its channels and programs, for tests of code which
+ * reads and writes the EPG. It understands the URIs of {@link TvContract} and the selections this
+ * library makes, e.g. {@code column IN (?,?)} or {@code a = ? AND b >= ?}. Batches are applied
+ * as transactions, and every write is recorded, see {@link #getWrites()}.
+ */
+public class FakeTvProvider extends ContentProvider {
+    // The query parameter of TvContract#buildChannelsUriForInput(String).
+    private static final String PARAM_INPUT = "input";
+
+    private final TreeMap<Long, ContentValues> mChannels = new TreeMap<>();
+    private final TreeMap<Long, ContentValues> mPrograms = new TreeMap<>();
+    private final List<String> mWrites = new ArrayList<>();
+    private long mNextId = 1;
+    private long mFailingChannelId = -1;
+
+    /** Creates a provider and registers it for {@link TvContract#AUTHORITY}. */
+    public static FakeTvProvider register() {
+        FakeTvProvider provider = new FakeTvProvider();
+        ShadowContentResolver.registerProviderInternal(TvContract.AUTHORITY, provider);
+        return provider;
+    }
+
+    /** Makes inserts of programs of the given channel fail, like a provider which rejects them. */
+    public synchronized void setFailingChannelId(long channelId) {
+        mFailingChannelId = channelId;
+    }
+
+    /** @return The row IDs of the channels, in increasing order. */
+    public synchronized List<Long> getChannelIds() {
+        return new ArrayList<>(mChannels.keySet());
+    }
+
+    /** @return Copies of the values of the programs of a channel, by start time. */
+    public synchronized List<ContentValues> getPrograms(long channelId) {
+        List<ContentValues> programs = new ArrayList<>();
+        for (ContentValues program : mPrograms.values()) {
+            if (getLong(program, TvContract.Programs.COLUMN_CHANNEL_ID) == channelId) {
+                programs.add(new ContentValues(program));
+            }
+        }
+        sort(programs, new String[] {TvContract.Programs.COLUMN_START_TIME_UTC_MILLIS});
+        return programs;
+    }
+
+    /**
+     * @return A description of each insert, update and delete which has been committed, in the
+     *     order they were made.
+     */
+    public synchronized List<String> getWrites() {
+        return new ArrayList<>(mWrites);
+    }
+
+    /** Forgets the writes made so far. */
+    public synchronized void clearWrites() {
+        mWrites.clear();
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return null;
+    }
+
+    @Override
+    public synchronized Cursor query(
+            Uri uri,
+            String[] projection,
+            String selection,
+            String[] selectionArgs,
+            String sortOrder) {
+        List<ContentValues> rows = select(uri, selection, selectionArgs);
+        if (sortOrder != null) {
+            sort(rows, sortOrder.split(",\\s*"));
+        }
+        if (projection == null) {
+            TreeSet<String> columns = new TreeSet<>();
+            for (ContentValues row : rows) {
+                columns.addAll(row.keySet());
+            }
+            projection = columns.toArray(new String[columns.size()]);
+        }
+        MatrixCursor cursor = new MatrixCursor(projection, rows.size());
+        for (ContentValues row : rows) {
+            Object[] values = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                values[i] = row.get(projection[i]);
+            }
+            cursor.addRow(values);
+        }
+        return cursor;
+    }
+
+    @Override
+    public synchronized Uri insert(Uri uri, ContentValues values) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() != 1) {
+            throw new IllegalArgumentException("Cannot insert into " + uri);
+        }
+        TreeMap<Long, ContentValues> table = getTable(segments.get(0));
+        if (table == mPrograms
+                && values.containsKey(TvContract.Programs.COLUMN_CHANNEL_ID)
+                && getLong(values, TvContract.Programs.COLUMN_CHANNEL_ID) == mFailingChannelId) {
+            return null;
+        }
+        long id = mNextId++;
+        ContentValues row = new ContentValues(values);
+        row.put(TvContract.BaseTvColumns._ID, id);
+        table.put(id, row);
+        mWrites.add("insert " + uri + " " + describe(values));
+        return ContentUris.withAppendedId(
+                table == mChannels
+                        ? TvContract.Channels.CONTENT_URI
+                        : TvContract.Programs.CONTENT_URI,
+                id);
+    }
+
+    @Override
+    public synchronized int update(
+            Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        List<ContentValues> rows = select(uri, selection, selectionArgs);
+        for (ContentValues row : rows) {
+            row.putAll(values);
+        }
+        mWrites.add(
+                "update "
+                        + uri
+                        + " "
+                        + selection
+                        + " "
+                        + Arrays.toString(selectionArgs)
+                        + " "
+                        + describe(values));
+        return rows.size();
+    }
+
+    @Override
+    public synchronized int delete(Uri uri, String selection, String[] selectionArgs) {
+        List<ContentValues> rows = select(uri, selection, selectionArgs);
+        for (ContentValues row : rows) {
+            long id = getLong(row, TvContract.BaseTvColumns._ID);
+            if (mChannels.remove(id) != null) {
+                // TvProvider deletes the programs of a channel along with it.
+                for (ContentValues program : getPrograms(id)) {
+                    mPrograms.remove(getLong(program, TvContract.BaseTvColumns._ID));
+                }
+            } else {
+                mPrograms.remove(id);
+            }
+        }
+        mWrites.add(
+                "delete " + uri + " " + selection + " " + Arrays.toString(selectionArgs));
+        return rows.size();
+    }
+
+    @Override
+    public synchronized ContentProviderResult[] applyBatch(
+            ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        // Roll back the whole batch if any operation fails, like a transaction.
+        TreeMap<Long, ContentValues> channels = copy(mChannels);
+        TreeMap<Long, ContentValues> programs = copy(mPrograms);
+        int writeCount = mWrites.size();
+        long nextId = mNextId;
+        try {
+            return super.applyBatch(operations);
+        } catch (OperationApplicationException | RuntimeException e) {
+            mChannels.clear();
+            mChannels.putAll(channels);
+            mPrograms.clear();
+            mPrograms.putAll(programs);
+            mWrites.subList(writeCount, mWrites.size()).clear();
+            mNextId = nextId;
+            throw e;
+        }
+    }
+
+    /** Returns the rows which match the URI and the selection, in the order of their IDs. */
+    private List<ContentValues> select(Uri uri, String selection, String[] selectionArgs) {
+        List<String> segments = uri.getPathSegments();
+        TreeMap<Long, ContentValues> table = getTable(segments.get(0));
+        List<ContentValues> rows = new ArrayList<>();
+        for (ContentValues row : table.values()) {
+            if (matchesUri(row, uri, segments) && matchesSelection(row, selection, selectionArgs)) {
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    private TreeMap<Long, ContentValues> getTable(String path) {
+        switch (path) {
+            case "channel":
+                return mChannels;
+            case "program":
+                return mPrograms;
+            default:
+                throw new IllegalArgumentException("Unknown table " + path);
+        }
+    }
+
+    private static boolean matchesUri(ContentValues row, Uri uri, List<String> segments) {
+        if (segments.size() == 1) {
+            String inputId = uri.getQueryParameter(PARAM_INPUT);
+            return inputId == null
+                    || inputId.equals(row.getAsString(TvContract.Channels.COLUMN_INPUT_ID));
+        }
+        if (segments.size() == 2) {
+            return getLong(row, TvContract.BaseTvColumns._ID) == Long.parseLong(segments.get(1));
+        }
+        throw new IllegalArgumentException("Unsupported URI " + uri);
+    }
+
+    /** Matches clauses like {@code a IN (?,?)}, {@code a = ?} or {@code a >= ?}, joined by AND. */
+    private static boolean matchesSelection(
+            ContentValues row, String selection, String[] selectionArgs) {
+        if (selection == null) {
+            return true;
+        }
+        int argIndex = 0;
+        for (String clause : selection.split(" AND ")) {
+            String[] parts = clause.trim().split(" ", 3);
+            String column = parts[0];
+            Object value = row.get(column);
+            if (parts[1].equals("IN")) {
+                int argCount = parts[2].length() - parts[2].replace("?", "").length();
+                List<String> args =
+                        Arrays.asList(selectionArgs).subList(argIndex, argIndex + argCount);
+                argIndex += argCount;
+                if (value == null || !args.contains(String.valueOf(value))) {
+                    return false;
+                }
+            } else if (parts[1].equals("=")) {
+                if (value == null || !String.valueOf(value).equals(selectionArgs[argIndex++])) {
+                    return false;
+                }
+            } else if (parts[1].equals(">=")) {
+                if (value == null
+                        || Long.parseLong(String.valueOf(value))
+                                < Long.parseLong(selectionArgs[argIndex++])) {
+                    return false;
+                }
+            } else {
+                throw new IllegalArgumentException("Unsupported selection " + selection);
+            }
+        }
+        return true;
+    }
+
+    private static void sort(List<ContentValues> rows, final String[] columns) {
+        Collections.sort(
+                rows,
+                new Comparator<ContentValues>() {
+                    @Override
+                    public int compare(ContentValues row1, ContentValues row2) {
+                        for (String column : columns) {
+                            int result = Long.compare(getLong(row1, column), getLong(row2, column));
+                            if (result != 0) {
+                                return result;
+                            }
+                        }
+                        return 0;
+                    }
+                });
+    }
+
+    private static long getLong(ContentValues values, String column) {
+        Long value = values.getAsLong(column);
+        return value != null ? value : 0;
+    }
+
+    private static TreeMap<Long, ContentValues> copy(TreeMap<Long, ContentValues> table) {
+        TreeMap<Long, ContentValues> copy = new TreeMap<>();
+        for (Map.Entry<Long, ContentValues> entry : table.entrySet()) {
+            copy.put(entry.getKey(), new ContentValues(entry.getValue()));
+        }
+        return copy;
+    }
+
+    /** Describes values with their columns in a fixed order, so that descriptions compare. */
+    private static String describe(ContentValues values) {
+        TreeMap<String, String> sortedValues = new TreeMap<>();
+        for (String key : values.keySet()) {
+            Object value = values.get(key);
+            sortedValues.put(
+                    key,
+                    value instanceof byte[]
+                            ? Arrays.toString((byte[]) value)
+                            : String.valueOf(value));
+        }
+        return sortedValues.toString();
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.media.tv.companionlibrary.BuildConfig;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** Tests that {@link HttpFeedCache} stores feeds and revalidates them against a local server. */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class HttpFeedCacheTest {
+    private static final String ETAG = "\"v1\"";
+    private static final String FEED = "<tv></tv>";
+
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private final List<String> mIfNoneMatchHeaders =
+            Collections.synchronizedList(new ArrayList<String>());
+    private TestHttpServer mServer;
+    private String mUrl;
+    private HttpFeedCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        // Serves FEED with ETAG, and answers 304 to requests which already have that version.
+        mServer =
+                new TestHttpServer() {
+                    @Override
+                    protected String serve(String path, Map<String, String> headers) {
+                        String ifNoneMatch = headers.get("if-none-match");
+                        mIfNoneMatchHeaders.add(ifNoneMatch);
+                        if (ETAG.equals(ifNoneMatch)) {
+                            return createResponse("304 Not Modified", null, "ETag: " + ETAG);
+                        }
+                        return createResponse("200 OK", FEED, "ETag: " + ETAG);
+                    }
+                };
+        mServer.start();
+        mUrl = mServer.getUrl("/feed.xml");
+        mCache = new HttpFeedCache(mTemporaryFolder.newFolder("feeds"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+    }
+
+    @Test
+    public void testDownloadsAndRevalidates() throws Exception {
+        HttpFeedCache.Entry entry = mCache.fetch(mUrl);
+        assertFalse(entry.isUnchanged());
+        assertEquals(ETAG, entry.getValidator());
+        assertEquals(FEED, read(entry));
+        assertNull(mIfNoneMatchHeaders.get(0));
+
+        entry = mCache.fetch(mUrl);
+        assertTrue(entry.isUnchanged());
+        assertEquals(ETAG, mIfNoneMatchHeaders.get(1));
+        assertEquals(FEED, read(entry));
+    }
+
+    @Test
+    public void testUsesCopyOnDiskWhenOffline() throws Exception {
+        mCache.fetch(mUrl);
+        mServer.close();
+
+        HttpFeedCache.Entry entry = mCache.fetch(mUrl);
+        assertTrue(entry.isUnchanged());
+        assertEquals(FEED, read(entry));
+    }
+
+    private static String read(HttpFeedCache.Entry entry) throws IOException {
+        try (InputStream in = entry.openInputStream()) {
+            BufferedReader reader =
+                    new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            return reader.readLine();
+        }
+    }
+}
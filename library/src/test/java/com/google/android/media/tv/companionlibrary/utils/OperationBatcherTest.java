@@ -0,0 +1,200 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.media.tv.TvContract;
+import android.os.DeadObjectException;
+import android.os.TransactionTooLargeException;
+import com.google.android.media.tv.companionlibrary.BuildConfig;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** Tests that {@link OperationBatcher} batches by size and retries failed batches. */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class OperationBatcherTest {
+    private static final String FAILING_PATH = "fail";
+    private static final String DEAD_PATH = "dead";
+
+    private ContentResolver mResolver;
+    private List<Integer> mBatchSizes;
+    private List<Integer> mApplied;
+    private List<Integer> mFailed;
+    private OperationBatcher.Callback<Integer> mCallback;
+
+    @Before
+    public void setUp() throws Exception {
+        mBatchSizes = new ArrayList<>();
+        mApplied = new ArrayList<>();
+        mFailed = new ArrayList<>();
+        mResolver = mock(ContentResolver.class);
+        // Fails any batch which contains an operation on the failing path, like a provider which
+        // rejects a row and rolls back the transaction.
+        when(mResolver.applyBatch(eq(TvContract.AUTHORITY), any(ArrayList.class)))
+                .thenAnswer(
+                        new Answer<ContentProviderResult[]>() {
+                            @Override
+                            public ContentProviderResult[] answer(InvocationOnMock invocation)
+                                    throws Exception {
+                                ArrayList<ContentProviderOperation> batch =
+                                        invocation.getArgument(1);
+                                mBatchSizes.add(batch.size());
+                                for (ContentProviderOperation operation : batch) {
+                                    String uri = operation.getUri().toString();
+                                    if (uri.contains(FAILING_PATH)) {
+                                        throw new TransactionTooLargeException();
+                                    }
+                                    if (uri.contains(DEAD_PATH)) {
+                                        throw new DeadObjectException();
+                                    }
+                                }
+                                ContentProviderResult[] results =
+                                        new ContentProviderResult[batch.size()];
+                                for (int i = 0; i < results.length; i++) {
+                                    results[i] = new ContentProviderResult(1);
+                                }
+                                return results;
+                            }
+                        });
+        mCallback =
+                new OperationBatcher.Callback<Integer>() {
+                    @Override
+                    public void onApplied(Integer tag, ContentProviderResult result) {
+                        mApplied.add(tag);
+                    }
+
+                    @Override
+                    public void onFailed(Integer tag, Exception e) {
+                        mFailed.add(tag);
+                    }
+                };
+    }
+
+    @Test
+    public void testBatchesBySize() {
+        ContentValues values = createValues(100);
+        int sizeBytes = OperationBatcher.estimateSize(values);
+        OperationBatcher<Integer> batcher =
+                new OperationBatcher<>(mResolver, TvContract.AUTHORITY, sizeBytes * 3, mCallback);
+        for (int i = 0; i < 7; i++) {
+            batcher.add(createOperation("program"), values, i);
+        }
+        batcher.flush();
+
+        assertEquals(3, batcher.getTransactionCount());
+        assertEquals(sizeBytes * 7, batcher.getAppliedSizeBytes());
+        assertEquals(3, (int) mBatchSizes.get(0));
+        assertEquals(3, (int) mBatchSizes.get(1));
+        assertEquals(1, (int) mBatchSizes.get(2));
+        assertEquals(7, mApplied.size());
+        assertTrue(mFailed.isEmpty());
+    }
+
+    @Test
+    public void testLargeValuesGetTheirOwnBatch() {
+        ContentValues smallValues = createValues(10);
+        ContentValues largeValues = createValues(10000);
+        OperationBatcher<Integer> batcher =
+                new OperationBatcher<>(
+                        mResolver,
+                        TvContract.AUTHORITY,
+                        OperationBatcher.estimateSize(smallValues) * 4,
+                        mCallback);
+        batcher.add(createOperation("program"), smallValues, 0);
+        batcher.add(createOperation("program"), largeValues, 1);
+        batcher.add(createOperation("program"), smallValues, 2);
+        batcher.flush();
+
+        assertEquals(3, batcher.getTransactionCount());
+        assertEquals(3, mApplied.size());
+    }
+
+    @Test
+    public void testSplitsFailedBatches() {
+        OperationBatcher<Integer> batcher =
+                new OperationBatcher<>(
+                        mResolver,
+                        TvContract.AUTHORITY,
+                        OperationBatcher.DEFAULT_MAX_BATCH_SIZE_BYTES,
+                        mCallback);
+        for (int i = 0; i < 8; i++) {
+            batcher.add(createOperation(i == 5 ? FAILING_PATH : "program"), null, i);
+        }
+        batcher.flush();
+
+        assertEquals(1, mFailed.size());
+        assertEquals(5, (int) mFailed.get(0));
+        assertEquals(7, mApplied.size());
+        // 8 -> 4 + 4 -> 4 + (2 -> 1 + 1) + 2
+        assertEquals(7, batcher.getTransactionCount());
+    }
+
+    @Test
+    public void testFailsRemainingOperationsWhenProviderDies() {
+        OperationBatcher<Integer> batcher =
+                new OperationBatcher<>(
+                        mResolver,
+                        TvContract.AUTHORITY,
+                        OperationBatcher.estimateSize(null) * 4,
+                        mCallback);
+        for (int i = 0; i < 8; i++) {
+            batcher.add(createOperation(i == 1 ? DEAD_PATH : "program"), null, i);
+        }
+        batcher.flush();
+
+        // The first batch is not split and the second one is not applied.
+        assertEquals(1, batcher.getTransactionCount());
+        assertTrue(mApplied.isEmpty());
+        assertEquals(8, mFailed.size());
+    }
+
+    private static ContentProviderOperation createOperation(String path) {
+        return ContentProviderOperation.newDelete(
+                        TvContract.Programs.CONTENT_URI.buildUpon().appendPath(path).build())
+                .build();
+    }
+
+    private static ContentValues createValues(int descriptionLength) {
+        StringBuilder description = new StringBuilder();
+        for (int i = 0; i < descriptionLength; i++) {
+            description.append('a');
+        }
+        ContentValues values = new ContentValues();
+        values.put(TvContract.Programs.COLUMN_TITLE, "Title");
+        values.put(TvContract.Programs.COLUMN_LONG_DESCRIPTION, description.toString());
+        values.put(TvContract.Programs.COLUMN_START_TIME_UTC_MILLIS, 0L);
+        return values;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import com.google.android.media.tv.companionlibrary.BuildConfig;
+import java.util.Arrays;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+/** Tests that {@link RecentChannels} keeps the channels most recently tuned to in order. */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class RecentChannelsTest {
+    private static final String INPUT_ID = "input";
+
+    @Test
+    public void testMostRecentFirst() {
+        Context context = RuntimeEnvironment.application;
+        assertTrue(RecentChannels.get(context, INPUT_ID).isEmpty());
+
+        RecentChannels.add(context, INPUT_ID, 1);
+        RecentChannels.add(context, INPUT_ID, 2);
+        RecentChannels.add(context, INPUT_ID, 3);
+        RecentChannels.add(context, INPUT_ID, 1);
+        assertEquals(Arrays.asList(1L, 3L, 2L), RecentChannels.get(context, INPUT_ID));
+    }
+
+    @Test
+    public void testKeepsMaxCount() {
+        Context context = RuntimeEnvironment.application;
+        for (long channelId = 0; channelId < RecentChannels.MAX_COUNT * 2; channelId++) {
+            RecentChannels.add(context, INPUT_ID, channelId);
+        }
+        assertEquals(RecentChannels.MAX_COUNT, RecentChannels.get(context, INPUT_ID).size());
+        assertEquals(
+                Long.valueOf(RecentChannels.MAX_COUNT * 2 - 1),
+                RecentChannels.get(context, INPUT_ID).get(0));
+    }
+
+    @Test
+    public void testKeptPerInput() {
+        Context context = RuntimeEnvironment.application;
+        RecentChannels.add(context, INPUT_ID, 1);
+        RecentChannels.add(context, "otherInput", 2);
+        assertEquals(Arrays.asList(1L), RecentChannels.get(context, INPUT_ID));
+        assertEquals(Arrays.asList(2L), RecentChannels.get(context, "otherInput"));
+    }
+}
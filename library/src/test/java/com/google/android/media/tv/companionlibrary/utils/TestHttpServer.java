@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal HTTP server on a local port for tests of code which downloads, which answers each
+ * request with {@link #serve(String, Map)} and closes the connection.
+ */
+public abstract class TestHttpServer extends Thread {
+    private final ServerSocket mServerSocket;
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+
+    public TestHttpServer() throws IOException {
+        mServerSocket = new ServerSocket(0);
+        setDaemon(true);
+    }
+
+    /**
+     * Returns the response to a request.
+     *
+     * @param path The path of the request.
+     * @param headers The headers of the request, by lower case name.
+     * @return The response, e.g. from {@link #createResponse(String, String, String...)}.
+     */
+    protected abstract String serve(String path, Map<String, String> headers);
+
+    /**
+     * Builds a response which closes the connection.
+     *
+     * @param status The status code and reason, e.g. {@code "200 OK"}.
+     * @param body The body of the response, or {@code null} if it has none.
+     * @param headers More headers, e.g. {@code "ETag: \"v1\""}.
+     * @return The response to return from {@link #serve(String, Map)}.
+     */
+    public static String createResponse(String status, String body, String... headers) {
+        StringBuilder response = new StringBuilder("HTTP/1.1 ").append(status).append("\r\n");
+        for (String header : headers) {
+            response.append(header).append("\r\n");
+        }
+        if (body != null) {
+            response.append("Content-Length: ").append(body.length()).append("\r\n");
+        }
+        response.append("Connection: close\r\n\r\n");
+        if (body != null) {
+            response.append(body);
+        }
+        return response.toString();
+    }
+
+    /** @return The URL of a path on this server. */
+    public String getUrl(String path) {
+        return "http://localhost:" + mServerSocket.getLocalPort() + path;
+    }
+
+    /** @return The number of requests served so far. */
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /** Stops the server. Later requests fail to connect. */
+    public void close() throws IOException {
+        mServerSocket.close();
+    }
+
+    @Override
+    public void run() {
+        while (!mServerSocket.isClosed()) {
+            try (Socket socket = mServerSocket.accept()) {
+                handle(socket);
+            } catch (IOException e) {
+                // The server socket was closed.
+            }
+        }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        BufferedReader reader =
+                new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+        String requestLine = reader.readLine();
+        if (requestLine == null) {
+            return;
+        }
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while ((line = reader.readLine()) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(
+                        line.substring(0, colon).trim().toLowerCase(),
+                        line.substring(colon + 1).trim());
+            }
+        }
+        mRequestCount.incrementAndGet();
+        String response = serve(requestLine.split(" ")[1], headers);
+        OutputStream out = socket.getOutputStream();
+        out.write(response.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary.xmltv;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.android.media.tv.companionlibrary.BuildConfig;
+import com.google.android.media.tv.companionlibrary.model.Channel;
+import com.google.android.media.tv.companionlibrary.model.Program;
+import java.io.File;
+import java.io.InputStream;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** Tests that {@link TvListingSnapshot} restores the listings parsed by {@link XmlTvParser}. */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class TvListingSnapshotTest {
+    private static final String VALIDATOR = "\"v1\"";
+
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream("xmltv.xml");
+        XmlTvParser.TvListing listing = XmlTvParser.parse(inputStream);
+        File file = new File(mTemporaryFolder.getRoot(), "listing.snapshot");
+        TvListingSnapshot.write(listing, VALIDATOR, file);
+
+        XmlTvParser.TvListing snapshot = TvListingSnapshot.read(file, VALIDATOR);
+        assertEquals(listing.getAllPrograms(), snapshot.getAllPrograms());
+        assertEquals(listing.getChannels().size(), snapshot.getChannels().size());
+        for (int i = 0; i < listing.getChannels().size(); i++) {
+            Channel channel = listing.getChannels().get(i);
+            Channel restoredChannel = snapshot.getChannels().get(i);
+            assertEquals(channel.toString(), restoredChannel.toString());
+            assertArrayEquals(
+                    channel.getInternalProviderDataByteArray(),
+                    restoredChannel.getInternalProviderDataByteArray());
+            assertEquals(listing.getPrograms(channel), snapshot.getPrograms(restoredChannel));
+        }
+    }
+
+    @Test
+    public void testReadsProgramsOfEachChannel() throws Exception {
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream("xmltv.xml");
+        XmlTvParser.TvListing listing = XmlTvParser.parse(inputStream);
+        File file = new File(mTemporaryFolder.getRoot(), "listing.snapshot");
+        TvListingSnapshot.write(listing, VALIDATOR, file);
+
+        // The programs of a channel are read without reading all the others first.
+        XmlTvParser.TvListing snapshot = TvListingSnapshot.read(file, VALIDATOR);
+        assertEquals(listing.getProgramCount(), snapshot.getProgramCount());
+        Channel channel = listing.getChannels().get(0);
+        List<Program> programs = listing.getPrograms(channel);
+        Program middleProgram = programs.get(programs.size() / 2);
+        assertEquals(
+                listing.getPrograms(
+                        channel,
+                        middleProgram.getStartTimeUtcMillis(),
+                        middleProgram.getEndTimeUtcMillis()),
+                snapshot.getPrograms(
+                        snapshot.getChannels().get(0),
+                        middleProgram.getStartTimeUtcMillis(),
+                        middleProgram.getEndTimeUtcMillis()));
+        assertEquals(programs, snapshot.getPrograms(snapshot.getChannels().get(0)));
+        assertEquals(listing.getAllPrograms(), snapshot.getAllPrograms());
+    }
+
+    @Test
+    public void testIgnoresOtherValidators() throws Exception {
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream("xmltv.xml");
+        XmlTvParser.TvListing listing = XmlTvParser.parse(inputStream);
+        File file = new File(mTemporaryFolder.getRoot(), "listing.snapshot");
+        TvListingSnapshot.write(listing, VALIDATOR, file);
+
+        assertNull(TvListingSnapshot.read(file, "\"v2\""));
+        assertNull(TvListingSnapshot.read(new File(mTemporaryFolder.getRoot(), "none"), VALIDATOR));
+    }
+}
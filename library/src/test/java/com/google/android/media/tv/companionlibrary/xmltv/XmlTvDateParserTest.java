@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary.xmltv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.SimpleTimeZone;
+import org.junit.Ignore;
+import org.junit.Test;
+
+/** Tests for {@link XmlTvDateParser}, including a benchmark against {@link SimpleDateFormat}. */
+public class XmlTvDateParserTest {
+    private static final String DATE_FORMAT = "yyyyMMddHHmmss Z";
+    private static final int SAMPLE_COUNT = 20000;
+    private static final int BENCHMARK_ROUNDS = 10;
+
+    @Test
+    public void testKnownTimestamps() throws ParseException {
+        assertEquals(0L, XmlTvDateParser.parse("19700101000000 +0000"));
+        assertEquals(1439772302000L, XmlTvDateParser.parse("20150817004502 +0000"));
+        assertEquals(1439772302000L, XmlTvDateParser.parse("20150817024502 +0200"));
+        assertEquals(1439772302000L, XmlTvDateParser.parse("20150816193502 -0510"));
+        assertEquals(951782400000L, XmlTvDateParser.parse("20000229000000 +0000"));
+    }
+
+    @Test
+    public void testMatchesSimpleDateFormat() throws ParseException {
+        for (String timestamp : createTimestamps()) {
+            assertEquals(
+                    timestamp,
+                    new SimpleDateFormat(DATE_FORMAT, Locale.US).parse(timestamp).getTime(),
+                    XmlTvDateParser.parse(timestamp));
+        }
+    }
+
+    @Test
+    public void testLenientFallback() throws ParseException {
+        // Out of range fields are rolled over the same way SimpleDateFormat does.
+        String timestamp = "20151317004502 +0000";
+        assertEquals(
+                new SimpleDateFormat(DATE_FORMAT, Locale.US).parse(timestamp).getTime(),
+                XmlTvDateParser.parse(timestamp));
+    }
+
+    @Test
+    public void testInvalidTimestamp() {
+        try {
+            XmlTvDateParser.parse("not a timestamp");
+            fail();
+        } catch (ParseException e) {
+            // The parser encountered an error and exposed it to the developer as expected
+        }
+    }
+
+    /**
+     * Compares the time per call of both parsers. It is too slow and too noisy for every test run,
+     * so run it on its own by removing {@link Ignore}. The times are in the message of the
+     * assertion, which fails if the parser is not faster than {@link SimpleDateFormat}.
+     */
+    @Ignore("Benchmark")
+    @Test
+    public void benchmarkAgainstSimpleDateFormat() throws ParseException {
+        String[] timestamps = createTimestamps();
+        SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT, Locale.US);
+        long checksum = 0;
+        // Warm up both code paths before measuring.
+        for (String timestamp : timestamps) {
+            checksum += dateFormat.parse(timestamp).getTime() - XmlTvDateParser.parse(timestamp);
+        }
+        long simpleDateFormatNanos = 0;
+        long xmlTvDateParserNanos = 0;
+        for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+            long startNanos = System.nanoTime();
+            for (String timestamp : timestamps) {
+                checksum += dateFormat.parse(timestamp).getTime();
+            }
+            simpleDateFormatNanos += System.nanoTime() - startNanos;
+            startNanos = System.nanoTime();
+            for (String timestamp : timestamps) {
+                checksum -= XmlTvDateParser.parse(timestamp);
+            }
+            xmlTvDateParserNanos += System.nanoTime() - startNanos;
+        }
+        assertEquals(0, checksum);
+        int parseCount = timestamps.length * BENCHMARK_ROUNDS;
+        assertTrue(
+                "XMLTV timestamp parsing, ns per call: SimpleDateFormat="
+                        + simpleDateFormatNanos / parseCount
+                        + " XmlTvDateParser="
+                        + xmlTvDateParserNanos / parseCount,
+                xmlTvDateParserNanos < simpleDateFormatNanos);
+    }
+
+    private static String[] createTimestamps() {
+        Random random = new Random(0);
+        SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT, Locale.US);
+        String[] timestamps = new String[SAMPLE_COUNT];
+        for (int i = 0; i < timestamps.length; i++) {
+            // Any second between 1970 and 2100 in a zone between -12:00 and +14:00.
+            long timeMs = (long) (random.nextDouble() * 4102444800L) * 1000;
+            int zoneOffsetMinutes =
+                    (random.nextInt(27) - 12) * 60 + (random.nextBoolean() ? 30 : 0);
+            dateFormat.setTimeZone(new SimpleTimeZone(zoneOffsetMinutes * 60 * 1000, "XMLTV"));
+            timestamps[i] = dateFormat.format(new Date(timeMs));
+        }
+        return timestamps;
+    }
+}
@@ -20,11 +20,15 @@ import android.media.tv.TvContract;
 import android.os.Build;
 import android.support.annotation.RequiresApi;
 import com.google.android.media.tv.companionlibrary.BuildConfig;
+import com.google.android.media.tv.companionlibrary.model.Channel;
 import com.google.android.media.tv.companionlibrary.model.InternalProviderData;
+import com.google.android.media.tv.companionlibrary.model.Program;
 import com.google.android.media.tv.companionlibrary.utils.TvContractUtils;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import junit.framework.TestCase;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -95,6 +99,78 @@ public class XmlTvParserTest extends TestCase {
         assertEquals(9, listings.getAllPrograms().size());
     }
 
+    @Test
+    public void testProgramRangeQuery() throws XmlTvParser.XmlTvParseException {
+        String testXmlFile = "xmltv.xml";
+        InputStream inputStream = this.getClass().getClassLoader().getResourceAsStream(testXmlFile);
+        XmlTvParser.TvListing listings = XmlTvParser.parse(inputStream);
+        Channel channel = listings.getChannels().get(0);
+        List<Program> programs = listings.getPrograms(channel);
+        assertEquals(5, programs.size());
+        for (int i = 1; i < programs.size(); i++) {
+            assertTrue(programs.get(i - 1).getStartTimeUtcMillis()
+                    <= programs.get(i).getStartTimeUtcMillis());
+        }
+
+        Program middleProgram = programs.get(2);
+        List<Program> range = listings.getPrograms(channel,
+                middleProgram.getStartTimeUtcMillis() + 1,
+                middleProgram.getEndTimeUtcMillis() - 1);
+        assertEquals(1, range.size());
+        assertEquals(middleProgram, range.get(0));
+
+        // A range starting where the middle program ends doesn't overlap it.
+        range = listings.getPrograms(channel,
+                middleProgram.getEndTimeUtcMillis(), middleProgram.getEndTimeUtcMillis());
+        assertFalse(range.contains(middleProgram));
+
+        assertEquals(5, listings.getPrograms(channel, 0, Long.MAX_VALUE).size());
+        assertTrue(listings.getPrograms(channel, 0,
+                programs.get(0).getStartTimeUtcMillis() - 1).isEmpty());
+    }
+
+    @Test
+    public void testStreamingParsing() throws XmlTvParser.XmlTvParseException {
+        String testXmlFile = "xmltv.xml";
+        InputStream inputStream = this.getClass().getClassLoader().getResourceAsStream(testXmlFile);
+        final List<Channel> channels = new ArrayList<>();
+        final List<Program> programs = new ArrayList<>();
+        XmlTvParser.parse(inputStream, new XmlTvParser.Listener() {
+            @Override
+            public void onChannel(Channel channel) {
+                channels.add(channel);
+            }
+
+            @Override
+            public void onProgram(Program program) {
+                programs.add(program);
+            }
+        });
+        assertEquals(4, channels.size());
+        assertEquals(9, programs.size());
+        assertEquals("Creative Commons", channels.get(1).getDisplayName());
+        assertEquals("Introducing Gmail Blue", programs.get(0).getTitle());
+        assertEquals(channels.get(0).getOriginalNetworkId(), programs.get(2).getChannelId());
+    }
+
+    @Test
+    public void testInvalidXmlStreaming() {
+        String testXmlFile = "invalid_xmltv.xml";
+        InputStream inputStream = this.getClass().getClassLoader().getResourceAsStream(testXmlFile);
+        try {
+            XmlTvParser.parse(inputStream, new XmlTvParser.Listener() {
+                @Override
+                public void onChannel(Channel channel) {}
+
+                @Override
+                public void onProgram(Program program) {}
+            });
+            fail();
+        } catch (XmlTvParser.XmlTvParseException e) {
+            // The parser encountered an error and exposed it to the developer as expected
+        }
+    }
+
     @Test
     public void testInvalidXmlParsing() throws FileNotFoundException {
         String testXmlFile = "invalid_xmltv.xml";